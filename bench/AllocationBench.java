@@ -0,0 +1,162 @@
+/* Class: AllocationBench
+ *
+ * Checks that the steady state of a
+ * transfer allocates nothing: one kept
+ * alive client sends a small and a large
+ * file over loopback to a FastServer in
+ * a child process, and the bytes its
+ * sender, ack and timer threads allocate
+ * for the large file beyond the small,
+ * per extra segment, are reported, so
+ * setup, handshake and teardown cancel
+ * out
+ * Exits with status 1 if a thread
+ * allocates per segment
+ *
+ * usage: java AllocationBench [-window n] [-runs n] [-sack] [-zerocopy]
+ *                             [-checksum] [-segment bytes] [small large]
+ * sizes take K, M and G suffixes, e.g. 1M 32M
+ */
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class AllocationBench
+{
+    // a thread allocating no more than this
+    // per segment allocates nothing per
+    // segment, the rest is noise such as a
+    // list growing once
+    public final static double TOLERANCE = 0.5; // bytes
+
+    public static void main(String[] args) throws Exception
+    {
+        int window = 100;
+        int runs = 3;
+        boolean sack = false;
+        boolean zeroCopy = false;
+        boolean checksum = false;
+        int segmentSize = 0;
+        ArrayList<Long> sizes = new ArrayList<Long>();
+
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-window"))
+                window = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-runs"))
+                runs = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-sack"))
+                sack = true;
+            else if(args[i].equals("-zerocopy"))
+                zeroCopy = true;
+            else if(args[i].equals("-checksum"))
+                checksum = true;
+            else if(args[i].equals("-segment"))
+                segmentSize = Integer.parseInt(args[++i]);
+            else
+                sizes.add(Bench.parseSize(args[i]));
+        }
+        long small = sizes.size() == 2 ? sizes.get(0) : Bench.parseSize("1M");
+        long large = sizes.size() == 2 ? sizes.get(1) : Bench.parseSize("32M");
+
+        Path serverDir = Files.createTempDirectory("bench-server");
+        int port = TransferBench.freePort();
+        Process server = TransferBench.startServer(serverDir, port, window);
+        File smallFile = new File("alloc-small.bin");
+        File largeFile = new File("alloc-large.bin");
+        TransferBench.createFile(smallFile, small);
+        TransferBench.createFile(largeFile, large);
+
+        System.out.println();
+        System.out.printf("Allocation per segment (window %d, %s and %s%s%s%s)%n", window,
+            TransferBench.formatSize(small), TransferBench.formatSize(large),
+            sack ? ", sack" : "", zeroCopy ? ", zero-copy" : "", checksum ? ", checksum" : "");
+        System.out.printf("%-12s %12s %12s %12s%n", "run", "sender B/seg", "ack B/seg", "timer B/seg");
+
+        PrintStream out = System.out;
+        FastClient client = new FastClient("localhost", port, window, 100);
+        client.setSelectiveAck(sack);
+        client.setZeroCopy(zeroCopy);
+        client.setChecksums(checksum);
+        if(segmentSize > 0)
+            client.setSegmentSize(segmentSize);
+
+        double[] worst = new double[3];
+        try {
+            // the client reports progress on stdout
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            // once to warm up, and to start the threads
+            client.sendAsync(largeFile.getName()).get();
+            Thread[] threads = clientThreads();
+            long segments = (large - small) / client.getPayloadSize();
+
+            for(int r = 0; r < runs; r++) {
+                long[] before = allocated(threads);
+                client.sendAsync(smallFile.getName()).get();
+                long[] middle = allocated(threads);
+                client.sendAsync(largeFile.getName()).get();
+                long[] after = allocated(threads);
+
+                double[] perSegment = new double[3];
+                for(int t = 0; t < 3; t++) {
+                    long extra = (after[t] - middle[t]) - (middle[t] - before[t]);
+                    perSegment[t] = Math.max(0, (double) extra / segments);
+                    worst[t] = Math.max(worst[t], perSegment[t]);
+                }
+                System.setOut(out);
+                System.out.printf("%-12d %12.2f %12.2f %12.2f%n", r + 1,
+                    perSegment[0], perSegment[1], perSegment[2]);
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            }
+        } finally {
+            System.setOut(out);
+            client.close();
+            smallFile.delete();
+            largeFile.delete();
+            server.destroy();
+            server.waitFor();
+            Files.deleteIfExists(serverDir.resolve(smallFile.getName()));
+            Files.deleteIfExists(serverDir.resolve(largeFile.getName()));
+            Files.deleteIfExists(serverDir.resolve("server.log"));
+            Files.deleteIfExists(serverDir);
+        }
+
+        boolean allocates = false;
+        for(double bytes : worst)
+            allocates |= bytes > TOLERANCE;
+        System.out.println(allocates ? "FAILED: the steady state allocates" : "OK: no allocation per segment");
+        if(allocates)
+            System.exit(1);
+    }
+
+    static Thread[] clientThreads()
+    {
+        // the sendAsync() sender thread, and the
+        // client's ack and timer threads, which
+        // stay up between files
+        Thread[] threads = new Thread[3];
+        for(Thread thread : Thread.getAllStackTraces().keySet()) {
+            if(thread.getName().equals("FastClient sender"))
+                threads[0] = thread;
+            else if(thread instanceof AckReceive)
+                threads[1] = thread;
+            else if(thread instanceof TimerWheel)
+                threads[2] = thread;
+        }
+        for(Thread thread : threads) {
+            if(thread == null)
+                throw new IllegalStateException("Client thread not found");
+        }
+        return threads;
+    }
+
+    static long[] allocated(Thread[] threads)
+    {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] bytes = new long[threads.length];
+        for(int i = 0; i < threads.length; i++)
+            bytes[i] = bean.getThreadAllocatedBytes(threads[i].getId());
+        return bytes;
+    }
+}
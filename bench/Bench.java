@@ -0,0 +1,108 @@
+/* Class: Bench
+ *
+ * A small benchmark harness for the
+ * hot path classes
+ * Each benchmark is warmed up, then
+ * timed in batches of operations, and
+ * reported as throughput, the 50/90/99th
+ * percentile of the time per operation
+ * over the batches, and the bytes
+ * allocated per operation by the
+ * measuring thread
+ */
+
+import java.lang.management.*;
+import java.util.*;
+
+public class Bench
+{
+    public final static long WARMUP = 1000; // milli-seconds
+    public final static int BATCHES = 50;
+
+    // results are folded in here so the
+    // JIT cannot drop the measured work
+    public static volatile long sink;
+
+    public interface Op
+    {
+        // runs operation i, returning anything
+        // derived from its result
+        public long run(int i) throws Exception;
+    }
+
+    public static void header(String title)
+    {
+        System.out.println();
+        System.out.println(title);
+        System.out.printf("%-40s %14s %10s %10s %10s %10s%n",
+            "benchmark", "ops/s", "p50 ns", "p90 ns", "p99 ns", "B/op");
+    }
+
+    public static void micro(String name, int batch, Op op) throws Exception
+    {
+        // warm up until the compiler settles
+        long acc = 0;
+        int i = 0;
+        long end = System.nanoTime() + WARMUP * 1000000L;
+        while(System.nanoTime() < end) {
+            for(int j = 0; j < batch; j++)
+                acc += op.run(i++);
+        }
+
+        double[] perOp = new double[BATCHES];
+        long totalTime = 0;
+        long allocBefore = allocatedBytes();
+        for(int b = 0; b < BATCHES; b++) {
+            long start = System.nanoTime();
+            for(int j = 0; j < batch; j++)
+                acc += op.run(i++);
+            long time = System.nanoTime() - start;
+            totalTime += time;
+            perOp[b] = (double) time / batch;
+        }
+        long alloc = allocatedBytes() - allocBefore;
+        sink += acc;
+
+        long ops = (long) batch * BATCHES;
+        Arrays.sort(perOp);
+        System.out.printf("%-40s %14.0f %10.1f %10.1f %10.1f %10.1f%n",
+            name, ops * 1e9 / totalTime,
+            percentile(perOp, 50), percentile(perOp, 90), percentile(perOp, 99),
+            (double) alloc / ops);
+    }
+
+    public static double percentile(double[] sorted, double p)
+    {
+        // nearest rank on an already sorted array
+        if(sorted.length == 0)
+            return 0;
+        int rank = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank))];
+    }
+
+    public static long allocatedBytes()
+    {
+        // heap allocated so far by the calling thread,
+        // -1 if the JVM cannot tell
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+
+    public static long parseSize(String size)
+    {
+        // 100K, 10M, 4G or plain bytes
+        char unit = Character.toUpperCase(size.charAt(size.length() - 1));
+        long scale = 1;
+        if(unit == 'K')
+            scale = 1024;
+        else if(unit == 'M')
+            scale = 1024 * 1024;
+        else if(unit == 'G')
+            scale = 1024L * 1024 * 1024;
+        if(scale != 1)
+            size = size.substring(0, size.length() - 1);
+        return Long.parseLong(size) * scale;
+    }
+}
@@ -0,0 +1,585 @@
+/* Class: LinkEmulator
+ *
+ * A local relay that sits between a
+ * FastClient and the server, and makes
+ * loopback behave like a real link
+ * Datagrams in each direction go through
+ * their own Link, which can drop, delay,
+ * jitter, reorder, duplicate, corrupt and rate
+ * limit them; TCP control connections
+ * are relayed untouched
+ *
+ * Clients connect to the emulator's port
+ * instead of the server's. Each client
+ * udp address gets its own upstream socket,
+ * and the handshake's PARAM_UDP_PORT is
+ * rewritten to it so the server matches
+ * the relayed datagrams to the transfer
+ *
+ * usage: java LinkEmulator port serverhost serverport [options]
+ *   -loss p        drop probability
+ *   -delay ms      one way delay
+ *   -jitter ms     uniform +/- variation of the delay
+ *   -reorder p     probability a datagram skips the delay
+ *   -duplicate p   probability a datagram is sent twice
+ *   -corrupt p     probability a bit of a datagram is flipped
+ *   -rate bytes    link rate per second, K, M and G suffixes
+ *   -queue ms      longest wait for the link before a drop
+ * each applies to both directions, or prefix
+ * with up- (to the server) or down- (to the
+ * client), e.g. -down-loss 0.05
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class LinkEmulator extends Thread
+{
+    public final static long IDLE_TIMEOUT = 60000; // milli-seconds
+
+    /* Class: Link
+     *
+     * Impairments and counters for one
+     * direction. Settings may be changed
+     * while the emulator runs
+     */
+    public static class Link
+    {
+        public volatile double loss;
+        public volatile double delay; // milli-seconds
+        public volatile double jitter; // milli-seconds
+        public volatile double reorder;
+        public volatile double duplicate;
+        public volatile double corrupt;
+        public volatile long rate; // bytes per second, 0 for unlimited
+        public volatile double queue = 100; // milli-seconds
+
+        // datagrams entering the link, and
+        // what happened to them
+        public volatile long received;
+        public volatile long lost;
+        public volatile long overflowed;
+        public volatile long duplicated;
+        public volatile long corrupted;
+        public volatile long reordered;
+        public volatile long delivered;
+
+        private Random random = new Random();
+        private long linkFree;
+
+        public boolean setOption(String name, String value)
+        {
+            if(name.equals("loss"))
+                loss = Double.parseDouble(value);
+            else if(name.equals("delay"))
+                delay = Double.parseDouble(value);
+            else if(name.equals("jitter"))
+                jitter = Double.parseDouble(value);
+            else if(name.equals("reorder"))
+                reorder = Double.parseDouble(value);
+            else if(name.equals("duplicate"))
+                duplicate = Double.parseDouble(value);
+            else if(name.equals("corrupt"))
+                corrupt = Double.parseDouble(value);
+            else if(name.equals("rate"))
+                rate = Bench.parseSize(value);
+            else if(name.equals("queue"))
+                queue = Double.parseDouble(value);
+            else
+                return false;
+            return true;
+        }
+
+        public void resetCounters()
+        {
+            received = 0;
+            lost = 0;
+            overflowed = 0;
+            duplicated = 0;
+            corrupted = 0;
+            reordered = 0;
+            delivered = 0;
+        }
+
+        public String toString()
+        {
+            return String.format("loss=%s delay=%s jitter=%s reorder=%s duplicate=%s corrupt=%s rate=%s queue=%s",
+                loss, delay, jitter, reorder, duplicate, corrupt, rate == 0 ? "unlimited" : "" + rate, queue);
+        }
+
+        // release times, in nano-seconds, for a
+        // datagram arriving now: none if it is
+        // dropped, two if it is duplicated
+        int admit(long now, int length, long[] due)
+        {
+            received++;
+            if(loss > 0 && random.nextDouble() < loss) {
+                lost++;
+                return 0;
+            }
+
+            int copies = 1;
+            if(duplicate > 0 && random.nextDouble() < duplicate) {
+                duplicated++;
+                copies = 2;
+            }
+
+            int n = 0;
+            for(int i = 0; i < copies; i++) {
+                long sent = now;
+                if(rate > 0) {
+                    // wait for the datagrams ahead on the
+                    // link, drop tail if that is too long
+                    long start = Math.max(now, linkFree);
+                    if(start - now > (long) (queue * 1000000)) {
+                        overflowed++;
+                        continue;
+                    }
+                    linkFree = start + length * 1000000000L / rate;
+                    sent = linkFree;
+                }
+
+                // reordered datagrams skip the delay,
+                // and overtake those still in flight
+                if(reorder > 0 && random.nextDouble() < reorder) {
+                    reordered++;
+                    due[n++] = sent;
+                    continue;
+                }
+                double wait = delay;
+                if(jitter > 0)
+                    wait += (random.nextDouble() * 2 - 1) * jitter;
+                due[n++] = sent + (long) (Math.max(0, wait) * 1000000);
+            }
+            return n;
+        }
+
+        // flips one bit of a datagram, picked at
+        // random, if it is to be corrupted
+        void damage(byte[] data)
+        {
+            if(corrupt > 0 && data.length > 0 && random.nextDouble() < corrupt) {
+                corrupted++;
+                data[random.nextInt(data.length)] ^= (byte) (1 << random.nextInt(8));
+            }
+        }
+    }
+
+    // a datagram waiting in a link
+    private static class Pending implements Comparable<Pending>
+    {
+        long due;
+        long order;
+        byte[] data;
+        DatagramChannel channel;
+        SocketAddress target;
+        Link link;
+
+        public int compareTo(Pending other)
+        {
+            if(due != other.due)
+                return due < other.due ? -1 : 1;
+            return Long.compare(order, other.order);
+        }
+    }
+
+    // the relay's socket towards the server
+    // for one client udp address
+    private static class Upstream
+    {
+        SocketAddress client;
+        DatagramChannel channel;
+        long lastActive;
+    }
+
+    private int port;
+    private InetSocketAddress server;
+    private Link up;
+    private Link down;
+
+    private Selector selector;
+    private ServerSocketChannel TCPChannel;
+    private DatagramChannel UDPChannel;
+    private volatile boolean runThread;
+
+    // read by the tcp relays, which share a
+    // client's socket between its transfers
+    private ConcurrentHashMap<SocketAddress, Upstream> upstreams;
+    private ConcurrentLinkedQueue<Upstream> registrations;
+    private PriorityQueue<Pending> inFlight;
+    private long order;
+    private ByteBuffer receiveBuffer;
+    private long[] due;
+
+    public LinkEmulator(int port, String serverName, int serverPort)
+    {
+        this.port = port;
+        server = new InetSocketAddress(serverName, serverPort);
+        up = new Link();
+        down = new Link();
+        upstreams = new ConcurrentHashMap<SocketAddress, Upstream>();
+        registrations = new ConcurrentLinkedQueue<Upstream>();
+        inFlight = new PriorityQueue<Pending>();
+        receiveBuffer = ByteBuffer.allocateDirect(65536);
+        due = new long[2];
+        setDaemon(true);
+    }
+
+    // client to server direction
+    public Link getUp()
+    {
+        return up;
+    }
+
+    // server to client direction
+    public Link getDown()
+    {
+        return down;
+    }
+
+    public boolean setOption(String flag, String value)
+    {
+        if(flag.startsWith("-up-"))
+            return up.setOption(flag.substring(4), value);
+        if(flag.startsWith("-down-"))
+            return down.setOption(flag.substring(6), value);
+        if(!flag.startsWith("-"))
+            return false;
+        return up.setOption(flag.substring(1), value) && down.setOption(flag.substring(1), value);
+    }
+
+    public void open() throws IOException
+    {
+        selector = Selector.open();
+
+        UDPChannel = DatagramChannel.open();
+        UDPChannel.setOption(StandardSocketOptions.SO_RCVBUF, FastServer.SOCKET_BUFFER);
+        UDPChannel.bind(new InetSocketAddress(port));
+        UDPChannel.configureBlocking(false);
+        UDPChannel.register(selector, SelectionKey.OP_READ);
+
+        // port 0 picks a free one, and tcp
+        // shares it like on the server
+        port = ((InetSocketAddress) UDPChannel.getLocalAddress()).getPort();
+        TCPChannel = ServerSocketChannel.open();
+        TCPChannel.bind(new InetSocketAddress(port));
+        TCPChannel.configureBlocking(false);
+        TCPChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    public void stopThread()
+    {
+        runThread = false;
+        selector.wakeup();
+    }
+
+    public void run()
+    {
+        runThread = true;
+        long lastSweep = System.currentTimeMillis();
+
+        while(runThread) {
+            try {
+                // sleep until the next datagram is due
+                Pending next = inFlight.peek();
+                if(next == null) {
+                    selector.select(IDLE_TIMEOUT);
+                } else {
+                    long wait = next.due - System.nanoTime();
+                    if(wait <= 0)
+                        selector.selectNow();
+                    else
+                        selector.select(Math.max(1, wait / 1000000));
+                }
+
+                // sockets set up by the tcp relays, before
+                // any datagram that may depend on them
+                Upstream registered;
+                while((registered = registrations.poll()) != null) {
+                    registered.channel.register(selector, SelectionKey.OP_READ, registered);
+                    Upstream old = upstreams.put(registered.client, registered);
+                    if(old != null && old != registered)
+                        old.channel.close();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid())
+                        continue;
+
+                    if(key.isAcceptable())
+                        acceptClient();
+                    else if(key.channel() == UDPChannel)
+                        receiveFromClients();
+                    else
+                        receiveFromServer((Upstream) key.attachment());
+                }
+
+                release(System.nanoTime());
+
+                long now = System.currentTimeMillis();
+                if(now - lastSweep > IDLE_TIMEOUT) {
+                    closeIdle(now);
+                    lastSweep = now;
+                }
+            } catch (IOException e) {
+                if(runThread)
+                    System.out.println("[Link] " + e.getMessage());
+            }
+        }
+        close();
+    }
+
+    private void close()
+    {
+        try {
+            for(Upstream upstream : upstreams.values())
+                upstream.channel.close();
+            TCPChannel.close();
+            UDPChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            System.out.println("[Link] Socket close error");
+        }
+    }
+
+    private void receiveFromClients() throws IOException
+    {
+        while(true) {
+            receiveBuffer.clear();
+            SocketAddress from = UDPChannel.receive(receiveBuffer);
+            if(from == null)
+                return;
+
+            Upstream upstream = upstreams.get(from);
+            if(upstream == null) {
+                // a plain client, the server matches
+                // it by host instead of port
+                upstream = openUpstream(from);
+                upstream.channel.register(selector, SelectionKey.OP_READ, upstream);
+                upstreams.put(from, upstream);
+            }
+            upstream.lastActive = System.currentTimeMillis();
+            enqueue(up, upstream.channel, server);
+        }
+    }
+
+    private void receiveFromServer(Upstream upstream) throws IOException
+    {
+        while(true) {
+            receiveBuffer.clear();
+            if(upstream.channel.receive(receiveBuffer) == null)
+                return;
+            upstream.lastActive = System.currentTimeMillis();
+            enqueue(down, UDPChannel, upstream.client);
+        }
+    }
+
+    private void enqueue(Link link, DatagramChannel channel, SocketAddress target)
+    {
+        receiveBuffer.flip();
+        int length = receiveBuffer.remaining();
+        int n = link.admit(System.nanoTime(), length, due);
+        if(n == 0)
+            return;
+
+        byte[] data = new byte[length];
+        receiveBuffer.get(data);
+        link.damage(data);
+        for(int i = 0; i < n; i++) {
+            Pending pending = new Pending();
+            pending.due = due[i];
+            pending.order = order++;
+            pending.data = data;
+            pending.channel = channel;
+            pending.target = target;
+            pending.link = link;
+            inFlight.add(pending);
+        }
+    }
+
+    private void release(long now) throws IOException
+    {
+        while(!inFlight.isEmpty() && inFlight.peek().due <= now) {
+            Pending pending = inFlight.poll();
+            if(!pending.channel.isOpen())
+                continue;
+            pending.channel.send(ByteBuffer.wrap(pending.data), pending.target);
+            pending.link.delivered++;
+        }
+    }
+
+    private void closeIdle(long now) throws IOException
+    {
+        Iterator<Upstream> it = upstreams.values().iterator();
+        while(it.hasNext()) {
+            Upstream upstream = it.next();
+            if(now - upstream.lastActive > IDLE_TIMEOUT) {
+                upstream.channel.close();
+                it.remove();
+            }
+        }
+    }
+
+    private Upstream openUpstream(SocketAddress client) throws IOException
+    {
+        Upstream upstream = new Upstream();
+        upstream.client = client;
+        upstream.channel = DatagramChannel.open();
+        upstream.channel.setOption(StandardSocketOptions.SO_RCVBUF, FastServer.SOCKET_BUFFER);
+        upstream.channel.bind(new InetSocketAddress(0));
+        upstream.channel.configureBlocking(false);
+        upstream.lastActive = System.currentTimeMillis();
+        return upstream;
+    }
+
+    private void acceptClient() throws IOException
+    {
+        SocketChannel accepted = TCPChannel.accept();
+        if(accepted == null)
+            return;
+
+        // a pair of blocking copy threads
+        // per control connection
+        final Socket client = accepted.socket();
+        accepted.configureBlocking(true);
+        final Socket toServer = new Socket();
+        try {
+            toServer.connect(server);
+            client.setTcpNoDelay(true);
+            toServer.setTcpNoDelay(true);
+        } catch (IOException e) {
+            System.out.println("[Link] Server connection error: " + e.getMessage());
+            client.close();
+            toServer.close();
+            return;
+        }
+
+        Thread request = new Thread() {
+            public void run() {
+                try {
+                    relayHandshake(client, toServer);
+                    copy(client, toServer);
+                } catch (IOException e) {
+                    // either side closed
+                }
+                closeQuietly(toServer);
+            }
+        };
+        Thread reply = new Thread() {
+            public void run() {
+                try {
+                    copy(toServer, client);
+                } catch (IOException e) {
+                    // either side closed
+                }
+                closeQuietly(client);
+            }
+        };
+        request.setDaemon(true);
+        reply.setDaemon(true);
+        request.start();
+        reply.start();
+    }
+
+    private void relayHandshake(Socket client, Socket toServer) throws IOException
+    {
+        // clients write the file name and any
+        // extensions at once, and the server
+        // expects them in one read as well
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        DataOutputStream requestData = new DataOutputStream(request);
+        requestData.writeUTF(in.readUTF());
+
+        if(in.available() >= 4) {
+            int magic = in.readInt();
+            if(magic == HandshakeOptions.MAGIC) {
+                HandshakeOptions options = HandshakeOptions.readRequest(in);
+                int clientPort = options.getParam(HandshakeOptions.PARAM_UDP_PORT, -1);
+                if(clientPort >= 0) {
+                    // point the server at our socket for
+                    // this client instead, the same one for
+                    // transfers sharing a client socket
+                    InetSocketAddress address = new InetSocketAddress(client.getInetAddress(), clientPort);
+                    Upstream upstream;
+                    synchronized(upstreams) {
+                        upstream = upstreams.get(address);
+                        if(upstream == null || !upstream.channel.isOpen()) {
+                            upstream = openUpstream(address);
+                            upstreams.put(address, upstream);
+                            registrations.add(upstream);
+                            selector.wakeup();
+                        }
+                        upstream.lastActive = System.currentTimeMillis();
+                    }
+                    options.setParam(HandshakeOptions.PARAM_UDP_PORT,
+                        upstream.channel.socket().getLocalPort());
+                }
+                options.writeRequest(requestData);
+            } else {
+                requestData.writeInt(magic);
+            }
+        }
+        while(in.available() > 0)
+            requestData.write(in.read());
+
+        toServer.getOutputStream().write(request.toByteArray());
+    }
+
+    private static void copy(Socket from, Socket to) throws IOException
+    {
+        InputStream in = from.getInputStream();
+        OutputStream out = to.getOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while((n = in.read(buffer)) >= 0)
+            out.write(buffer, 0, n);
+    }
+
+    private static void closeQuietly(Socket socket)
+    {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 3) {
+            System.out.println("usage: java LinkEmulator port serverhost serverport [options]");
+            System.out.println("options: -loss p -delay ms -jitter ms -reorder p -duplicate p -corrupt p");
+            System.out.println("         -rate bytes -queue ms");
+            System.out.println("         each optionally prefixed with up- or down-, e.g. -down-loss 0.05");
+            System.exit(0);
+        }
+
+        LinkEmulator emulator = new LinkEmulator(Integer.parseInt(args[0]), args[1], Integer.parseInt(args[2]));
+        for(int i = 3; i + 1 < args.length; i += 2) {
+            if(!emulator.setOption(args[i], args[i + 1])) {
+                System.out.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        emulator.open();
+        System.out.println("[Link] Relaying port " + emulator.getPort() + " to " + args[1] + ":" + args[2]);
+        System.out.println("[Link] up:   " + emulator.getUp());
+        System.out.println("[Link] down: " + emulator.getDown());
+        emulator.setDaemon(false);
+        emulator.start();
+    }
+}
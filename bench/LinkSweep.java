@@ -0,0 +1,159 @@
+/* Class: LinkSweep
+ *
+ * Sweeps window size and loss rate over
+ * an emulated link on loopback: a
+ * FastServer runs in a child process, a
+ * LinkEmulator relays between it and the
+ * client, and every configuration sends
+ * the same file
+ * Reports goodput, retransmissions and
+ * the p99 rtt from the client's
+ * TransferMetrics, and the datagrams the
+ * link lost each way
+ *
+ * usage: java LinkSweep [-windows 10,100,1000] [-losses 0,0.01,0.05]
+ *                       [-size 10M] [-runs n] [-sack] [-cc reno|cubic] [-pace]
+ *                       [-fec ratio]
+ *                       [link options]
+ * link options are those of LinkEmulator,
+ * the swept loss applies to both directions
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class LinkSweep
+{
+    public static void main(String[] args) throws Exception
+    {
+        int[] windows = {10, 100, 1000};
+        double[] losses = {0, 0.01, 0.05};
+        long size = Bench.parseSize("10M");
+        int runs = 1;
+        boolean sack = false;
+        boolean pace = false;
+        double fec = 0;
+        String cc = null;
+        ArrayList<String> linkOptions = new ArrayList<String>();
+
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-windows")) {
+                String[] values = args[++i].split(",");
+                windows = new int[values.length];
+                for(int j = 0; j < values.length; j++)
+                    windows[j] = Integer.parseInt(values[j]);
+            } else if(args[i].equals("-losses")) {
+                String[] values = args[++i].split(",");
+                losses = new double[values.length];
+                for(int j = 0; j < values.length; j++)
+                    losses[j] = Double.parseDouble(values[j]);
+            } else if(args[i].equals("-size")) {
+                size = Bench.parseSize(args[++i]);
+            } else if(args[i].equals("-runs")) {
+                runs = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("-sack")) {
+                sack = true;
+            } else if(args[i].equals("-fec")) {
+                fec = Double.parseDouble(args[++i]);
+            } else if(args[i].equals("-pace")) {
+                pace = true;
+            } else if(args[i].equals("-cc")) {
+                cc = args[++i];
+            } else {
+                linkOptions.add(args[i]);
+                linkOptions.add(args[++i]);
+            }
+        }
+
+        // the server's window has to cover the
+        // largest one the client will use
+        int maxWindow = 0;
+        for(int w : windows)
+            maxWindow = Math.max(maxWindow, w);
+        Path serverDir = Files.createTempDirectory("bench-server");
+        int serverPort = TransferBench.freePort();
+        Process server = TransferBench.startServer(serverDir, serverPort, maxWindow);
+
+        LinkEmulator link = new LinkEmulator(0, "localhost", serverPort);
+        for(int i = 0; i < linkOptions.size(); i += 2) {
+            if(!link.setOption(linkOptions.get(i), linkOptions.get(i + 1))) {
+                server.destroy();
+                throw new IllegalArgumentException("Unknown option: " + linkOptions.get(i));
+            }
+        }
+        link.open();
+        link.start();
+
+        String name = "sweep-" + size + ".bin";
+        File file = new File(name);
+        TransferBench.createFile(file, size);
+        long segments = Math.max(1, (size + Segment.MAX_PAYLOAD_SIZE - 1) / Segment.MAX_PAYLOAD_SIZE);
+
+        System.out.println();
+        System.out.printf("Link sweep (%s, runs %d%s%s%s%s)%n", TransferBench.formatSize(size), runs,
+            sack ? ", sack" : "", cc != null ? ", " + cc : "", pace ? ", paced" : "",
+            fec > 0 ? ", fec " + fec : "");
+        System.out.println("up:   " + link.getUp());
+        System.out.println("down: " + link.getDown());
+        System.out.printf("%8s %8s %10s %10s %12s %10s %10s %10s %10s%n",
+            "window", "loss", "time ms", "MB/s", "retransmits", "retx %", "rtt p99", "lost up", "lost down");
+
+        PrintStream out = System.out;
+        try {
+            for(int window : windows) {
+                for(double loss : losses) {
+                    link.getUp().loss = loss;
+                    link.getDown().loss = loss;
+
+                    double time = 0;
+                    long retransmits = 0;
+                    double rttP99 = 0;
+                    long lostUp = 0;
+                    long lostDown = 0;
+                    for(int r = 0; r < runs; r++) {
+                        link.getUp().resetCounters();
+                        link.getDown().resetCounters();
+
+                        FastClient client = new FastClient("localhost", link.getPort(), window, 100);
+                        client.setSelectiveAck(sack);
+                        client.setPacing(pace);
+                        client.setForwardErrorCorrection(fec);
+                        if("reno".equals(cc))
+                            client.setCongestionControl(new RenoController(window));
+                        else if("cubic".equals(cc))
+                            client.setCongestionControl(new CubicController(window));
+
+                        // the client reports progress on stdout
+                        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                        long start = System.nanoTime();
+                        client.send(name);
+                        time += (System.nanoTime() - start) / 1e6;
+                        System.setOut(out);
+
+                        TransferMetrics.Snapshot metrics = client.getMetrics().snapshot();
+                        retransmits += metrics.retransmitted;
+                        rttP99 += metrics.rttP99;
+                        lostUp += link.getUp().lost + link.getUp().overflowed;
+                        lostDown += link.getDown().lost + link.getDown().overflowed;
+                        Files.deleteIfExists(serverDir.resolve(name));
+                    }
+
+                    time /= runs;
+                    System.out.printf("%8d %8.3f %10.1f %10.2f %12d %10.2f %10.2f %10d %10d%n",
+                        window, loss, time, size / 1048576.0 / (time / 1000),
+                        retransmits / runs, 100.0 * retransmits / runs / segments,
+                        rttP99 / runs, lostUp / runs, lostDown / runs);
+                }
+            }
+        } finally {
+            System.setOut(out);
+            file.delete();
+            link.stopThread();
+            server.destroy();
+            server.waitFor();
+            Files.deleteIfExists(serverDir.resolve("server.log"));
+            Files.deleteIfExists(serverDir);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/* Class: SegmentBench
+ *
+ * Benchmarks the Segment codec: encoding
+ * with getBytes, decoding with setBytes
+ * and building a segment from a received
+ * DatagramPacket, for full and ack sized
+ * segments, and the views the send and
+ * ack paths reuse instead
+ */
+
+import java.net.*;
+
+public class SegmentBench
+{
+    public static void main(String[] args) throws Exception
+    {
+        final Segment full = new Segment(1, new byte[Segment.MAX_PAYLOAD_SIZE]);
+        final Segment ack = new Segment(1);
+        final byte[] fullBytes = full.getBytes();
+        final byte[] ackBytes = ack.getBytes();
+        final Segment target = new Segment();
+        final DatagramPacket fullPacket = new DatagramPacket(fullBytes, fullBytes.length);
+        final DatagramPacket ackPacket = new DatagramPacket(ackBytes, ackBytes.length);
+
+        Bench.header("Segment codec");
+
+        Bench.micro("getBytes (1000 B payload)", 10000, new Bench.Op() {
+            public long run(int i) { return full.getBytes().length; }
+        });
+        Bench.micro("getBytes (ack)", 10000, new Bench.Op() {
+            public long run(int i) { return ack.getBytes().length; }
+        });
+        Bench.micro("setBytes (1000 B payload)", 10000, new Bench.Op() {
+            public long run(int i) { target.setBytes(fullBytes); return target.getSeqNum(); }
+        });
+        Bench.micro("setBytes (ack)", 10000, new Bench.Op() {
+            public long run(int i) { target.setBytes(ackBytes); return target.getSeqNum(); }
+        });
+        Bench.micro("Segment(DatagramPacket) (1000 B payload)", 10000, new Bench.Op() {
+            public long run(int i) { return new Segment(fullPacket).getSeqNum(); }
+        });
+        Bench.micro("Segment(DatagramPacket) (ack)", 10000, new Bench.Op() {
+            public long run(int i) { return new Segment(ackPacket).getSeqNum(); }
+        });
+        Bench.micro("wrap (1000 B payload view)", 10000, new Bench.Op() {
+            public long run(int i) { target.wrap(i & 0xFFFFFF, fullBytes, 0, Segment.MAX_PAYLOAD_SIZE); return target.getLength(); }
+        });
+        Bench.micro("setBytes view (ack)", 10000, new Bench.Op() {
+            public long run(int i) { target.setBytes(ackBytes, ackBytes.length); return target.getSeqNum(); }
+        });
+    }
+}
@@ -0,0 +1,226 @@
+/* Class: TransferBench
+ *
+ * Benchmarks whole file transfers over
+ * loopback: a FastServer runs in a child
+ * process, and each run sends a freshly
+ * generated file with a new FastClient
+ * Reports completion time percentiles
+ * over the runs, median throughput, and
+ * the allocation rate of the sending
+ * thread
+ *
+ * usage: java TransferBench [-window n] [-runs n] [-sack] [-zerocopy]
+ *                           [-cc reno|cubic] [-stripes n] [-segment bytes]
+ *                           [-probe] [-pace] [size ...]
+ * sizes take K, M and G suffixes, e.g. 100K 4G
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class TransferBench
+{
+    public static void main(String[] args) throws Exception
+    {
+        int window = 100;
+        int runs = 5;
+        boolean sack = false;
+        boolean zeroCopy = false;
+        String cc = null;
+        int stripes = 1;
+        int segmentSize = 0;
+        boolean probe = false;
+        boolean pace = false;
+        ArrayList<Long> sizes = new ArrayList<Long>();
+
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-window"))
+                window = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-runs"))
+                runs = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-sack"))
+                sack = true;
+            else if(args[i].equals("-zerocopy"))
+                zeroCopy = true;
+            else if(args[i].equals("-cc"))
+                cc = args[++i];
+            else if(args[i].equals("-stripes"))
+                stripes = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-segment"))
+                segmentSize = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-probe"))
+                probe = true;
+            else if(args[i].equals("-pace"))
+                pace = true;
+            else
+                sizes.add(Bench.parseSize(args[i]));
+        }
+        if(sizes.isEmpty()) {
+            sizes.add(Bench.parseSize("100K"));
+            sizes.add(Bench.parseSize("10M"));
+        }
+
+        // server in its own directory, so it does
+        // not overwrite the files being sent
+        Path serverDir = Files.createTempDirectory("bench-server");
+        int port = freePort();
+        Process server = startServer(serverDir, port, window);
+
+        System.out.println();
+        System.out.printf("Loopback transfer (window %d, runs %d%s%s%s%s%s%s%s)%n", window, runs,
+            sack ? ", sack" : "", zeroCopy ? ", zero-copy" : "", cc != null ? ", " + cc : "",
+            stripes > 1 ? ", " + stripes + " stripes" : "",
+            segmentSize > 0 ? ", segment " + segmentSize : "", probe ? ", probe" : "",
+            pace ? ", paced" : "");
+        System.out.printf("%-12s %10s %10s %10s %12s %14s %10s%n",
+            "size", "p50 ms", "p90 ms", "p99 ms", "MB/s", "alloc MB/s", "srtt ms");
+
+        PrintStream out = System.out;
+        try {
+            for(long size : sizes) {
+                String name = "bench-" + size + ".bin";
+                File file = new File(name);
+                createFile(file, size);
+
+                double[] times = new double[runs];
+                long alloc = 0;
+                double srtt = 0;
+                String pacing = null;
+                for(int r = 0; r < runs; r++) {
+                    if(stripes > 1) {
+                        // stripes send on their own threads, so
+                        // allocation is not measured
+                        StripedClient striped = new StripedClient("localhost", port, window, 100, stripes);
+                        striped.setSelectiveAck(sack);
+                        striped.setZeroCopy(zeroCopy);
+                        striped.setPathMtuProbe(probe);
+                        if(segmentSize > 0)
+                            striped.setSegmentSize(segmentSize);
+
+                        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                        long start = System.nanoTime();
+                        striped.send(name);
+                        times[r] = (System.nanoTime() - start) / 1e6;
+                        System.setOut(out);
+
+                        srtt = striped.getClients()[0].getRttEstimator().getSrtt();
+                        Files.deleteIfExists(serverDir.resolve(name));
+                        continue;
+                    }
+
+                    FastClient client = new FastClient("localhost", port, window, 100);
+                    client.setSelectiveAck(sack);
+                    client.setZeroCopy(zeroCopy);
+                    client.setPathMtuProbe(probe);
+                    client.setPacing(pace);
+                    if(segmentSize > 0)
+                        client.setSegmentSize(segmentSize);
+                    if("reno".equals(cc))
+                        client.setCongestionControl(new RenoController(window));
+                    else if("cubic".equals(cc))
+                        client.setCongestionControl(new CubicController(window));
+
+                    // the client reports progress on stdout
+                    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                    long allocStart = Bench.allocatedBytes();
+                    long start = System.nanoTime();
+                    client.send(name);
+                    times[r] = (System.nanoTime() - start) / 1e6;
+                    alloc += Bench.allocatedBytes() - allocStart;
+                    System.setOut(out);
+
+                    srtt = client.getRttEstimator().getSrtt();
+                    if(pace)
+                        pacing = client.getPacer().toString();
+                    Files.deleteIfExists(serverDir.resolve(name));
+                }
+                file.delete();
+
+                double total = 0;
+                for(double t : times)
+                    total += t;
+                Arrays.sort(times);
+                double median = Bench.percentile(times, 50);
+                System.out.printf("%-12s %10.1f %10.1f %10.1f %12.1f %14.1f %10.2f%n",
+                    formatSize(size), median, Bench.percentile(times, 90), Bench.percentile(times, 99),
+                    size / 1048576.0 / (median / 1000), alloc / 1048576.0 / (total / 1000), srtt);
+                if(pacing != null)
+                    System.out.printf("%-12s %s (last run)%n", "", pacing);
+            }
+        } finally {
+            System.setOut(out);
+            server.destroy();
+            server.waitFor();
+            Files.deleteIfExists(serverDir.resolve("server.log"));
+            Files.deleteIfExists(serverDir);
+        }
+    }
+
+    static Process startServer(Path dir, int port, int window) throws Exception
+    {
+        // the class path may be relative to our
+        // directory, not the server's
+        StringBuilder classPath = new StringBuilder();
+        for(String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if(classPath.length() > 0)
+                classPath.append(File.pathSeparator);
+            classPath.append(new File(entry).getAbsolutePath());
+        }
+
+        ProcessBuilder builder = new ProcessBuilder("java", "-cp",
+            classPath.toString(), "FastServer", "" + port, "" + window);
+        builder.directory(dir.toFile());
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(dir.resolve("server.log").toFile());
+        Process server = builder.start();
+
+        // wait for the server to listen
+        long end = System.currentTimeMillis() + 10000;
+        while(System.currentTimeMillis() < end) {
+            if(new String(Files.readAllBytes(dir.resolve("server.log"))).contains("Ready"))
+                return server;
+            Thread.sleep(50);
+        }
+        server.destroy();
+        throw new IOException("FastServer did not start");
+    }
+
+    static void createFile(File file, long size) throws IOException
+    {
+        // random contents, written in chunks so
+        // multi-GB files do not need the heap
+        Random random = new Random(size);
+        byte[] chunk = new byte[1 << 20];
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            long left = size;
+            while(left > 0) {
+                random.nextBytes(chunk);
+                int n = (int) Math.min(chunk.length, left);
+                out.write(chunk, 0, n);
+                left -= n;
+            }
+        }
+    }
+
+    static int freePort() throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static String formatSize(long size)
+    {
+        if(size >= 1L << 30 && size % (1L << 30) == 0)
+            return (size >> 30) + "G";
+        if(size >= 1 << 20 && size % (1 << 20) == 0)
+            return (size >> 20) + "M";
+        if(size >= 1 << 10 && size % (1 << 10) == 0)
+            return (size >> 10) + "K";
+        return size + "B";
+    }
+}
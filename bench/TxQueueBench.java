@@ -0,0 +1,156 @@
+/* Class: TxQueueBench
+ *
+ * Benchmarks the TxQueue window at a
+ * range of window sizes, always kept
+ * full as on a busy sender:
+ * sliding the window with remove and
+ * add, looking nodes up with getNode,
+ * and sliding it through acknowledge
+ * as AckReceive does, with new nodes
+ * and with the removed ones reused
+ * Then the same window shared by a
+ * sender, an ack and a timer thread,
+ * as on a busy client, reported as
+ * segments through the window per second
+ *
+ * usage: java TxQueueBench [window ...]
+ */
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class TxQueueBench
+{
+    public static void main(String[] args) throws Exception
+    {
+        int[] windows = {10, 100, 1000, 10000, 100000};
+        if(args.length > 0) {
+            windows = new int[args.length];
+            for(int i = 0; i < args.length; i++)
+                windows[i] = Integer.parseInt(args[i]);
+        }
+
+        Bench.header("TxQueue operations");
+        for(int w : windows)
+            run(w);
+        for(int w : windows)
+            runThreaded(w);
+    }
+
+    private static void run(final int window) throws Exception
+    {
+        final TxQueue queue = new TxQueue(window);
+        // next sequence number to add, the head
+        // is always next - window
+        final int[] next = {0};
+        for(; next[0] < window; next[0]++)
+            queue.add(new Segment(next[0]));
+
+        Bench.micro("remove+add (window " + window + ")", 10000, new Bench.Op() {
+            public long run(int i) throws Exception {
+                Segment seg = queue.remove();
+                queue.add(new Segment(next[0]++));
+                return seg.getSeqNum();
+            }
+        });
+
+        Bench.micro("getNode (window " + window + ")", 10000, new Bench.Op() {
+            public long run(int i) {
+                // spread lookups over the whole window
+                int seq = next[0] - window + (int) ((i * 2654435761L) % window);
+                return queue.getNode(seq).getStatus();
+            }
+        });
+
+        final int[] start = new int[1];
+        final int[] end = new int[1];
+        final ArrayList<TxQueueNode> acked = new ArrayList<TxQueueNode>();
+        Bench.micro("acknowledge+add (window " + window + ")", 10000, new Bench.Op() {
+            public long run(int i) throws Exception {
+                start[0] = next[0] - window;
+                end[0] = start[0] + 1;
+                int removed = queue.acknowledge(start, end, 1, acked);
+                acked.clear();
+                queue.add(new Segment(next[0]++));
+                return removed;
+            }
+        });
+
+        // the same, reusing the removed nodes
+        // as FastClient does
+        Bench.micro("acknowledge+addNode (window " + window + ")", 10000, new Bench.Op() {
+            public long run(int i) throws Exception {
+                start[0] = next[0] - window;
+                end[0] = start[0] + 1;
+                int removed = queue.acknowledge(start, end, 1, acked);
+                acked.clear();
+                queue.addNode(next[0]++).setStatus(TxQueueNode.SENT);
+                return removed;
+            }
+        });
+    }
+
+    private static void runThreaded(final int window) throws Exception
+    {
+        // the sender adds each segment once there
+        // is room, the ack thread acknowledges
+        // everything added so far, and the timer
+        // thread looks nodes up in between
+        final TxQueue queue = new TxQueue(window);
+        final int segments = 2000000;
+        final AtomicInteger added = new AtomicInteger();
+        final AtomicInteger acked = new AtomicInteger();
+
+        Thread ack = new Thread() {
+            public void run() {
+                int[] start = {0};
+                int[] end = new int[1];
+                ArrayList<TxQueueNode> nodes = new ArrayList<TxQueueNode>();
+                int done = 0;
+                while(done < segments) {
+                    int upTo = added.get();
+                    if(upTo == done) {
+                        Thread.onSpinWait();
+                        continue;
+                    }
+                    end[0] = upTo;
+                    queue.acknowledge(start, end, 1, nodes);
+                    nodes.clear();
+                    done = upTo;
+                    acked.set(done);
+                }
+            }
+        };
+        Thread timer = new Thread() {
+            public void run() {
+                long found = 0;
+                int i = 0;
+                while(true) {
+                    int from = acked.get();
+                    int to = added.get();
+                    if(from >= segments)
+                        break;
+                    if(to > from && queue.getNode(from + (i++ % (to - from))) != null)
+                        found++;
+                }
+                Bench.sink += found;
+            }
+        };
+
+        long start = System.nanoTime();
+        ack.start();
+        timer.start();
+        for(int seq = 0; seq < segments; seq++) {
+            queue.awaitNotFull(Long.MAX_VALUE);
+            queue.add(new Segment(seq));
+            queue.getNode(seq).setStatus(TxQueueNode.SENT);
+            added.set(seq + 1);
+        }
+        ack.join();
+        timer.join();
+        long time = System.nanoTime() - start;
+
+        System.out.printf("%-40s %14.0f %10s %10s %10s %10s%n",
+            "3 threads (window " + window + ")", segments * 1e9 / time, "-", "-", "-", "-");
+    }
+}
@@ -7,6 +7,20 @@
  * the associated packet status
  * is updated in the client
  * window
+ * With selective acks negotiated,
+ * each response carries a cumulative
+ * ack plus ranges, and the whole of
+ * it is applied to the window in a
+ * single pass, without a lock: this
+ * thread alone moves the window head
+ * With sessions negotiated, acks end with
+ * the session id, and those of any other
+ * session, such as an earlier transfer on
+ * the same socket, are dropped
+ * Acked nodes only leave the window once
+ * this thread is done with them, as the
+ * sender reuses them, and acks are read
+ * in place, so no ack allocates
  */
 
 import java.io.*;
@@ -17,40 +31,140 @@ public class AckReceive extends Thread
 {
     private DatagramSocket socket;
     private TxQueue window;
+    private TimerWheel timer;
+    private RttEstimator rtt;
+    private CongestionController congestion;
+    private TransferMetrics metrics;
+    private boolean selectiveAck;
+    private volatile int sessionId = -1;
     private boolean runThread;
 
-    public AckReceive(DatagramSocket socket, TxQueue window)
+    // reused for every ack, the cumulative
+    // range plus one per sack block
+    private int[] starts = new int[SackAck.MAX_BLOCKS + 1];
+    private int[] ends = new int[SackAck.MAX_BLOCKS + 1];
+    private ArrayList<TxQueueNode> acked = new ArrayList<TxQueueNode>();
+    private SackAck sack = new SackAck();
+    private Segment ack = new Segment();
+    // largest timeout a segment sent once may
+    // still be armed with
+    private long armedRto;
+
+    public AckReceive(DatagramSocket socket, TxQueue window, TimerWheel timer, RttEstimator rtt)
     {
         this.socket = socket;
         this.window = window;
+        this.timer = timer;
+        this.rtt = rtt;
+        armedRto = rtt.getRto();
+    }
+
+    public void setCongestionController(CongestionController congestion)
+    {
+        // optional, the window limit is left
+        // alone when no controller is set
+        this.congestion = congestion;
+    }
+
+    public void setMetrics(TransferMetrics metrics)
+    {
+        // optional, counts acks and rtt samples
+        this.metrics = metrics;
+    }
+
+    public void setSelectiveAck(boolean selectiveAck)
+    {
+        // set once the handshake has negotiated
+        // the ack format, before any ack arrives
+        this.selectiveAck = selectiveAck;
+    }
+
+    public void setSessionId(int id)
+    {
+        // set once the handshake has assigned it,
+        // before any segment is sent, -1 for acks
+        // without one
+        sessionId = id;
     }
 
     public void updateAck(int seqNo)
     {
-        // sets the node status in window
-        // from sent to acknowledged
-        TxQueueNode node = window.getNode(seqNo);
-        node.setStatus(TxQueueNode.ACKNOWLEDGED);
+        // a plain ack covers a single segment
+        starts[0] = seqNo;
+        ends[0] = seqNo + 1;
+        applyAcks(1);
     }
 
-    public void updateWindow()
+    public void updateAck(SackAck ack)
     {
-        // updates window base until an
-        // unacked packet is found
-        // window can only be updated if
-        // base node is acknowledged
-        boolean baseIsAcked = true;
-        while(baseIsAcked) {
-            TxQueueNode node = window.getHeadNode();
-            if(node != null && node.getStatus() == TxQueueNode.ACKNOWLEDGED) {
-                try {
-                    window.remove();
-                } catch (Exception e) {
-                    System.out.println(e.getMessage());
-                }
-            } else {
-                baseIsAcked = false;
+        // the cumulative ack covers everything
+        // below it, followed by each block
+        starts[0] = 0;
+        ends[0] = ack.getCumAck();
+        for(int i = 0; i < ack.getBlockCount(); i++) {
+            starts[i + 1] = ack.getBlockStart(i);
+            ends[i + 1] = ack.getBlockEnd(i);
+        }
+        applyAcks(ack.getBlockCount() + 1);
+    }
+
+    private void applyAcks(int n)
+    {
+        // sets the node status in window from sent
+        // to acknowledged, and updates window base
+        // until an unacked packet is found, in one
+        // pass that never waits on the sender
+        // duplicate acks for segments that already
+        // left the window are ignored
+        window.mark(starts, ends, n, acked);
+        if(acked.isEmpty()) {
+            window.removeAcknowledged();
+            return;
+        }
+
+        long now = System.nanoTime();
+        for(int i = 0; i < acked.size(); i++) {
+            TxQueueNode node = acked.get(i);
+            // only packets sent once give a valid
+            // rtt sample (Karn's rule)
+            if(node.transmissions == 1) {
+                double sample = (now - node.sentTime) / 1000000.0;
+                rtt.sample(sample);
+                if(metrics != null)
+                    metrics.onRttSample(sample);
             }
+            if(metrics != null)
+                metrics.onAck(node.seg.getPayloadLength());
+            // acked packets leave the timer wheel
+            // straight away
+            timer.cancel(node);
+            if(congestion != null)
+                congestion.onAck(node.seg.getSeqNum(), rtt.getSrtt());
+        }
+        acked.clear();
+        capTimers();
+        // off the wheel, the nodes can be
+        // reused once removed
+        window.removeAcknowledged();
+
+        // let the controller resize the window
+        if(congestion != null)
+            window.setLimit(congestion.getWindow());
+    }
+
+    private void capTimers()
+    {
+        // once the timeout drops below half the
+        // largest one segments in flight may be
+        // armed with, their timers are brought
+        // forward, so a spike in rtt does not
+        // hold back the resend of later losses
+        long rto = rtt.getRto();
+        if(rto * 2 < armedRto) {
+            timer.cap(rto, null);
+            armedRto = rto;
+        } else if(rto > armedRto) {
+            armedRto = rto;
         }
     }
 
@@ -64,27 +178,39 @@ public class AckReceive extends Thread
     public void run()
     {
         runThread = true;
-        // create receiving packet
-        byte[] receiveData = new byte[4];
+        // create receiving packet, large enough
+        // for an ack with sack blocks
+        byte[] receiveData = new byte[SackAck.MAX_SIZE + Segment.SESSION_ID_SIZE];
         DatagramPacket pkt = new DatagramPacket(receiveData, receiveData.length);
 
         while(runThread) {
             // wait for server response
             try {
+                pkt.setLength(receiveData.length);
                 socket.receive(pkt);
-                // if packet received, and
-                // correct ACK, break loop
-                Segment ack = new Segment(pkt);
-                int ackNo = ack.getSeqNum();
-                // update ack in queue
-                updateAck(ackNo);
-                // update window base
-                updateWindow();
+                int length = pkt.getLength();
+                int id = sessionId;
+                if(id >= 0) {
+                    // the id follows the ack, in the
+                    // byte order of the header
+                    length -= Segment.SESSION_ID_SIZE;
+                    if(length < Segment.HEADER_SIZE || Segment.getHeader(receiveData, length) != id)
+                        continue;
+                }
+                if(selectiveAck) {
+                    sack.setBytes(pkt.getData(), length);
+                    updateAck(sack);
+                } else {
+                    ack.setBytes(receiveData, length);
+                    // update ack in queue, and
+                    // window base
+                    updateAck(ack.getSeqNum());
+                }
             } catch (Exception e) {
                 // a socket closed exception is expected
                 // so only print error if different
                 // exception
-                if(!e.getMessage().equals("Socket closed"))
+                if(runThread && !"Socket closed".equals(e.getMessage()))
                     System.out.println("Ack Receive Error: "+e.getMessage());
             }
         }
@@ -0,0 +1,175 @@
+/* Class: CheckpointJournal
+ *
+ * This class keeps the append-only journal
+ * of the segment ranges of a file that are
+ * safely on disk, for resumed transfers
+ * (HandshakeOptions.RESUME)
+ * The journal sits next to the file, with
+ * JOURNAL_SUFFIX appended to its name:
+ *
+ *   int    MAGIC
+ *   int    payload size of the segments
+ *   (long start, long end) for each range
+ *
+ * Ranges are recorded as the receive window
+ * slides and written out in batches by
+ * checkpoint(), which forces the file to
+ * disk before the ranges that cover it, so
+ * the journal never claims data a crash
+ * could lose
+ * A checkpoint can also be split in two,
+ * takePending() on the thread recording the
+ * ranges and write() on another one, so the
+ * forces do not hold up the recording
+ * A torn record at the end is ignored
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+public class CheckpointJournal
+{
+    public final static int MAGIC = 0x53524a31; // "SRJ1"
+    public final static String JOURNAL_SUFFIX = ".journal";
+    public final static int HEADER_SIZE = 8; // bytes
+    public final static int RECORD_SIZE = 16; // bytes
+
+    private Path path;
+    private FileChannel journal;
+    private ByteBuffer pending;
+
+    // last range recorded, extended while
+    // segments follow on from it
+    private long start = -1;
+    private long end = -1;
+
+    public CheckpointJournal(Path path, int payloadSize, boolean append) throws IOException
+    {
+        // a new journal starts with its header,
+        // an existing one is added to
+        this.path = path;
+        pending = ByteBuffer.allocate(64 * RECORD_SIZE);
+        if(append) {
+            journal = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } else {
+            journal = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+            pending.putInt(MAGIC);
+            pending.putInt(payloadSize);
+        }
+    }
+
+    public static Path pathFor(Path file)
+    {
+        return file.resolveSibling(file.getFileName() + JOURNAL_SUFFIX);
+    }
+
+    public static ResumeRanges load(Path path, int payloadSize) throws IOException
+    {
+        // ranges in the journal, empty if there is
+        // none or it was kept for another segment
+        // size, which the resumed segments would
+        // not line up with
+        ResumeRanges done = new ResumeRanges();
+        if(!Files.exists(path))
+            return done;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if(in.readInt() != MAGIC || in.readInt() != payloadSize)
+                return done;
+            while(true) {
+                long rangeStart = in.readLong();
+                done.add(rangeStart, in.readLong());
+            }
+        } catch (EOFException e) {
+            // end of journal, or a torn record
+        }
+        return done;
+    }
+
+    public void record(long segment, long count)
+    {
+        // records count segments from segment on
+        // as written, to go out at the next
+        // checkpoint
+        if(segment == end) {
+            end += count;
+            return;
+        }
+        addPending();
+        start = segment;
+        end = segment + count;
+    }
+
+    public boolean hasPending()
+    {
+        return start >= 0 || pending.position() > 0;
+    }
+
+    public void checkpoint(FileChannel file) throws IOException
+    {
+        // forces the file, then appends and
+        // forces the ranges recorded since the
+        // last checkpoint
+        ByteBuffer ranges = takePending();
+        if(ranges != null)
+            write(file, ranges);
+    }
+
+    public ByteBuffer takePending()
+    {
+        // the ranges recorded since the last
+        // checkpoint, ready for write(), or null
+        // if there are none
+        if(!hasPending())
+            return null;
+        addPending();
+        ByteBuffer ranges = pending;
+        ranges.flip();
+        pending = ByteBuffer.allocate(ranges.capacity());
+        return ranges;
+    }
+
+    public void write(FileChannel file, ByteBuffer ranges) throws IOException
+    {
+        // forces the file, then appends and
+        // forces ranges taken from takePending()
+        // one write() at a time, in the order
+        // they were taken
+        file.force(false);
+        while(ranges.hasRemaining())
+            journal.write(ranges);
+        journal.force(false);
+    }
+
+    public void close() throws IOException
+    {
+        journal.close();
+    }
+
+    public void delete() throws IOException
+    {
+        // the transfer completed, there is
+        // nothing left to resume
+        journal.close();
+        Files.deleteIfExists(path);
+    }
+
+    private void addPending()
+    {
+        if(start < 0)
+            return;
+        if(pending.remaining() < RECORD_SIZE) {
+            ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        pending.putLong(start);
+        pending.putLong(end);
+        start = -1;
+        end = -1;
+    }
+}
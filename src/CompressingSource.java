@@ -0,0 +1,201 @@
+/* Class: CompressingSource
+ *
+ * This class compresses segment payloads
+ * on its own thread, ahead of the sender
+ * (HandshakeOptions.COMPRESS)
+ * Each payload is deflated on its own, so
+ * every segment can be inflated, and
+ * written at its offset, as it arrives
+ * Payloads that do not shrink by at least
+ * 1 / MIN_SAVING are sent raw, and after
+ * each one that does not, compression is
+ * skipped for twice as many payloads as
+ * before, up to MAX_SKIP, so incompressible
+ * files cost little time to compress
+ *
+ * next() returns the raw payload, and the
+ * payload to send is read after it with
+ * getWirePayload()
+ * close() stops the thread and waits for it
+ * before closing the source it reads
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+public class CompressingSource extends Thread implements SegmentSource
+{
+    public final static int READ_AHEAD = 64; // segments
+    public final static int MIN_SAVING = 16; // a sixteenth of the payload
+    public final static int MAX_SKIP = 64; // segments
+
+    // a payload ready to send
+    private static class Item
+    {
+        byte[] raw;
+        byte[] wire;
+        boolean compressed;
+    }
+
+    private final static Item END = new Item();
+
+    private SegmentSource source;
+    private ArrayBlockingQueue<Item> ready;
+    private volatile IOException error;
+    private volatile boolean runThread;
+    private Item head;
+    private Item current;
+
+    // compression counters, written by the
+    // sending thread only
+    private volatile long rawBytes;
+    private volatile long wireBytes;
+    private volatile long compressedCount;
+
+    public CompressingSource(SegmentSource source)
+    {
+        this.source = source;
+        ready = new ArrayBlockingQueue<Item>(READ_AHEAD);
+        runThread = true;
+        setDaemon(true);
+    }
+
+    public boolean hasNext() throws IOException
+    {
+        if(head == null) {
+            try {
+                head = ready.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for compression");
+            }
+        }
+        if(head == END && error != null)
+            throw error;
+        return head != END;
+    }
+
+    public byte[] next() throws IOException
+    {
+        if(!hasNext())
+            throw new EOFException("No more segments");
+
+        current = head;
+        head = null;
+        rawBytes += current.raw.length;
+        wireBytes += current.wire.length;
+        if(current.compressed)
+            compressedCount++;
+        return current.raw;
+    }
+
+    public byte[] getWirePayload()
+    {
+        // the payload to send for the last
+        // one returned by next()
+        return current.wire;
+    }
+
+    public boolean isCompressed()
+    {
+        return current.compressed;
+    }
+
+    public long getRawBytes()
+    {
+        return rawBytes;
+    }
+
+    public long getWireBytes()
+    {
+        return wireBytes;
+    }
+
+    public long getCompressedCount()
+    {
+        // segments sent compressed
+        return compressedCount;
+    }
+
+    public void close() throws IOException
+    {
+        // the thread may be in the middle of a
+        // read, the source is closed once it is
+        // done
+        runThread = false;
+        interrupt();
+        boolean interrupted = false;
+        while(isAlive()) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        source.close();
+    }
+
+    public void run()
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        byte[] buffer = new byte[0];
+        int skip = 1;
+        int skipped = 0;
+
+        try {
+            while(runThread && source.hasNext()) {
+                Item item = new Item();
+                item.raw = source.next();
+                item.wire = item.raw;
+
+                if(skipped > 0) {
+                    skipped--;
+                } else {
+                    // deflate into a buffer just short of the
+                    // saving asked for, running out of room
+                    // means it is not worth it
+                    int limit = item.raw.length - item.raw.length / MIN_SAVING;
+                    if(buffer.length < limit)
+                        buffer = new byte[item.raw.length];
+                    deflater.reset();
+                    deflater.setInput(item.raw);
+                    deflater.finish();
+                    int n = deflater.deflate(buffer, 0, limit);
+                    if(deflater.finished() && n < limit) {
+                        item.wire = Arrays.copyOf(buffer, n);
+                        item.compressed = true;
+                        skip = 1;
+                    } else {
+                        skipped = skip;
+                        skip = Math.min(MAX_SKIP, skip * 2);
+                    }
+                }
+                ready.put(item);
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            // closed
+        } finally {
+            deflater.end();
+        }
+
+        // the end goes after the payloads still
+        // queued, unless closed, when nobody takes
+        // them and the queue may be full
+        if(runThread) {
+            try {
+                ready.put(END);
+                return;
+            } catch (InterruptedException e) {
+                // closed while waiting for room
+            }
+        }
+        ready.clear();
+        ready.offer(END);
+    }
+}
@@ -0,0 +1,29 @@
+/* Interface: CongestionController
+ *
+ * A congestion controller sizes the
+ * effective send window of the client
+ * at runtime
+ * It is told about every new segment
+ * sent, every segment acknowledged by
+ * AckReceive and every timeout raised
+ * by TimeoutHandler, and the window it
+ * returns is applied as the TxQueue
+ * limit
+ */
+
+public interface CongestionController
+{
+    // called when a new segment is first sent
+    public void onSend(int seqNo);
+
+    // called when a segment is acknowledged for the
+    // first time, with the current smoothed rtt in
+    // milli-seconds (0 if not yet measured)
+    public void onAck(int seqNo, double srtt);
+
+    // called when a segment times out
+    public void onTimeout(int seqNo);
+
+    // returns the current window in segments
+    public int getWindow();
+}
@@ -0,0 +1,113 @@
+/* Class: CubicController
+ *
+ * This class implements CUBIC congestion
+ * control (RFC 8312)
+ * After a loss the window follows a
+ * cubic function of the time since the
+ * loss, centred on the window at which
+ * the loss happened, so it recovers
+ * quickly on high bandwidth-delay paths
+ * while staying at least as aggressive
+ * as AIMD on short ones
+ * As in RenoController, a timeout only
+ * counts once per loss event
+ */
+
+public class CubicController implements CongestionController
+{
+    public final static int INITIAL_WINDOW = 10; // segments
+    public final static int MIN_WINDOW = 2; // segments
+
+    private final static double C = 0.4;
+    private final static double BETA = 0.7;
+
+    private int maxWindow;
+    private double cwnd;
+    private double ssthresh;
+    private double wMax;
+    private double wLastMax;
+    private double k;
+    private long epochStart;
+    private int highestSent = -1;
+    private int recover = -1;
+
+    public CubicController(int maxWindow)
+    {
+        this.maxWindow = maxWindow;
+        this.cwnd = Math.min(INITIAL_WINDOW, maxWindow);
+        this.ssthresh = maxWindow;
+    }
+
+    public synchronized void onSend(int seqNo)
+    {
+        if(seqNo > highestSent)
+            highestSent = seqNo;
+    }
+
+    public synchronized void onAck(int seqNo, double srtt)
+    {
+        if(cwnd < ssthresh) {
+            // slow start
+            cwnd = Math.min(cwnd + 1, maxWindow);
+            return;
+        }
+
+        long now = System.nanoTime();
+        if(epochStart == 0) {
+            // first ack of a congestion avoidance epoch
+            epochStart = now;
+            if(wMax < cwnd) {
+                k = 0;
+                wMax = cwnd;
+            } else {
+                k = Math.cbrt(wMax * (1 - BETA) / C);
+            }
+        }
+
+        // time since the epoch started, looking
+        // one rtt ahead as in the RFC
+        double t = (now - epochStart) / 1e9 + srtt / 1000;
+        double target = C * Math.pow(t - k, 3) + wMax;
+
+        // window an AIMD flow would have reached,
+        // CUBIC never falls below it
+        double aimd = 0;
+        if(srtt > 0)
+            aimd = wMax * BETA + (3 * (1 - BETA) / (1 + BETA)) * (t / (srtt / 1000));
+
+        if(target > cwnd)
+            cwnd = cwnd + (target - cwnd) / cwnd;
+        else
+            cwnd = cwnd + 0.01 / cwnd;
+        if(aimd > cwnd)
+            cwnd = cwnd + (aimd - cwnd) / cwnd;
+
+        cwnd = Math.min(cwnd, maxWindow);
+    }
+
+    public synchronized void onTimeout(int seqNo)
+    {
+        // segments up to recover were in flight when
+        // the current loss event began
+        if(seqNo <= recover)
+            return;
+        recover = highestSent;
+
+        // fast convergence, release bandwidth
+        // to newer flows
+        if(cwnd < wLastMax)
+            wMax = cwnd * (1 + BETA) / 2;
+        else
+            wMax = cwnd;
+        wLastMax = cwnd;
+
+        cwnd = Math.max(cwnd * BETA, MIN_WINDOW);
+        ssthresh = cwnd;
+        epochStart = 0;
+    }
+
+    public synchronized int getWindow()
+    {
+        return (int) cwnd;
+    }
+}
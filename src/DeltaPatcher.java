@@ -0,0 +1,126 @@
+/* Class: DeltaPatcher
+ *
+ * This class applies the op stream of a
+ * DeltaSource on the server, building the
+ * new file from blocks of the old copy
+ * and the literal bytes sent
+ * The stream is fed in sequence order, a
+ * segment at a time, and ops may span
+ * segments
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+public class DeltaPatcher
+{
+    private FileChannel old;
+    private FileChannel target;
+    private int blockSize;
+    private long position;
+
+    // header of the op being read, and the
+    // literal bytes it still has to come
+    private ByteBuffer op;
+    private int literalLeft;
+
+    private long copiedBytes;
+    private long literalBytes;
+
+    public DeltaPatcher(FileChannel old, FileChannel target, int blockSize)
+    {
+        // old is null when the server had no
+        // copy, the stream is then all literal
+        this.old = old;
+        this.target = target;
+        this.blockSize = blockSize;
+        op = ByteBuffer.allocate(DeltaSource.COPY_SIZE);
+    }
+
+    public long getCopiedBytes()
+    {
+        return copiedBytes;
+    }
+
+    public long getLiteralBytes()
+    {
+        return literalBytes;
+    }
+
+    public long getPosition()
+    {
+        // bytes of the new file built so far
+        return position;
+    }
+
+    public boolean isComplete()
+    {
+        // at an op boundary, where the
+        // stream may end
+        return op.position() == 0 && literalLeft == 0;
+    }
+
+    public void apply(ByteBuffer stream) throws IOException
+    {
+        // applies the next part of the stream,
+        // between position and limit
+        while(stream.hasRemaining()) {
+            if(literalLeft > 0) {
+                ByteBuffer literal = stream.duplicate();
+                literal.limit(literal.position() + Math.min(literalLeft, literal.remaining()));
+                int n = literal.remaining();
+                while(literal.hasRemaining())
+                    position += target.write(literal, position);
+                stream.position(stream.position() + n);
+                literalLeft -= n;
+                literalBytes += n;
+                continue;
+            }
+
+            // the op header, which may be split
+            // over two segments
+            if(op.position() == 0)
+                op.limit(stream.get(stream.position()) == DeltaSource.COPY
+                    ? DeltaSource.COPY_SIZE : DeltaSource.LITERAL_HEADER_SIZE);
+            while(op.hasRemaining() && stream.hasRemaining())
+                op.put(stream.get());
+            if(op.hasRemaining())
+                return;
+
+            op.flip();
+            byte type = op.get();
+            if(type == DeltaSource.COPY) {
+                copy(op.getInt(), op.getInt());
+            } else if(type == DeltaSource.LITERAL) {
+                literalLeft = op.getInt();
+                if(literalLeft <= 0)
+                    throw new IOException("Invalid delta literal length " + literalLeft);
+            } else {
+                throw new IOException("Invalid delta op " + type);
+            }
+            op.clear();
+        }
+    }
+
+    private void copy(int block, int count) throws IOException
+    {
+        // a run of blocks of the old copy, the
+        // last block of which may be short
+        long start = (long) block * blockSize;
+        if(old == null || block < 0 || count <= 0 || start >= old.size())
+            throw new IOException("Invalid delta copy of block " + block);
+        long length = Math.min((long) count * blockSize, old.size() - start);
+
+        target.position(position);
+        long done = 0;
+        while(done < length) {
+            long n = old.transferTo(start + done, length - done, target);
+            if(n <= 0)
+                throw new EOFException("Old copy shrank during delta transfer");
+            done += n;
+        }
+        position += length;
+        copiedBytes += length;
+    }
+}
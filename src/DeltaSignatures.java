@@ -0,0 +1,240 @@
+/* Class: DeltaSignatures
+ *
+ * This class holds the block signatures
+ * of the server's copy of a file, for
+ * delta transfers (HandshakeOptions.DELTA)
+ * The file is cut into blocks of one size,
+ * the last one shorter, and each block is
+ * signed with a weak rolling checksum and
+ * an MD5 digest
+ * Sent over the control connection as:
+ *
+ *   int    block size
+ *   long   file length
+ *   int    number of blocks
+ *   (int weak, 16 bytes MD5) for each block
+ *
+ * The weak checksum is the rsync one, so
+ * the client can roll it over its file a
+ * byte at a time, and only hashes windows
+ * whose weak checksum matches a block
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.security.*;
+
+public class DeltaSignatures
+{
+    public final static int MIN_BLOCK = 1024; // bytes
+    public final static int MAX_BLOCK = 64 * 1024; // bytes
+    public final static int STRONG_SIZE = 16; // bytes, MD5
+
+    private int blockSize;
+    private long length;
+    private int count;
+    private int[] weak;
+    private byte[] strong;
+
+    // blocks by weak checksum, chained through
+    // nextSame, for the client's lookups
+    private int[] heads;
+    private int[] nextSame;
+
+    public DeltaSignatures(int blockSize, long length)
+    {
+        if(blockSize <= 0)
+            throw new IllegalArgumentException("Block size must be positive");
+        if(length < 0 || (length + blockSize - 1) / blockSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid file length: " + length);
+
+        this.blockSize = blockSize;
+        this.length = length;
+        count = (int) ((length + blockSize - 1) / blockSize);
+        weak = new int[count];
+        strong = new byte[count * STRONG_SIZE];
+    }
+
+    public static int blockSize(long length)
+    {
+        // about the square root of the file size,
+        // which keeps the signatures and the cost
+        // of each changed byte both small
+        long size = (long) Math.sqrt((double) length) & ~1023L;
+        return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, size));
+    }
+
+    public static DeltaSignatures compute(FileChannel file) throws IOException
+    {
+        // signs the file in one sequential read
+        long length = file.size();
+        DeltaSignatures signatures = new DeltaSignatures(blockSize(length), length);
+        MessageDigest md5 = newDigest();
+        ByteBuffer block = ByteBuffer.allocate(signatures.blockSize);
+
+        for(int i = 0; i < signatures.count; i++) {
+            block.clear();
+            block.limit(signatures.blockLength(i));
+            long offset = (long) i * signatures.blockSize;
+            while(block.hasRemaining()) {
+                if(file.read(block, offset + block.position()) < 0)
+                    throw new EOFException("File shrank while signing it");
+            }
+            signatures.weak[i] = weak(block.array(), 0, block.limit());
+            md5.update(block.array(), 0, block.limit());
+            digest(md5, signatures.strong, i * STRONG_SIZE);
+        }
+        return signatures;
+    }
+
+    public static int weak(byte[] data, int offset, int len)
+    {
+        // rsync's checksum: the sum of the bytes in
+        // the low half, and the sum of the running
+        // sums in the high half
+        int a = 0;
+        int b = 0;
+        for(int i = 0; i < len; i++) {
+            a += data[offset + i] & 0xFF;
+            b += a;
+        }
+        return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+    }
+
+    public static int roll(int weak, int blockSize, int out, int in)
+    {
+        // the checksum of the window one byte on,
+        // out leaving it and in joining it
+        int a = (weak - out + in) & 0xFFFF;
+        int b = ((weak >>> 16) - blockSize * out + a) & 0xFFFF;
+        return (b << 16) | a;
+    }
+
+    public static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform has MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void digest(MessageDigest md5, byte[] to, int offset)
+    {
+        try {
+            md5.digest(to, offset, STRONG_SIZE);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    public int blockLength(int block)
+    {
+        return (int) Math.min(blockSize, length - (long) block * blockSize);
+    }
+
+    public int find(int checksum)
+    {
+        // first block with the weak checksum, or
+        // -1, see next() for the others
+        if(heads == null)
+            buildIndex();
+        int block = heads[mix(checksum) & (heads.length - 1)] - 1;
+        while(block >= 0 && weak[block] != checksum)
+            block = nextSame[block];
+        return block;
+    }
+
+    public int next(int block)
+    {
+        // next block with the same weak checksum
+        int checksum = weak[block];
+        block = nextSame[block];
+        while(block >= 0 && weak[block] != checksum)
+            block = nextSame[block];
+        return block;
+    }
+
+    public boolean matches(int block, byte[] digest)
+    {
+        for(int i = 0; i < STRONG_SIZE; i++) {
+            if(strong[block * STRONG_SIZE + i] != digest[i])
+                return false;
+        }
+        return true;
+    }
+
+    public void write(DataOutputStream out) throws IOException
+    {
+        out.writeInt(blockSize);
+        out.writeLong(length);
+        out.writeInt(count);
+        for(int i = 0; i < count; i++) {
+            out.writeInt(weak[i]);
+            out.write(strong, i * STRONG_SIZE, STRONG_SIZE);
+        }
+    }
+
+    public static DeltaSignatures read(DataInputStream in) throws IOException
+    {
+        int blockSize = in.readInt();
+        long length = in.readLong();
+        int count = in.readInt();
+        if(blockSize <= 0 || length < 0 || count != (length + blockSize - 1) / blockSize)
+            throw new IOException("Invalid delta signatures");
+
+        DeltaSignatures signatures = new DeltaSignatures(blockSize, length);
+        for(int i = 0; i < count; i++) {
+            signatures.weak[i] = in.readInt();
+            in.readFully(signatures.strong, i * STRONG_SIZE, STRONG_SIZE);
+        }
+        return signatures;
+    }
+
+    public int size()
+    {
+        // bytes written by write()
+        return 16 + count * (4 + STRONG_SIZE);
+    }
+
+    private void buildIndex()
+    {
+        // open hash table of chains, at least
+        // twice as many heads as blocks
+        int size = 16;
+        while(size < count * 2)
+            size *= 2;
+        heads = new int[size];
+        nextSame = new int[count];
+        for(int i = count - 1; i >= 0; i--) {
+            int slot = mix(weak[i]) & (size - 1);
+            nextSame[i] = heads[slot] - 1;
+            heads[slot] = i + 1;
+        }
+    }
+
+    private static int mix(int checksum)
+    {
+        // spreads the two 16 bit sums over
+        // the low bits used as the slot
+        int h = checksum * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,231 @@
+/* Class: DeltaSource
+ *
+ * This class serves a file as a delta
+ * against the server's copy, for delta
+ * transfers (HandshakeOptions.DELTA)
+ * It rolls the weak checksum of the
+ * DeltaSignatures over the file a byte at
+ * a time, and emits a stream of ops:
+ *
+ *   byte COPY, int block, int count
+ *   byte LITERAL, int length, the bytes
+ *
+ * which the server applies in order, see
+ * DeltaPatcher, copying runs of blocks
+ * from its copy and writing the rest
+ * The stream is served in full payloads,
+ * so it travels, and is acked, resent and
+ * checksummed, like the file itself would
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.security.*;
+
+public class DeltaSource implements SegmentSource
+{
+    public final static byte COPY = 1;
+    public final static byte LITERAL = 2;
+    public final static int COPY_SIZE = 9; // bytes
+    public final static int LITERAL_HEADER_SIZE = 5; // bytes
+    public final static int MAX_LITERAL = 256 * 1024; // bytes per literal op
+
+    private DeltaSignatures signatures;
+    private int blockSize;
+    private int payloadSize;
+    private FileInputStream in;
+    private MessageDigest md5;
+    private byte[] digest;
+
+    // file bytes from the start of the pending
+    // literal, and the window being matched
+    private byte[] data;
+    private int literalStart;
+    private int pos;
+    private int limit;
+    private boolean endOfFile;
+    private int weak;
+    private boolean rolling;
+    private boolean finished;
+
+    // run of blocks not emitted yet
+    private int copyBlock = -1;
+    private int copyCount;
+
+    // ops not served yet
+    private ByteBuffer ops;
+
+    private long literalBytes;
+    private long matchedBytes;
+
+    public DeltaSource(File file, DeltaSignatures signatures, int payloadSize) throws IOException
+    {
+        if(payloadSize <= 0)
+            throw new IllegalArgumentException("Segment size must be positive");
+
+        this.signatures = signatures;
+        this.payloadSize = payloadSize;
+        blockSize = signatures.getBlockSize();
+        in = new FileInputStream(file);
+        md5 = DeltaSignatures.newDigest();
+        digest = new byte[DeltaSignatures.STRONG_SIZE];
+        data = new byte[MAX_LITERAL + 2 * blockSize + 64 * 1024];
+        ops = ByteBuffer.allocate(MAX_LITERAL + blockSize + payloadSize + 2 * COPY_SIZE);
+    }
+
+    public long getLiteralBytes()
+    {
+        // file bytes sent as they are
+        return literalBytes;
+    }
+
+    public long getMatchedBytes()
+    {
+        // file bytes found in the server's copy
+        return matchedBytes;
+    }
+
+    public boolean hasNext() throws IOException
+    {
+        while(ops.position() < payloadSize && !finished)
+            scan();
+        return ops.position() > 0;
+    }
+
+    public byte[] next() throws IOException
+    {
+        if(!hasNext())
+            throw new EOFException("No more segments");
+
+        ops.flip();
+        byte[] payload = new byte[Math.min(payloadSize, ops.remaining())];
+        ops.get(payload);
+        ops.compact();
+        return payload;
+    }
+
+    public void close() throws IOException
+    {
+        in.close();
+    }
+
+    private void scan() throws IOException
+    {
+        // matches windows of the file until there
+        // are ops for a payload, or the file ends
+        while(ops.position() < payloadSize) {
+            if(limit - pos <= blockSize && !endOfFile) {
+                fill();
+                continue;
+            }
+
+            int n = Math.min(blockSize, limit - pos);
+            if(n == 0) {
+                emitLiteral();
+                emitCopy();
+                finished = true;
+                return;
+            }
+
+            if(!rolling) {
+                weak = DeltaSignatures.weak(data, pos, n);
+                rolling = true;
+            }
+
+            int block = match(n);
+            if(block >= 0) {
+                emitLiteral();
+                if(copyBlock >= 0 && block == copyBlock + copyCount) {
+                    copyCount++;
+                } else {
+                    emitCopy();
+                    copyBlock = block;
+                    copyCount = 1;
+                }
+                matchedBytes += n;
+                pos += n;
+                literalStart = pos;
+                rolling = false;
+            } else if(n < blockSize) {
+                // the tail, shorter than a block, only
+                // matches the end of the server's copy
+                pos = limit;
+            } else {
+                // one byte on, the byte left behind
+                // joins the literal
+                if(pos + blockSize < limit)
+                    weak = DeltaSignatures.roll(weak, blockSize, data[pos] & 0xFF, data[pos + blockSize] & 0xFF);
+                else
+                    rolling = false;
+                pos++;
+                if(pos - literalStart >= MAX_LITERAL)
+                    emitLiteral();
+            }
+        }
+    }
+
+    private int match(int n)
+    {
+        // a block with the window's checksums, the
+        // digest is only taken on a weak match
+        boolean hashed = false;
+        for(int block = signatures.find(weak); block >= 0; block = signatures.next(block)) {
+            if(signatures.blockLength(block) != n)
+                continue;
+            if(!hashed) {
+                md5.update(data, pos, n);
+                DeltaSignatures.digest(md5, digest, 0);
+                hashed = true;
+            }
+            if(signatures.matches(block, digest))
+                return block;
+        }
+        return -1;
+    }
+
+    private void emitLiteral()
+    {
+        // bytes between the last match and the
+        // window, the copy before them first
+        int length = pos - literalStart;
+        if(length == 0)
+            return;
+        emitCopy();
+        ops.put(LITERAL);
+        ops.putInt(length);
+        ops.put(data, literalStart, length);
+        literalBytes += length;
+        literalStart = pos;
+    }
+
+    private void emitCopy()
+    {
+        if(copyBlock < 0)
+            return;
+        ops.put(COPY);
+        ops.putInt(copyBlock);
+        ops.putInt(copyCount);
+        copyBlock = -1;
+        copyCount = 0;
+    }
+
+    private void fill() throws IOException
+    {
+        // moves the pending literal to the front
+        // and reads the file after it
+        if(literalStart > 0) {
+            System.arraycopy(data, literalStart, data, 0, limit - literalStart);
+            pos -= literalStart;
+            limit -= literalStart;
+            literalStart = 0;
+        }
+        while(limit < data.length) {
+            int n = in.read(data, limit, data.length - limit);
+            if(n < 0) {
+                endOfFile = true;
+                return;
+            }
+            limit += n;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/* Class: EngineSession
+ *
+ * This class holds the state of one file
+ * transfer run by a TransferEngine: the
+ * TCP handshake on a non-blocking control
+ * channel, then a window of segments sent
+ * over one of the engine's shared UDP
+ * channels, each marked with the session
+ * id the server assigned
+ * Acks and timeouts are handed over by
+ * the engine, which calls every method
+ * from its event loop thread
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class EngineSession
+{
+    public final static int CONNECTING = 0;
+    public final static int HANDSHAKE = 1;
+    public final static int TRANSFER = 2;
+    public final static int DONE = 3;
+
+    private TransferEngine engine;
+    private File file;
+    private InetSocketAddress server;
+    private DatagramChannel udp;
+    private SocketChannel control;
+    private ByteBuffer controlIn;
+    private ByteBuffer controlOut;
+    private int state;
+    private int sessionId;
+    private int payloadSize;
+    private CompletableFuture<Void> result;
+
+    // send window, the same as a FastClient's
+    private TxQueue window;
+    private RttEstimator rtt;
+    private FileSegmentSource source;
+    private int nextSeq;
+    private long bytesSent;
+    private long retransmits;
+    // largest timeout a segment sent once may
+    // still be armed with
+    private long armedRto;
+
+    // queued by the engine to send new segments
+    boolean sendQueued;
+
+    // reused for every ack
+    private int[] starts = new int[SackAck.MAX_BLOCKS + 1];
+    private int[] ends = new int[SackAck.MAX_BLOCKS + 1];
+    private ArrayList<TxQueueNode> acked = new ArrayList<TxQueueNode>();
+
+    public EngineSession(TransferEngine engine, File file, InetSocketAddress server, int windowSize, int timeout)
+    {
+        this.engine = engine;
+        this.file = file;
+        this.server = server;
+        window = new TxQueue(windowSize);
+        rtt = new RttEstimator(timeout, TimerWheel.DEFAULT_TICK);
+        armedRto = rtt.getRto();
+        controlIn = ByteBuffer.allocate(256);
+        result = new CompletableFuture<Void>();
+        state = CONNECTING;
+    }
+
+    public CompletableFuture<Void> getResult()
+    {
+        return result;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public InetSocketAddress getServer()
+    {
+        return server;
+    }
+
+    public int getState()
+    {
+        return state;
+    }
+
+    public int getSessionId()
+    {
+        // assigned in the handshake
+        return sessionId;
+    }
+
+    public long getBytesSent()
+    {
+        // payload bytes, not counting resends
+        return bytesSent;
+    }
+
+    public long getRetransmits()
+    {
+        return retransmits;
+    }
+
+    /* handshake */
+
+    void connect(Selector selector, DatagramChannel udp, int requestedPayload) throws IOException
+    {
+        // starts the control connection and
+        // queues the handshake request for it
+        this.udp = udp;
+        HandshakeOptions requested = new HandshakeOptions();
+        requested.set(HandshakeOptions.SACK, true);
+        requested.set(HandshakeOptions.SESSION, true);
+        requested.setParam(HandshakeOptions.PARAM_UDP_PORT, ((InetSocketAddress) udp.getLocalAddress()).getPort());
+        if(requestedPayload > 0)
+            requested.setParam(HandshakeOptions.PARAM_PAYLOAD_SIZE, requestedPayload);
+
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        DataOutputStream requestData = new DataOutputStream(request);
+        requestData.writeUTF(file.getName());
+        requested.writeRequest(requestData);
+        controlOut = ByteBuffer.wrap(request.toByteArray());
+
+        control = SocketChannel.open();
+        control.configureBlocking(false);
+        control.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        if(control.connect(server))
+            control.register(selector, SelectionKey.OP_WRITE, this);
+        else
+            control.register(selector, SelectionKey.OP_CONNECT, this);
+    }
+
+    void onConnectable(SelectionKey key) throws IOException
+    {
+        if(control.finishConnect())
+            key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    void onWritable(SelectionKey key) throws IOException
+    {
+        // the handshake request, then the reply
+        control.write(controlOut);
+        if(!controlOut.hasRemaining()) {
+            state = HANDSHAKE;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    void onReadable(SelectionKey key) throws IOException
+    {
+        if(control.read(controlIn) < 0)
+            throw new EOFException("Connection closed by server");
+        if(state == HANDSHAKE)
+            parseReply();
+        else if(state == TRANSFER)
+            controlIn.clear(); // the server sends nothing else
+    }
+
+    private void parseReply() throws IOException
+    {
+        // status byte, flags, parameter count
+        // and the parameters
+        if(controlIn.position() < 1)
+            return;
+        if(controlIn.get(0) != 0)
+            throw new IOException("Server cannot receive " + file.getName());
+        if(controlIn.position() < 7)
+            return;
+        int params = controlIn.getShort(5) & 0xFFFF;
+        if(controlIn.position() < 7 + params * 6)
+            return;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(controlIn.array(), 1, 6 + params * 6));
+        HandshakeOptions negotiated = HandshakeOptions.readReply(in);
+        controlIn.clear();
+        if(!negotiated.has(HandshakeOptions.SESSION) || !negotiated.has(HandshakeOptions.SACK))
+            throw new IOException("Server does not support sessions");
+
+        sessionId = negotiated.getParam(HandshakeOptions.PARAM_SESSION_ID, -1);
+        payloadSize = negotiated.getParam(HandshakeOptions.PARAM_PAYLOAD_SIZE, Segment.MAX_PAYLOAD_SIZE);
+        source = new FileSegmentSource(file, payloadSize);
+        state = TRANSFER;
+        engine.onStarted(this);
+    }
+
+    /* transfer */
+
+    boolean hasNext() throws IOException
+    {
+        // a new segment could go out now
+        return state == TRANSFER && !window.isFull() && source.hasNext();
+    }
+
+    void sendNext(TimerWheel timers, ByteBuffer buffer) throws IOException
+    {
+        // adds the next segment to the window and
+        // sends it, the window has room
+        // the file is read into the buffer of the
+        // node, reused from an earlier segment, which
+        // is safe as acks and timers run on this thread
+        if(nextSeq > Segment.MAX_SEQ_NUM)
+            throw new IOException("File too large, more than " + (Segment.MAX_SEQ_NUM + 1L) + " segments");
+        TxQueueNode node = window.addNode(nextSeq);
+        byte[] payload = node.seg.getPayloadArray();
+        if(payload.length < payloadSize)
+            payload = new byte[payloadSize];
+        int length = source.next(payload);
+        node.seg.wrap(nextSeq, payload, 0, length);
+        node.owner = this;
+        node.setStatus(TxQueueNode.SENT);
+        bytesSent += length;
+        nextSeq++;
+        transmit(node, timers, buffer);
+    }
+
+    void onTimeout(TxQueueNode node, TimerWheel timers, ByteBuffer buffer) throws IOException
+    {
+        // a node left on the wheel by a session
+        // that has ended is dropped
+        if(state != TRANSFER || node.getStatus() == TxQueueNode.ACKNOWLEDGED)
+            return;
+        node.timeout = rtt.backoff(node.timeout);
+        retransmits++;
+        transmit(node, timers, buffer);
+    }
+
+    private void transmit(TxQueueNode node, TimerWheel timers, ByteBuffer buffer) throws IOException
+    {
+        // session id after the header, both in
+        // the header's byte order
+        Segment seg = node.seg;
+        buffer.clear();
+        Segment.putHeader(buffer, seg.getSeqNum() | Segment.SESSION);
+        Segment.putHeader(buffer, sessionId);
+        buffer.put(seg.getPayloadArray(), seg.getPayloadOffset(), seg.getPayloadLength());
+        buffer.flip();
+
+        // a resend uses the timeout it was
+        // backed off to
+        long rto = node.transmissions == 0 ? rtt.getRto() : node.timeout;
+        node.sentTime = System.nanoTime();
+        node.timeout = rto;
+        node.transmissions++;
+        // a full socket buffer drops it, like
+        // the network would
+        udp.send(buffer, server);
+        timers.schedule(node, rto);
+    }
+
+    void onAck(SackAck ack, TimerWheel timers) throws IOException
+    {
+        // applies a cumulative ack and its blocks,
+        // as AckReceive does
+        if(state != TRANSFER)
+            return;
+        starts[0] = 0;
+        ends[0] = ack.getCumAck();
+        for(int i = 0; i < ack.getBlockCount(); i++) {
+            starts[i + 1] = ack.getBlockStart(i);
+            ends[i + 1] = ack.getBlockEnd(i);
+        }
+        window.acknowledge(starts, ends, ack.getBlockCount() + 1, acked);
+
+        long now = System.nanoTime();
+        for(int i = 0; i < acked.size(); i++) {
+            TxQueueNode node = acked.get(i);
+            if(node.transmissions == 1)
+                rtt.sample((now - node.sentTime) / 1000000.0);
+            timers.cancel(node);
+        }
+        acked.clear();
+        capTimers(timers);
+    }
+
+    private void capTimers(TimerWheel timers)
+    {
+        // once the timeout drops below half the
+        // largest one segments in flight may be
+        // armed with, their timers are brought
+        // forward, as AckReceive does
+        long rto = rtt.getRto();
+        if(rto * 2 < armedRto) {
+            timers.cap(rto, this);
+            armedRto = rto;
+        } else if(rto > armedRto) {
+            armedRto = rto;
+        }
+    }
+
+    boolean isComplete() throws IOException
+    {
+        // every segment of the file acked
+        return state == TRANSFER && window.isEmpty() && !source.hasNext();
+    }
+
+    void finish() throws IOException
+    {
+        // end of transmission, as a FastClient
+        // sends it
+        state = DONE;
+        control.write(ByteBuffer.wrap(new byte[] { 0 }));
+        close();
+        result.complete(null);
+    }
+
+    void fail(Throwable cause)
+    {
+        state = DONE;
+        close();
+        result.completeExceptionally(cause);
+    }
+
+    private void close()
+    {
+        try {
+            if(source != null)
+                source.close();
+            if(control != null)
+                control.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+}
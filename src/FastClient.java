@@ -3,16 +3,37 @@
  * 
  * FastClient implements a basic reliable FTP client application based on UDP data transmission and selective repeat protocol
  * 
+ * send() transfers one file and closes the client. sendAsync() queues files on a sender thread
+ * instead, and keeps the control connection, UDP socket, ack and timer threads open between them
+ * until close(), so each further file costs a handshake round trip rather than a new setup.
+ * 
+ * With an optimistic start the file is opened while the handshake is on its way, and the
+ * first window goes out right behind the request, in the format asked for, instead of
+ * a round trip later.
+ * 
+ * Once the window has filled, sending a segment allocates nothing: each window node keeps
+ * its segment and payload buffer for the next segment in its slot, the file is read straight
+ * into that buffer, and datagrams go out of buffers reused for every send.
+ * 
  */
 import java.net.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+import javax.management.*;
 
 public class FastClient {
 
+    public final static long PROGRESS_INTERVAL = 100; // milli-seconds
+
     private Socket socket;
     private DatagramSocket UDPSocket;
+    private DatagramChannel UDPChannel;
     private InetAddress IPAddress;
+    private InetSocketAddress serverAddress;
     private String serverName;
     private int serverPort;
     private String fileName;
@@ -22,7 +43,48 @@ public class FastClient {
     private int windowSize;
     private TxQueue window;
     private AckReceive ackReceiver;
-    private Timer timer;
+    private TimerWheel timer;
+    private RttEstimator rtt;
+    private TimeoutHandler timeoutHandler;
+    private CongestionController congestion;
+    private int spinLimit;
+    private HandshakeOptions requested;
+    private HandshakeOptions negotiated;
+    private boolean zeroCopy;
+    private ByteBuffer sendBuffer;
+    private ByteBuffer socketBuffer;
+    private int stripeStart;
+    private int stripeSegments = -1;
+    private int payloadSize;
+    private int requestedPayloadSize;
+    private boolean probeMtu;
+    private Pacer pacer;
+    private int fecBlock;
+    private FecEncoder fec;
+    private boolean compress;
+    private CompressingSource compressor;
+    private boolean checksums;
+    private CRC32C segmentCrc;
+    private CRC32C fileCrc;
+    private boolean verified;
+    private ResumeRanges resumed;
+    private DeltaSignatures signatures;
+    private DeltaSource delta;
+    private TransferMetrics metrics;
+    private int sessionId = -1;
+    private boolean optimistic;
+    private SegmentSource source;
+    private int nextSeq;
+
+    // long-lived mode, set by sendAsync()
+    private boolean keepAlive;
+    private boolean started;
+    private boolean closed;
+    private ExecutorService sender;
+    private ProgressListener progress;
+    private long progressBase;
+    private long progressTotal;
+    private long nextProgress;
 
     /**
         * Constructor to initialize the program 
@@ -31,7 +93,8 @@ public class FastClient {
         * @param server_port    server port
         * @param file_name      file to be transfered
         * @param window         window size
-        * @param timeout    time out value
+        * @param timeout    initial time out value, adapted
+        *                   to the measured round trip time
         */
     public FastClient(String server_name, int server_port, int window, int timeout) {
         /* Initialize values */
@@ -39,14 +102,24 @@ public class FastClient {
         serverPort = server_port;
         responseTimeout = timeout;
         windowSize = window;
+        payloadSize = Segment.MAX_PAYLOAD_SIZE;
+        // no extensions unless asked for
+        requested = new HandshakeOptions();
+        negotiated = new HandshakeOptions();
         // create window queue
         this.window = new TxQueue(window);
-        // create timer
-        timer = new Timer(true);
+        // create rtt estimator, and retransmission
+        // timer wheel, but not start
+        rtt = new RttEstimator(timeout, TimerWheel.DEFAULT_TICK);
+        timeoutHandler = new TimeoutHandler(this, rtt);
+        timer = new TimerWheel(timeoutHandler);
 
-        // create sender socket
+        // create sender socket, backed by a channel
+        // so the zero-copy path can share it
         try {
-            UDPSocket = new DatagramSocket();
+            UDPChannel = DatagramChannel.open();
+            UDPChannel.bind(null);
+            UDPSocket = UDPChannel.socket();
         } catch (Exception e) {
             System.out.println("UDP socket init failure");
             System.out.println(e.getMessage());
@@ -56,135 +129,786 @@ public class FastClient {
         IPAddress = null;
         try {
             IPAddress = InetAddress.getByName(serverName);
+            serverAddress = new InetSocketAddress(IPAddress, serverPort);
         } catch (Exception e) {
             System.out.println("Inet error");
             System.out.println(e.getMessage());
         }
 
+        // reused for every zero-copy send, for
+        // any negotiated segment size
+        sendBuffer = ByteBuffer.allocateDirect(Segment.MAX_UDP_SEGMENT_SIZE);
+        // and a heap one for every other send
+        socketBuffer = ByteBuffer.allocate(Segment.MAX_UDP_SEGMENT_SIZE);
+
         // create ack receiving thread, but not start
-        ackReceiver = new AckReceive(UDPSocket, this.window);
+        ackReceiver = new AckReceive(UDPSocket, this.window, timer, rtt);
+
+        // counters recorded by the send, ack and
+        // timer threads
+        metrics = new TransferMetrics(this.window);
+        ackReceiver.setMetrics(metrics);
+        timeoutHandler.setMetrics(metrics);
+    }
+
+    public void setZeroCopy(boolean zeroCopy)
+    {
+        // selects the DatagramChannel send path, which
+        // writes header and payload into one reused
+        // direct buffer instead of building a segment
+        // and packet for every send
+        this.zeroCopy = zeroCopy;
+    }
+
+    public boolean isZeroCopy()
+    {
+        return zeroCopy;
+    }
+
+    public void setCongestionControl(CongestionController congestion)
+    {
+        // sizes the effective window at runtime, up
+        // to the window size given at construction
+        // null keeps the window fixed at that size
+        this.congestion = congestion;
+        ackReceiver.setCongestionController(congestion);
+        timeoutHandler.setCongestionController(congestion);
+    }
+
+    public CongestionController getCongestionControl()
+    {
+        return congestion;
+    }
+
+    public void setSelectiveAck(boolean enabled)
+    {
+        // asks the server for acks carrying a
+        // cumulative ack plus sack blocks
+        // needs a server that supports handshake
+        // extensions
+        requested.set(HandshakeOptions.SACK, enabled);
+    }
+
+    public void setStripe(int firstSegment, int segments)
+    {
+        // sends only the given run of segments of
+        // the file, numbered from 0, which the
+        // server writes from firstSegment on
+        // used by StripedClient, one client per
+        // stripe, with segments of the negotiated
+        // payload size, so the count can be set
+        // again after connect()
+        if(firstSegment < 0 || segments < 0)
+            throw new IllegalArgumentException("Negative stripe");
+        stripeStart = firstSegment;
+        stripeSegments = segments;
+        requested.set(HandshakeOptions.STRIPE, true);
+        requested.setParam(HandshakeOptions.PARAM_STRIPE_START, firstSegment);
+    }
+
+    public void setSegmentSize(int payload)
+    {
+        // asks the server for segments carrying
+        // up to this many payload bytes, instead
+        // of Segment.MAX_PAYLOAD_SIZE
+        // with path mtu probing on, this is the
+        // largest size the probe may pick
+        if(payload <= 0 || payload > Segment.MAX_UDP_PAYLOAD_SIZE)
+            throw new IllegalArgumentException("Invalid segment payload size: " + payload);
+        requestedPayloadSize = payload;
+        requested.setParam(HandshakeOptions.PARAM_PAYLOAD_SIZE, payload);
+    }
+
+    public void setPathMtuProbe(boolean enabled)
+    {
+        // before the handshake, finds the largest
+        // datagram that reaches the server and
+        // asks for segments of that size
+        probeMtu = enabled;
+    }
+
+    public int getPayloadSize()
+    {
+        // payload bytes per segment, as agreed
+        // in the last handshake
+        return payloadSize;
+    }
+
+    public HandshakeOptions getNegotiatedOptions()
+    {
+        // extensions accepted by the server in
+        // the last handshake
+        return negotiated;
+    }
+
+    public void setForwardErrorCorrection(double ratio)
+    {
+        // sends a parity segment for every block of
+        // about 1 / ratio new segments, from which
+        // the server rebuilds one lost segment per
+        // block without waiting for a timeout
+        // the block shrinks while losses still time
+        // out, 0 turns it off
+        fecBlock = ratio > 0 ? FecEncoder.blockSize(ratio) : 0;
+        requested.set(HandshakeOptions.FEC, ratio > 0);
+    }
+
+    public FecEncoder getFecEncoder()
+    {
+        // current block size, null unless the
+        // last handshake agreed on fec
+        return fec;
+    }
+
+    public void setCompression(boolean enabled)
+    {
+        // deflates payloads on a pipeline thread
+        // ahead of the sender, and sends those
+        // that shrink compressed
+        compress = enabled;
+        requested.set(HandshakeOptions.COMPRESS, enabled);
+    }
+
+    public CompressingSource getCompressor()
+    {
+        // raw and sent byte counts of the last
+        // transfer, null unless compressed
+        return compressor;
+    }
+
+    public void setChecksums(boolean enabled)
+    {
+        // sends a crc32c with every data segment,
+        // and a crc32c of the file kept while it
+        // is read at the end of the transfer, for
+        // the server to check against its copy
+        requested.set(HandshakeOptions.CHECKSUM, enabled);
+    }
+
+    public boolean isVerified()
+    {
+        // true once the server has matched the
+        // file checksum of the last transfer
+        return verified;
+    }
+
+    public void setResume(boolean enabled)
+    {
+        // asks the server for the segments it
+        // already has of the file, from an earlier
+        // transfer that did not finish, and sends
+        // only the others
+        // the server keeps a journal of what it
+        // writes, so this transfer can be resumed
+        // in turn, not for striped transfers
+        requested.set(HandshakeOptions.RESUME, enabled);
+    }
+
+    public ResumeRanges getResumed()
+    {
+        // segments the server had before the last
+        // transfer, null unless resumed
+        return resumed;
+    }
+
+    public void setDelta(boolean enabled)
+    {
+        // sends the file as a delta against the
+        // server's copy: blocks the server has
+        // go as references to them, the rest
+        // as literal bytes
+        // not for striped or resumed transfers
+        requested.set(HandshakeOptions.DELTA, enabled);
+    }
+
+    public DeltaSource getDelta()
+    {
+        // matched and literal byte counts of the
+        // last transfer, null unless a delta
+        return delta;
+    }
+
+    public void setOptimisticStart(boolean enabled)
+    {
+        // sends the first window right after the
+        // handshake request, before the reply
+        // the server takes it only if it agrees
+        // to every extension asked for, and the
+        // transfer fails if it agrees to a format
+        // other than the one the window went in
+        // not for striped, resumed, delta or
+        // long-lived transfers
+        optimistic = enabled;
+    }
+
+    public void setPacing(boolean enabled)
+    {
+        // spaces new segments out at the window
+        // over the rtt, instead of sending a
+        // burst whenever acks free up the window
+        // retransmissions are not paced
+        pacer = enabled ? new Pacer(rtt, window) : null;
+    }
+
+    public Pacer getPacer()
+    {
+        // pacing rate and error metrics, null
+        // when pacing is off
+        return pacer;
+    }
+
+    public TransferMetrics getMetrics()
+    {
+        // live counters and histograms, see
+        // TransferMetrics.snapshot()
+        return metrics;
+    }
+
+    public void registerMetrics(String name) throws JMException
+    {
+        // serves the metrics over JMX under the
+        // given name, until the transfer ends
+        metrics.register(name);
+    }
+
+    public void setSpinLimit(int spins)
+    {
+        // number of spins on a full (or draining)
+        // window before the sender parks, 0 parks
+        // straight away
+        spinLimit = Math.max(0, spins);
+    }
+
+    public boolean hasWindowSpace()
+    {
+        // non-blocking backpressure check
+        return !window.isFull();
+    }
+
+    public boolean awaitWindowSpace(long timeoutMillis) throws InterruptedException
+    {
+        // blocks until a new segment can be added
+        // to the window, spinning first if set up
+        // returns false if the timeout expired
+        for(int i = 0; i < spinLimit && window.isFull(); i++)
+            Thread.onSpinWait();
+        return window.awaitNotFull(timeoutMillis * 1000000L);
+    }
+
+    public boolean awaitDrain(long timeoutMillis) throws InterruptedException
+    {
+        // blocks until every segment in the window
+        // has been acknowledged
+        // returns false if the timeout expired
+        for(int i = 0; i < spinLimit && !window.isEmpty(); i++)
+            Thread.onSpinWait();
+        return window.awaitEmpty(timeoutMillis * 1000000L);
     }
     
     /* send file */
 
-    public void send(String file_name) {
-        // save file name
-        fileName = file_name;
-
+    public boolean send(String file_name) {
         // send tcp handshake
-        boolean handshakeSuccess = TCPHandshake();
+        boolean handshakeSuccess = connect(file_name);
         if(!handshakeSuccess) {
             System.out.println("Handshake failure - terminating");
-            System.exit(1);
+            close();
+            return false;
         }
-        
-        // start ack receive thread
-        ackReceiver.start();
 
-        // read file contents into byte array
-        byte[] fileBytes = readFile(fileName);
+        return transfer();
+    }
 
-        // loop over a file contents, breakd
-        // into segments, and send over UDP
-        boolean fileNotFinished = true;
-        int currentIndex = 0;
-        byte[] payload;
-        int seqNo = 0;
-
-        while(fileNotFinished) {
-            // fills a segment with next section
-            // of file contents byte array
-            // current section to be sent is
-            // defined by currentIndex
-            // on the last segment, the next
-            // section will most likely be
-            // smaller than Segment.MAX_PAYLOAD_SIZE so
-            // catch exception and finish
-            // loop
-            try {
-                payload = new byte[Segment.MAX_PAYLOAD_SIZE];
-                // triggers exception when end of file
-                // reached
-                for(int i=0; i<payload.length;i++) {
-                    payload[i] = fileBytes[currentIndex+i];
+    public CompletableFuture<Void> sendAsync(String file_name)
+    {
+        return sendAsync(file_name, null);
+    }
+
+    public synchronized CompletableFuture<Void> sendAsync(final String file_name, final ProgressListener listener)
+    {
+        // queues the file behind any sent before it,
+        // and returns a future completed once the
+        // server has all of it, or failed
+        // the control connection and udp socket
+        // stay open for the next file, until close()
+        final CompletableFuture<Void> result = new CompletableFuture<Void>();
+        if(closed) {
+            result.completeExceptionally(new IOException("Client is closed"));
+            return result;
+        }
+
+        // the server tells each transfer's datagrams
+        // apart by session id, so a late one is not
+        // taken for the next file's
+        if(!keepAlive) {
+            keepAlive = true;
+            requested.set(HandshakeOptions.KEEPALIVE, true);
+            requested.set(HandshakeOptions.SESSION, true);
+            sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "FastClient sender");
+                    thread.setDaemon(true);
+                    return thread;
                 }
-                currentIndex = currentIndex + payload.length;
-                // checks if another section exists
-                // in case Segment.MAX_PAYLOAD_SIZE divides file
-                // size exactly (i.e. no exception occurs)
-                // if no nore bytes, it will trigger an
-                // exception
-                byte checkEOF = fileBytes[currentIndex+1];
-            } catch (Exception e) {
-                System.out.println("End of file reached, sending last segment...");
-                payload = new byte[fileBytes.length - currentIndex];
-                for(int i=0; i<payload.length;i++) {
-                    payload[i] = fileBytes[currentIndex+i];
+            });
+        }
+
+        sender.execute(new Runnable() {
+            public void run() {
+                progress = listener;
+                try {
+                    if(!connect(file_name))
+                        throw new IOException("Handshake failure sending " + file_name);
+                    if(!transfer())
+                        throw new IOException("Transfer of " + file_name + " failed");
+                    result.complete(null);
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
                 }
-                // end loop after this packet sent
-                fileNotFinished = false;
+                progress = null;
             }
-            
-            // if the window is full, then no new
-            // packets can be sent, so wait until
-            // space frees up
-            while(queueFull()) {
-                // waiting for window space
-                Thread.yield();
+        });
+        return result;
+    }
+
+    public void close()
+    {
+        // waits for the files queued by sendAsync(),
+        // then closes sockets and stops the threads
+        ExecutorService queued;
+        synchronized(this) {
+            if(closed)
+                return;
+            closed = true;
+            queued = sender;
+        }
+        if(queued != null) {
+            queued.shutdown();
+            try {
+                queued.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        }
+
+        // close sockets and io streams
+        try {
+            closeControl();
+            UDPSocket.close();
+            ackReceiver.stopThread();
+            timer.stopThread();
+        } catch (Exception e) {
+            System.out.println("Socket close error");
+        }
+        metrics.unregister();
+    }
 
-            // once space is available, add
-            // packet to queue window and send
+    private void closeControl() throws IOException
+    {
+        // the next handshake opens a new connection
+        if(socket == null)
+            return;
+        socket.close();
+        socket = null;
+    }
+
+    public boolean connect(String file_name)
+    {
+        // save file name, and run the tcp
+        // handshake for it
+        fileName = file_name;
+        // checksums follow the header, and parity
+        // segments carry a longer one
+        // and a session id, when asked for
+        int maxPayload = Segment.MAX_UDP_PAYLOAD_SIZE;
+        if(requested.has(HandshakeOptions.CHECKSUM))
+            maxPayload -= Segment.CHECKSUM_SIZE;
+        if(fecBlock > 0)
+            maxPayload = Math.min(maxPayload, FecEncoder.MAX_PAYLOAD_SIZE);
+        if(requested.has(HandshakeOptions.SESSION))
+            maxPayload -= Segment.SESSION_ID_SIZE;
+        if(requestedPayloadSize > maxPayload)
+            requested.setParam(HandshakeOptions.PARAM_PAYLOAD_SIZE, maxPayload);
+        if(probeMtu) {
+            int limit = requestedPayloadSize > 0 ? Math.min(requestedPayloadSize, maxPayload) : maxPayload;
             try {
-                // add to queue
-                window.add(new Segment(seqNo, payload));
-                TxQueueNode node = window.getNode(seqNo);
-                node.setStatus(TxQueueNode.SENT);
-                // send packet
-                sendPacketData(payload, seqNo);
-                // increment to next sequence number
-                seqNo++;
-            } catch (Exception e) {
-                System.out.println("Error adding packet, resending...");
-            }
-            
-            // if the whole file has been sent/added to
-            // the queue, and all acks have been received
-            // then the transfer is complete
-            if(!fileNotFinished) {
-                while(!window.isEmpty()) {
-                    // wait for last packets to
-                    // be acknowledged
-                    Thread.yield();
+                int probed = new MtuProbe(UDPChannel, serverAddress, responseTimeout).probe(limit);
+                requested.setParam(HandshakeOptions.PARAM_PAYLOAD_SIZE, probed);
+            } catch (IOException e) {
+                System.out.println("Path MTU probe error: " + e.getMessage());
+            }
+        }
+        requested.set(HandshakeOptions.EARLY, optimistic
+            && !requested.has(HandshakeOptions.STRIPE) && !requested.has(HandshakeOptions.RESUME)
+            && !requested.has(HandshakeOptions.DELTA) && !requested.has(HandshakeOptions.SESSION));
+        if(!TCPHandshake()) {
+            // the server closes the connection on a
+            // refused handshake
+            abandonEarly();
+            try {
+                closeControl();
+            } catch (IOException e) {
+                System.out.println("Socket close error");
+            }
+            return false;
+        }
+
+        // segments sent early are kept, those the
+        // server did not hold are resent on timeout,
+        // but only in the format they went in
+        if(source != null) {
+            if(!negotiated.sameFormat(requested)) {
+                System.out.println("Server did not agree to the format of the early segments");
+                abandonEarly();
+                try {
+                    closeControl();
+                } catch (IOException e) {
+                    System.out.println("Socket close error");
                 }
+                return false;
+            }
+        } else {
+            applyOptions(negotiated);
+        }
+
+        // a server that ignores the stripe would
+        // write it at the start of the file
+        if(requested.has(HandshakeOptions.STRIPE) && !negotiated.has(HandshakeOptions.STRIPE)) {
+            System.out.println("Striped transfers not supported by server");
+            return false;
+        }
+        return true;
+    }
+
+    private void applyOptions(HandshakeOptions options)
+    {
+        // sets the transfer up for the extensions
+        // agreed on, or asked for when starting early
+
+        // servers that do not know the parameter
+        // keep the default size
+        payloadSize = options.getParam(HandshakeOptions.PARAM_PAYLOAD_SIZE, Segment.MAX_PAYLOAD_SIZE);
+
+        // fec is optional, without the server's
+        // agreement losses wait for timeouts
+        fec = null;
+        if(options.has(HandshakeOptions.FEC))
+            fec = new FecEncoder(fecBlock, payloadSize);
+        timeoutHandler.setFecEncoder(fec);
+
+        // every datagram of the transfer, and every
+        // ack, carries its session id
+        sessionId = options.has(HandshakeOptions.SESSION)
+            ? options.getParam(HandshakeOptions.PARAM_SESSION_ID, -1) : -1;
+        ackReceiver.setSessionId(sessionId);
+        if(fec != null)
+            fec.setSessionId(sessionId);
+
+        checksums = options.has(HandshakeOptions.CHECKSUM);
+        segmentCrc = checksums ? new CRC32C() : null;
+        fileCrc = checksums ? new CRC32C() : null;
+        verified = false;
+
+        // use the ack format agreed on
+        ackReceiver.setSelectiveAck(options.has(HandshakeOptions.SACK));
+    }
+
+    private boolean startSending(HandshakeOptions options)
+    {
+        // starts the threads, and opens the file as
+        // a source of segment payloads, compressed
+        // ahead of the sender when asked for
+
+        // start from the controller's initial window
+        if(congestion != null)
+            window.setLimit(congestion.getWindow());
+
+        // start ack receive and timer threads, once
+        // for all the files of a long-lived client
+        metrics.start();
+        if(!started) {
+            ackReceiver.start();
+            timer.start();
+            started = true;
+        }
+
+        nextSeq = 0;
+        source = openFile(fileName);
+        if(source == null)
+            return false;
+        progressBase = metrics.getAckedBytes();
+        progressTotal = bytesToSend(source, options);
+        nextProgress = 0;
+
+        compressor = null;
+        if(options.has(HandshakeOptions.COMPRESS)) {
+            compressor = new CompressingSource(source);
+            compressor.start();
+            source = compressor;
+        }
+        return true;
+    }
+
+    private void sendEarly()
+    {
+        // the first window, in the format asked for,
+        // while the handshake request is on its way
+        applyOptions(requested);
+        if(!startSending(requested))
+            return;
+        try {
+            while(!window.isFull() && source.hasNext())
+                sendSegment();
+        } catch (Exception e) {
+            System.out.println("Early send error: " + e.getMessage());
+        }
+    }
+
+    private void abandonEarly()
+    {
+        // segments sent early for a transfer that
+        // will not go ahead, or of one that failed,
+        // leave the window, which is safe alongside
+        // the ack thread
+        if(source == null)
+            return;
+        ArrayList<TxQueueNode> dropped = new ArrayList<TxQueueNode>();
+        window.acknowledge(new int[] { 0 }, new int[] { nextSeq }, 1, dropped);
+        for(int i = 0; i < dropped.size(); i++)
+            timer.cancel(dropped.get(i));
+        try {
+            source.close();
+        } catch (IOException e) {
+            System.out.println("File close error");
+        }
+        source = null;
+        metrics.finish();
+    }
+
+    public boolean transfer() {
+        // sends the file named in connect() over
+        // the handshake's control connection
+        // returns false if it could not be sent
+        // or the server's copy does not match
+
+        // open file as a source of segment payloads,
+        // unless it was opened to start early
+        if(source == null && !startSending(negotiated)) {
+            System.out.println("File open failure - terminating");
+            endTransfer(false);
+            return false;
+        }
+
+        // loop over a file contents, broken
+        // into segments, and send over UDP
+        // a segment that cannot be read or added
+        // ends the transfer, as the server's copy
+        // would be short
+        try {
+            while(source.hasNext()) {
+                // if the window is full, then no new
+                // packets can be sent, so wait until
+                // the ack receiver frees up space
+                // time spent waiting is a stall
+                long stallStart = window.isFull() ? System.nanoTime() : 0;
+                awaitWindowSpace(Long.MAX_VALUE / 1000000L);
+                if(stallStart != 0)
+                    metrics.onStall(System.nanoTime() - stallStart);
+                sendSegment();
+            }
+        } catch (Exception e) {
+            System.out.println("Send error - terminating");
+            System.out.println(e.getMessage());
+            abandonEarly();
+            endTransfer(false);
+            return false;
+        }
+
+        // once the whole file has been sent/added to
+        // the queue, and all acks have been received
+        // then the transfer is complete
+        try {
+            // wait for last packets to
+            // be acknowledged
+            if(progress == null) {
+                awaitDrain(Long.MAX_VALUE / 1000000L);
+            } else {
+                while(!awaitDrain(PROGRESS_INTERVAL))
+                    reportProgress(true);
             }
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted waiting for final acks");
         }
 
+        try {
+            source.close();
+        } catch (IOException e) {
+            System.out.println("File close error");
+        }
+        source = null;
+
+        metrics.finish();
+
         // once file send loop has finished
         // send end of transmission message
         boolean EOTSuccess = TCPEndTransmission();
         if(!EOTSuccess) {
             System.out.println("EOT message failure");
+        } else {
+            reportProgress(true);
         }
 
-        // close sockets and io streams
-        try {
-            input.close();
-            output.close();
-            UDPSocket.close();
-            socket.close();
-            ackReceiver.stopThread();
-            timer.cancel();
-        } catch (Exception e) {
-            System.out.println("Socket close error");
+        endTransfer(EOTSuccess);
+        return EOTSuccess;
+    }
+
+    private void sendSegment() throws IOException, InterruptedException
+    {
+        // adds the next section of the file to the
+        // window as the next segment, and sends it
+        // the window has room
+        // a compressed payload is copied in from the
+        // compressor, the rest are read straight into
+        // the buffer of the window node
+        if(nextSeq > Segment.MAX_SEQ_NUM)
+            throw new IOException("File too large, more than " + (Segment.MAX_SEQ_NUM + 1L) + " segments");
+
+        byte[] payload = null;
+        byte[] wire = null;
+        int headerFlags = 0;
+        if(compressor != null) {
+            payload = source.next();
+            wire = compressor.getWirePayload();
+            if(compressor.isCompressed())
+                headerFlags = Segment.COMPRESSED;
+        }
+
+        // then for its turn, when paced, taking a
+        // payload not read yet to be a full one
+        if(pacer != null)
+            pacer.pace((wire != null ? wire.length : payloadSize) + Segment.HEADER_SIZE);
+
+        // the node is filled holding the send lock,
+        // so a resend of the segment it held before
+        // never goes out half overwritten
+        TxQueueNode node;
+        synchronized(this) {
+            node = window.addNode(nextSeq);
+            byte[] buffer = node.seg.getPayloadArray();
+            int capacity = wire != null ? Math.max(payloadSize, wire.length) : payloadSize;
+            if(buffer.length < capacity)
+                buffer = new byte[capacity];
+            int length;
+            if(wire != null) {
+                System.arraycopy(wire, 0, buffer, 0, wire.length);
+                length = wire.length;
+            } else {
+                length = source.next(buffer);
+            }
+            node.seg.wrap(nextSeq, buffer, 0, length);
+            node.headerFlags = headerFlags;
+            // computed once, for every transmission
+            if(checksums) {
+                node.checksum = Segment.checksum(segmentCrc, nextSeq | headerFlags, buffer, 0, length);
+                if(payload != null)
+                    fileCrc.update(payload, 0, payload.length);
+                else
+                    fileCrc.update(buffer, 0, length);
+            }
+            node.setStatus(TxQueueNode.SENT);
+            if(congestion != null)
+                congestion.onSend(nextSeq);
+            // send packet
+            sendPacketData(node);
+        }
+        // checked outside the lock, as a compressing
+        // source may block until the next is ready
+        if(!source.hasNext())
+            System.out.println("End of file reached, sent last segment");
+        reportProgress(false);
+        // and the parity of its block, once
+        // complete or at the end of the file
+        // the buffer is only reused by this
+        // thread, so it still holds the payload
+        if(fec != null) {
+            if(payload != null)
+                fec.add(nextSeq, payload);
+            else
+                fec.add(nextSeq, node.seg.getPayloadArray(), node.seg.getPayloadLength());
+            if(fec.isBlockComplete() || !source.hasNext())
+                sendParity(fec.finishBlock(segmentCrc));
+        }
+        // increment to next sequence number
+        nextSeq++;
+    }
+
+    private void endTransfer(boolean success)
+    {
+        // a long-lived client keeps the connection
+        // while the server does, otherwise the
+        // client is done
+        if(!keepAlive) {
+            close();
+            return;
         }
+        if(!success || !negotiated.has(HandshakeOptions.KEEPALIVE)) {
+            try {
+                closeControl();
+            } catch (IOException e) {
+                System.out.println("Socket close error");
+            }
+        }
+    }
+
+    private long bytesToSend(SegmentSource source, HandshakeOptions options)
+    {
+        // payload bytes the transfer sends, -1 if
+        // only known as they are sent
+        if(!(source instanceof FileSegmentSource) || options.has(HandshakeOptions.COMPRESS)
+                || stripeSegments >= 0)
+            return -1;
+        long size = ((FileSegmentSource) source).size();
+        if(size <= 0 || resumed == null)
+            return size;
+
+        // less the segments the server already has,
+        // the last of which may be short
+        long segments = (size + payloadSize - 1) / payloadSize;
+        long skipped = resumed.count(segments);
+        if(skipped > 0 && resumed.skip(segments - 1) != segments - 1)
+            return size - (skipped - 1) * payloadSize - (size - (segments - 1) * payloadSize);
+        return size - skipped * payloadSize;
+    }
+
+    private void reportProgress(boolean now)
+    {
+        // at most once per PROGRESS_INTERVAL,
+        // unless now
+        if(progress == null)
+            return;
+        long time = System.nanoTime();
+        if(!now && time < nextProgress)
+            return;
+        nextProgress = time + PROGRESS_INTERVAL * 1000000L;
+        progress.onProgress(fileName, metrics.getAckedBytes() - progressBase, progressTotal);
     }
 
-    public synchronized TxQueue getWindow()
+    public TxQueue getWindow()
     {
         return window;
     }
 
+    public RttEstimator getRttEstimator()
+    {
+        // current rto, srtt and rttvar
+        return rtt;
+    }
+
+    public long getRto()
+    {
+        return rtt.getRto();
+    }
+
     public boolean queueFull()
     {
         return window.isFull();
@@ -194,39 +918,73 @@ public class FastClient {
     {
         /* send TCP handshake */
 
-        // set up socket
-        socket = null;
+        // set up socket, unless the server kept the
+        // last one open
         try {
-            socket = new Socket(serverName, serverPort);
+            if(socket == null) {
+                socket = new Socket(serverName, serverPort);
+                // the end of transmission and the next
+                // handshake are small writes back to back
+                socket.setTcpNoDelay(true);
+                output = new DataOutputStream(socket.getOutputStream());
+                input = new DataInputStream(socket.getInputStream());
+            }
         } catch (Exception e) {
             System.out.println("Socket initialization error");
 
             System.out.println(e.getMessage());
         }
 
-        // set up output stream, and send initial handshake
+        // send initial handshake
+        // any extensions requested follow the file name,
+        // and go out in the same write
         try {
-            output = new DataOutputStream(socket.getOutputStream());
-            output.writeUTF(fileName);
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            DataOutputStream requestData = new DataOutputStream(request);
+            requestData.writeUTF(fileName);
+            if(!requested.isEmpty()) {
+                // lets the server match our datagrams
+                // to this transfer
+                requested.setParam(HandshakeOptions.PARAM_UDP_PORT, UDPSocket.getLocalPort());
+                requested.writeRequest(requestData);
+            }
+            output.write(request.toByteArray());
         } catch (Exception e) {
             System.out.println("Handshake output error");
         }
 
-        // set up input strea, and wait for handshake response
+        // starting early, the file is read and the
+        // first window sent while the request is
+        // on its way
+        resumed = null;
+        signatures = null;
+        if(requested.has(HandshakeOptions.EARLY))
+            sendEarly();
+
+        // wait for handshake response, blocked
+        // on the socket rather than polling it
         byte response = -1;
         try {
-            input = new DataInputStream(socket.getInputStream());
-            boolean readData = true;
-            while(readData) {
-                if(input.available() > 0) {
-                    response = input.readByte();
-                    readData = false;
-                }
-            }
+            response = input.readByte();
         } catch (Exception e) {
             System.out.println("Input stream handshake error");
         }
 
+        // read the extensions the server accepted
+        negotiated = new HandshakeOptions();
+        if(response == 0 && !requested.isEmpty()) {
+            try {
+                negotiated = HandshakeOptions.readReply(input);
+                if(negotiated.has(HandshakeOptions.RESUME))
+                    resumed = ResumeRanges.read(input);
+                if(negotiated.has(HandshakeOptions.DELTA))
+                    signatures = DeltaSignatures.read(input);
+            } catch (Exception e) {
+                System.out.println("Handshake extensions not supported by server");
+                return false;
+            }
+        }
+
         // return boolean indicating
         // success
         if(response != 0) {
@@ -241,83 +999,173 @@ public class FastClient {
         // sends termination message to
         // same TCP socket
         try {
-            output.writeByte(0);
+            // with checksums, the file checksum goes
+            // in the same write
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            DataOutputStream messageData = new DataOutputStream(message);
+            messageData.writeByte(0);
+            if(checksums)
+                messageData.writeInt((int) fileCrc.getValue());
+            output.write(message.toByteArray());
         } catch (Exception e) {
             System.out.println("EOT byte output error");
             return false;
         }
+
+        if(checksums) {
+            // the server answers 0 if its copy matches
+            try {
+                verified = input.readByte() == 0;
+            } catch (Exception e) {
+                System.out.println("File checksum response error");
+                return false;
+            }
+            if(!verified) {
+                System.out.println("File checksum mismatch");
+                return false;
+            }
+        }
         return true;
     }
 
-    public byte[] readFile(String filePath)
+    public SegmentSource openFile(String filePath)
     {
-        // reads file by name from execution directory
-        // and returns a byte array with its contents
+        // opens file by name from execution directory
+        // and returns a source serving its contents
+        // one segment payload at a time
 
         // create full path
         filePath = System.getProperty("user.dir") + "/" + filePath;
-        
-        // initialize values
-        byte[] data = null;
-        File file = null;
 
-        // check path is correct
+        // the file is mapped rather than read onto
+        // the heap, so its size is not limited
+        // a delta is scanned through a bounded
+        // buffer instead
+        delta = null;
         try {
-            file = new File(filePath);
-        } catch (Exception e) {
-            System.out.println("Invalid file path");
-        }
-
-        // try reading file into byte array
-        String eachLine = null;
-        try {
-            data = new byte[(int) file.length()];
-            FileInputStream fileStream = new FileInputStream(file);
-            DataInputStream dataStream = new DataInputStream(fileStream);
-            dataStream.read(data);
-            fileStream.close();
-            dataStream.close();
+            if(signatures != null) {
+                delta = new DeltaSource(new File(filePath), signatures, payloadSize);
+                return delta;
+            }
+            if(stripeSegments < 0) {
+                FileSegmentSource source = new FileSegmentSource(new File(filePath), payloadSize);
+                // a resumed transfer leaves out what
+                // the server already has
+                if(resumed != null && !resumed.isEmpty()) {
+                    source.setSkip(resumed);
+                    long segments = (source.size() + payloadSize - 1) / payloadSize;
+                    System.out.printf("Resuming, %d of %d segments already sent\n",
+                        resumed.count(segments), segments);
+                }
+                return source;
+            }
+            return new FileSegmentSource(new File(filePath), payloadSize,
+                (long) stripeStart * payloadSize, (long) stripeSegments * payloadSize);
         } catch (Exception e) {
             // handle any exceptions
             System.out.println("File exception triggered");
             System.out.println("Message: " + e.getMessage());
         }
-        // return file contents as byte array
-        return data;
+        return null;
     }
 
-    public synchronized void sendPacketData(byte[] payload, int seqNo)
+    boolean isTimerPending(TxQueueNode node)
     {
-        /* main UDP send logic */
-        // takes payload byte array and sequence number
-        // creates and sends this as a packet to server
-        // it then creates a timer for this packet, where
-        // upon timeout the packet is resent
-
-        // creating a segment with specified payload
-        // and sequence number
-        Segment seg1 = new Segment(seqNo, payload);
-        
-        // convert segment to bytes in
-        // order to send data
-        byte[] sendData = seg1.getBytes();
+        // true if the node is on the timer wheel,
+        // for the timeout handler
+        return timer.isPending(node);
+    }
 
-        // create sender packet from specified segment
-        // data, server and server port info
-        DatagramPacket sendPacket =  new DatagramPacket(sendData, sendData.length, IPAddress, serverPort);
+    public synchronized void sendPacketData(TxQueueNode node)
+    {
+        /* main UDP send logic */
+        // takes a window node and sends its segment
+        // payload and sequence number as a packet to
+        // server, it then schedules the node on the
+        // timer wheel, where upon timeout the packet
+        // is resent
+        Segment seg = node.seg;
+        int seqNo = seg.getSeqNum() | node.headerFlags;
 
         // try send packet to server
         try {
+            // record send time and timeout used,
+            // for rtt samples and backoff, a resend
+            // uses the timeout it was backed off to
+            long rto = node.transmissions == 0 ? rtt.getRto() : node.timeout;
+            node.sentTime = System.nanoTime();
+            node.timeout = rto;
+            node.transmissions++;
+            metrics.onSend(node.transmissions);
             // send packet
-            UDPSocket.send(sendPacket);
+            if(zeroCopy)
+                sendChannelData(seg, seqNo, node.checksum);
+            else
+                sendSocketData(seg, seqNo, node.checksum);
             // start timer
-            timer.schedule(new TimeoutHandler(this, seqNo, payload), responseTimeout);
+            timer.schedule(node, rto);
         } catch (Exception e) {
             System.out.println("Packet send error");
             System.out.println(e.getMessage());
         }
     }
 
+    private synchronized void sendParity(ByteBuffer parity)
+    {
+        // parity is sent once, and never timed
+        try {
+            UDPChannel.send(parity, serverAddress);
+        } catch (Exception e) {
+            System.out.println("Parity send error");
+            System.out.println(e.getMessage());
+        }
+    }
+
+    private void sendSocketData(Segment seg, int seqNo, int checksum) throws IOException
+    {
+        // the datagram is built in the heap buffer,
+        // safe to reuse as sendPacketData is synchronized,
+        // and sent through the socket's channel, as a
+        // DatagramPacket would allocate an address and
+        // a buffer on every send
+        // the session id and checksum go between
+        // header and payload
+        putSegment(socketBuffer, seg, seqNo, checksum);
+        socketBuffer.flip();
+
+        UDPChannel.send(socketBuffer, serverAddress);
+    }
+
+    private void sendChannelData(Segment seg, int seqNo, int checksum) throws IOException
+    {
+        // header and payload are written straight
+        // into the direct send buffer, which is safe
+        // to reuse as sendPacketData is synchronized
+        if(seg.getPayloadLength() > payloadSize)
+            throw new IllegalArgumentException("Payload is too large");
+
+        putSegment(sendBuffer, seg, seqNo, checksum);
+        sendBuffer.flip();
+
+        UDPChannel.send(sendBuffer, serverAddress);
+    }
+
+    private void putSegment(ByteBuffer buffer, Segment seg, int seqNo, int checksum)
+    {
+        // header, session id, checksum and payload,
+        // from the start of the buffer
+        buffer.clear();
+        if(sessionId >= 0) {
+            Segment.putHeader(buffer, seqNo | Segment.SESSION);
+            Segment.putHeader(buffer, sessionId);
+        } else {
+            Segment.putHeader(buffer, seqNo);
+        }
+        if(checksums)
+            Segment.putChecksum(buffer, checksum);
+        buffer.put(seg.getPayloadArray(), seg.getPayloadOffset(), seg.getPayloadLength());
+    }
+
 
     /**
      * A simple test driver
@@ -325,15 +1173,31 @@ public class FastClient {
      */
     public static void main(String[] args) {
         int window = 10; //segments
-        int timeout = 100; // milli-seconds (don't change this value)
+        int timeout = 100; // milli-seconds, initial value (don't change this value)
         
         String server = "localhost";
         String file_name = "";
         int server_port = 0;
         
+        boolean zeroCopy = false;
+        String cc = null;
+        int spins = 0;
+        int segmentSize = 0;
+        boolean probe = false;
+        long pace = -1;
+        double fecRatio = 0;
+        boolean compress = false;
+        boolean checksum = false;
+        boolean sack = false;
+        boolean resume = false;
+        boolean deltaMode = false;
+        boolean early = false;
+        String jmx = null;
+        boolean metricsReport = false;
+        
         // check for command line arguments
-        if (args.length == 4) {
-            // either provide 3 parameters
+        if (args.length >= 4) {
+            // either provide 4 parameters
             server = args[0];
             server_port = Integer.parseInt(args[1]);
             file_name = args[2];
@@ -341,16 +1205,130 @@ public class FastClient {
         }
         else {
             System.out.println("wrong number of arguments, try again.");
-            System.out.println("usage: java FastClient server port file windowsize");
+            System.out.println("usage: java FastClient server port file windowsize [options]");
+            System.out.println("options: -zerocopy -cc reno|cubic -spin count -sack -segment bytes -probe -pace rate -fec ratio -compress -checksum -resume -delta -0rtt");
+            System.out.println("         -jmx name -metrics");
+            System.out.println("         a pace rate of 0 derives it from the window and rtt");
             System.exit(0);
         }
 
+        // optional flags follow the required parameters
+        for (int i = 4; i < args.length; i++) {
+            if (args[i].equals("-zerocopy")) {
+                zeroCopy = true;
+            }
+            else if (args[i].equals("-cc") && i + 1 < args.length) {
+                cc = args[++i];
+            }
+            else if (args[i].equals("-sack")) {
+                sack = true;
+            }
+            else if (args[i].equals("-segment") && i + 1 < args.length) {
+                segmentSize = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-probe")) {
+                probe = true;
+            }
+            else if (args[i].equals("-fec") && i + 1 < args.length) {
+                fecRatio = Double.parseDouble(args[++i]);
+            }
+            else if (args[i].equals("-compress")) {
+                compress = true;
+            }
+            else if (args[i].equals("-checksum")) {
+                checksum = true;
+            }
+            else if (args[i].equals("-resume")) {
+                resume = true;
+            }
+            else if (args[i].equals("-delta")) {
+                deltaMode = true;
+            }
+            else if (args[i].equals("-0rtt")) {
+                early = true;
+            }
+            else if (args[i].equals("-jmx") && i + 1 < args.length) {
+                jmx = args[++i];
+            }
+            else if (args[i].equals("-metrics")) {
+                metricsReport = true;
+            }
+            else if (args[i].equals("-pace") && i + 1 < args.length) {
+                pace = Long.parseLong(args[++i]);
+            }
+            else if (args[i].equals("-spin") && i + 1 < args.length) {
+                spins = Integer.parseInt(args[++i]);
+            }
+            else {
+                System.out.println("unknown option: " + args[i]);
+                System.exit(0);
+            }
+        }
+
         
         FastClient fc = new FastClient(server, server_port, window, timeout);
+        fc.setZeroCopy(zeroCopy);
+        fc.setSpinLimit(spins);
+        fc.setSelectiveAck(sack);
+        fc.setPathMtuProbe(probe);
+        fc.setForwardErrorCorrection(fecRatio);
+        fc.setCompression(compress);
+        fc.setChecksums(checksum);
+        fc.setResume(resume);
+        fc.setDelta(deltaMode);
+        fc.setOptimisticStart(early);
+        if (pace >= 0) {
+            fc.setPacing(true);
+            fc.getPacer().setRate(pace);
+        }
+        if (segmentSize > 0) {
+            fc.setSegmentSize(segmentSize);
+        }
+        // without -cc the window stays fixed
+        if (cc != null) {
+            if (cc.equals("reno")) {
+                fc.setCongestionControl(new RenoController(window));
+            }
+            else if (cc.equals("cubic")) {
+                fc.setCongestionControl(new CubicController(window));
+            }
+            else {
+                System.out.println("unknown congestion control: " + cc);
+                System.exit(0);
+            }
+        }
+        
+        if (jmx != null) {
+            try {
+                fc.registerMetrics(jmx);
+            } catch (JMException e) {
+                System.out.println("JMX registration error: " + e.getMessage());
+            }
+        }
         
         System.out.printf("sending file \'%s\' to server...\n", file_name);
-        fc.send(file_name);
+        if (!fc.send(file_name)) {
+            System.exit(1);
+        }
+        if (checksum && !fc.isVerified()) {
+            System.out.println("file transfer failed, the server's copy does not match.");
+            System.exit(1);
+        }
         System.out.println("file transfer completed.");
+        if (fc.getCompressor() != null) {
+            System.out.printf("compression: %d bytes sent as %d\n",
+                fc.getCompressor().getRawBytes(), fc.getCompressor().getWireBytes());
+        }
+        if (fc.getDelta() != null) {
+            System.out.printf("delta: %d bytes matched, %d sent as literals\n",
+                fc.getDelta().getMatchedBytes(), fc.getDelta().getLiteralBytes());
+        }
+        if (fc.getPacer() != null) {
+            System.out.println("pacing: " + fc.getPacer());
+        }
+        if (metricsReport) {
+            System.out.println("metrics: " + fc.getMetrics().snapshot());
+        }
     }
 
 }
@@ -0,0 +1,590 @@
+/**
+ * FastServer Class
+ *
+ * FastServer implements the receiving side of the selective repeat FTP protocol.
+ * It speaks the same TCP handshake and Segment format as the original server,
+ * but handles any number of concurrent clients on a single event loop thread:
+ * every TCP control connection and one shared UDP socket are driven by a Selector.
+ *
+ * Data segments are written straight to their offset in the file, so a segment
+ * never waits in memory for the gap before it; each ServerSession only keeps
+ * the sequence numbers received out of order, bounded by the receive window.
+ *
+ * Clients that negotiate sessions, such as a TransferEngine running many
+ * transfers over a few sockets, are told apart by the session id that follows
+ * the header of their datagrams, and get it back after each ack.
+ * Those that also negotiate keepalive send file after file over one control
+ * connection, each transfer under a new session id.
+ *
+ * Clients starting early send their first window right behind the handshake;
+ * datagrams that arrive before it is read are held for a short time, and
+ * taken once the handshake agrees to the format they were sent in.
+ *
+ */
+import java.net.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class FastServer {
+
+    public final static int ACK_EVERY = 2; // in order segments per sack ack
+    public final static long DELAYED_ACK = 5; // milli-seconds
+    public final static long EXTENSION_GRACE = 50; // milli-seconds
+    public final static int SOCKET_BUFFER = 4 * 1024 * 1024; // bytes, capped by the OS
+    public final static int EARLY_CLIENTS = 64; // clients with datagrams held
+    public final static long EARLY_TIMEOUT = 1000; // milli-seconds
+
+    private int serverPort;
+    private int windowSize;
+    private float serverLoss;
+    private Random random;
+    private Selector selector;
+    private ServerSocketChannel TCPChannel;
+    private DatagramChannel UDPChannel;
+    private boolean running;
+
+    // sessions by client udp address, and sessions
+    // whose udp address is not known yet
+    private HashMap<SocketAddress, ServerSession> sessions;
+    private ArrayList<ServerSession> unbound;
+    private ArrayList<ServerSession> handshaking;
+    // signs old copies for delta transfers, off
+    // the event loop, one at a time
+    private ExecutorService signer;
+    // forces resume checkpoints to disk, off
+    // the event loop
+    private ExecutorService journalWriter;
+    // sessions by session id, for clients that
+    // share a udp socket between transfers
+    private HashMap<Integer, ServerSession> sessionsById;
+    private int nextSessionId = 1;
+    // datagrams that came before the handshake,
+    // by client udp address
+    private HashMap<SocketAddress, EarlyDatagrams> earlyDatagrams;
+
+    private static class EarlyDatagrams {
+        long time;
+        ArrayList<byte[]> datagrams = new ArrayList<byte[]>();
+
+        EarlyDatagrams(long time) {
+            this.time = time;
+        }
+    }
+
+    // reused for every datagram and ack
+    private ByteBuffer receiveBuffer;
+    private ByteBuffer ackBuffer;
+    private byte[] ackBytes;
+    private SackAck sack;
+
+    /**
+        * Constructor to initialize the server
+        *
+        * @param server_port    port for both the TCP and UDP sockets
+        * @param window         receive window size
+        * @param loss           probability of dropping a received segment, for testing
+        */
+    public FastServer(int server_port, int window, float loss) {
+        serverPort = server_port;
+        windowSize = window;
+        serverLoss = loss;
+        random = new Random();
+
+        sessions = new HashMap<SocketAddress, ServerSession>();
+        unbound = new ArrayList<ServerSession>();
+        handshaking = new ArrayList<ServerSession>();
+        signer = workerThread("FastServer signer");
+        journalWriter = workerThread("FastServer journal");
+        sessionsById = new HashMap<Integer, ServerSession>();
+        earlyDatagrams = new HashMap<SocketAddress, EarlyDatagrams>();
+
+        // large enough for any negotiated segment size,
+        // a shorter buffer would truncate datagrams
+        receiveBuffer = ByteBuffer.allocateDirect(Segment.MAX_UDP_SEGMENT_SIZE);
+        receiveBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        ackBytes = new byte[SackAck.MAX_SIZE + Segment.SESSION_ID_SIZE];
+        ackBuffer = ByteBuffer.wrap(ackBytes);
+        sack = new SackAck();
+    }
+
+    /* open sockets */
+
+    public void open() throws IOException {
+        selector = Selector.open();
+
+        TCPChannel = ServerSocketChannel.open();
+        TCPChannel.bind(new InetSocketAddress(serverPort));
+        TCPChannel.configureBlocking(false);
+        TCPChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        // one socket serves every client, give bursts
+        // from all of them room to queue
+        UDPChannel = DatagramChannel.open();
+        UDPChannel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+        UDPChannel.bind(new InetSocketAddress(serverPort));
+        UDPChannel.configureBlocking(false);
+        UDPChannel.register(selector, SelectionKey.OP_READ);
+    }
+
+    /* event loop */
+
+    public void run() {
+        running = true;
+
+        while(running) {
+            try {
+                // wake up at least every delayed ack
+                // period to flush pending acks
+                selector.select(DELAYED_ACK);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid())
+                        continue;
+
+                    if(key.channel() == UDPChannel) {
+                        receiveSegments();
+                    } else if(key.isAcceptable()) {
+                        acceptClient();
+                    } else {
+                        if(key.isWritable())
+                            writeControl(key);
+                        if(key.isValid() && key.isReadable())
+                            readControl(key);
+                    }
+                }
+
+                checkTimers(System.nanoTime());
+            } catch (IOException e) {
+                System.out.println("[Server] Event loop error: " + e.getMessage());
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private static ExecutorService workerThread(final String name) {
+        // a single daemon thread, so it does not
+        // keep the server alive
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void close() {
+        try {
+            for(ServerSession session : new ArrayList<ServerSession>(sessions.values()))
+                session.close();
+            for(ServerSession session : sessionsById.values())
+                session.close();
+            for(ServerSession session : unbound)
+                session.close();
+            for(ServerSession session : handshaking)
+                session.close();
+            signer.shutdownNow();
+            // a checkpoint in flight is let finish,
+            // interrupting it would close the file
+            journalWriter.shutdown();
+            TCPChannel.close();
+            UDPChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            System.out.println("[Server] Socket close error");
+        }
+    }
+
+    private void acceptClient() throws IOException {
+        SocketChannel control = TCPChannel.accept();
+        if(control == null)
+            return;
+
+        control.configureBlocking(false);
+        control.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        ServerSession session = new ServerSession(control, windowSize);
+        session.setSigner(signer);
+        session.setJournalWriter(journalWriter);
+        assignSessionId(session);
+        control.register(selector, SelectionKey.OP_READ, session);
+        handshaking.add(session);
+    }
+
+    private void readControl(SelectionKey key) {
+        ServerSession session = (ServerSession) key.attachment();
+        try {
+            if(session.getState() == ServerSession.HANDSHAKE) {
+                if(session.readHandshake(System.nanoTime()))
+                    startTransfer(key, session);
+                else if(session.getState() == ServerSession.SIGNING)
+                    key.interestOps(0);
+                else if(session.getState() == ServerSession.CLOSED)
+                    endSession(session);
+            } else if(session.readTermination()) {
+                System.out.println("[Server] file transfer completed: " + session.getFileName()
+                    + " (" + session.getBytesWritten() + " bytes"
+                    + (session.getRecoveredCount() > 0 ? ", " + session.getRecoveredCount() + " recovered" : "")
+                    + (session.getCorruptCount() > 0 ? ", " + session.getCorruptCount() + " corrupt" : "")
+                    + (session.getPatcher() != null ? ", " + session.getPatcher().getCopiedBytes() + " copied" : "") + ")");
+                if(session.getNegotiatedOptions().has(HandshakeOptions.KEEPALIVE))
+                    keepAlive(key, session);
+                else
+                    endSession(session);
+            }
+        } catch (IOException e) {
+            System.out.println("[Server] " + e.getMessage());
+            endSession(session);
+        }
+    }
+
+    private void writeControl(SelectionKey key) {
+        ServerSession session = (ServerSession) key.attachment();
+        try {
+            if(session.flushControl())
+                key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            System.out.println("[Server] " + e.getMessage());
+            endSession(session);
+        }
+    }
+
+    private void assignSessionId(ServerSession session) {
+        session.setSessionId(nextSessionId);
+        nextSessionId = nextSessionId == Integer.MAX_VALUE ? 1 : nextSessionId + 1;
+    }
+
+    private void startTransfer(SelectionKey key, ServerSession session) {
+        handshaking.remove(session);
+        // a reply too large for the socket
+        // goes out as it drains
+        if(session.hasPendingControl() && key.isValid())
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        if(session.getState() != ServerSession.TRANSFER)
+            return;
+
+        if(session.getNegotiatedOptions().has(HandshakeOptions.SESSION))
+            sessionsById.put(session.getSessionId(), session);
+        else if(session.getUdpAddress() != null)
+            sessions.put(session.getUdpAddress(), session);
+        else
+            unbound.add(session);
+
+        try {
+            replayEarly(session);
+        } catch (IOException e) {
+            System.out.println("[Server] " + e.getMessage());
+        }
+    }
+
+    private void keepAlive(SelectionKey key, ServerSession session) throws IOException {
+        // the connection stays open for the next
+        // file, whose handshake may already be here
+        ServerSession next = session.nextSession();
+        removeSession(session);
+        assignSessionId(next);
+        key.attach(next);
+        handshaking.add(next);
+        try {
+            if(next.parseBuffered(System.nanoTime()))
+                startTransfer(key, next);
+            else if(next.getState() == ServerSession.SIGNING)
+                key.interestOps(0);
+            else if(next.hasPendingControl())
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            endSession(next);
+            throw e;
+        }
+    }
+
+    private void endSession(ServerSession session) {
+        session.close();
+        removeSession(session);
+    }
+
+    private void removeSession(ServerSession session) {
+        handshaking.remove(session);
+        unbound.remove(session);
+        if(session.getNegotiatedOptions().has(HandshakeOptions.SESSION))
+            sessionsById.remove(session.getSessionId());
+        else if(session.getUdpAddress() != null)
+            sessions.remove(session.getUdpAddress());
+    }
+
+    private ServerSession findSession(SocketAddress from) {
+        ServerSession session = sessions.get(from);
+        if(session != null)
+            return session;
+
+        // plain clients are matched to the oldest
+        // transfer from the same host with no udp
+        // address yet
+        InetAddress host = ((InetSocketAddress) from).getAddress();
+        for(int i = 0; i < unbound.size(); i++) {
+            session = unbound.get(i);
+            InetAddress peer = session.getControl().socket().getInetAddress();
+            if(host.equals(peer)) {
+                unbound.remove(i);
+                session.setUdpAddress((InetSocketAddress) from);
+                sessions.put(from, session);
+                return session;
+            }
+        }
+        return null;
+    }
+
+    private void receiveSegments() throws IOException {
+        // drain every datagram queued on the socket
+        while(true) {
+            receiveBuffer.clear();
+            SocketAddress from = UDPChannel.receive(receiveBuffer);
+            if(from == null)
+                return;
+
+            receiveBuffer.flip();
+            if(receiveBuffer.remaining() < Segment.HEADER_SIZE)
+                continue;
+
+            // simulated loss, as the original server
+            if(serverLoss > 0 && random.nextFloat() <= serverLoss)
+                continue;
+
+            receiveSegment(from, true);
+        }
+    }
+
+    private void receiveSegment(SocketAddress from, boolean live) throws IOException {
+        // one datagram in the receive buffer, live
+        // unless it was kept from before a handshake
+
+        // path mtu probes are echoed to anyone,
+        // with the length that got through
+        if(receiveBuffer.getInt(0) == MtuProbe.PROBE) {
+            sendProbeEcho(from, receiveBuffer.remaining());
+            return;
+        }
+
+        // a session id after the header names the
+        // transfer, otherwise the sender does
+        int seqNo = receiveBuffer.getInt();
+        ServerSession session;
+        boolean tagged = (seqNo >= 0 && (seqNo & Segment.SESSION) != 0) || seqNo == FecEncoder.SESSION_PARITY;
+        if(tagged) {
+            if(receiveBuffer.remaining() < Segment.SESSION_ID_SIZE)
+                return;
+            session = sessionsById.get(receiveBuffer.getInt());
+            if(session != null && !from.equals(session.getUdpAddress()))
+                session = null;
+            seqNo = seqNo == FecEncoder.SESSION_PARITY ? FecEncoder.PARITY : seqNo & ~Segment.SESSION;
+        } else {
+            session = findSession(from);
+        }
+        if(session == null) {
+            // a client starting early may send
+            // before its handshake is read
+            if(live && !tagged && (seqNo >= 0 || seqNo == FecEncoder.PARITY))
+                keepEarly(from);
+            return;
+        }
+        if(session.getState() != ServerSession.TRANSFER)
+            return;
+
+        boolean fec = session.getNegotiatedOptions().has(HandshakeOptions.FEC);
+        if(seqNo < 0 && !(fec && seqNo == FecEncoder.PARITY))
+            return;
+
+        // segments that fail their checksum are
+        // dropped, and resent as if lost
+        if((seqNo >= 0 || seqNo == FecEncoder.PARITY)
+                && session.getNegotiatedOptions().has(HandshakeOptions.CHECKSUM)) {
+            if(receiveBuffer.remaining() < Segment.CHECKSUM_SIZE)
+                return;
+            int checksum = receiveBuffer.getInt();
+            if(!session.verify(seqNo, checksum, receiveBuffer))
+                return;
+        }
+
+        // deflated payloads are written inflated
+        ByteBuffer payload = receiveBuffer;
+        if(seqNo > 0 && (seqNo & Segment.COMPRESSED) != 0
+                && session.getNegotiatedOptions().has(HandshakeOptions.COMPRESS)) {
+            seqNo = seqNo & ~Segment.COMPRESSED;
+            payload = session.inflate(receiveBuffer);
+            if(payload == null)
+                return;
+        }
+
+        try {
+            int recovered;
+            if(seqNo == FecEncoder.PARITY) {
+                recovered = session.receiveParity(receiveBuffer);
+            } else {
+                if(session.receive(seqNo, payload) > 0)
+                    sendAck(session, from, seqNo);
+                recovered = fec ? session.checkParity(seqNo) : -1;
+            }
+
+            // a segment rebuilt from parity is taken
+            // as if it had arrived
+            if(recovered >= 0 && session.receive(recovered, session.getRecovered()) > 0)
+                sendAck(session, from, recovered);
+        } catch (IOException e) {
+            System.out.println("[Server] Write error on " + session.getFileName() + ": " + e.getMessage());
+            endSession(session);
+        }
+    }
+
+    private void keepEarly(SocketAddress from) {
+        // held until the handshake of the same
+        // client is read, bounded per client and
+        // in all
+        EarlyDatagrams early = earlyDatagrams.get(from);
+        if(early == null) {
+            if(earlyDatagrams.size() >= EARLY_CLIENTS)
+                return;
+            early = new EarlyDatagrams(System.nanoTime());
+            earlyDatagrams.put(from, early);
+        }
+        if(early.datagrams.size() >= windowSize)
+            return;
+        receiveBuffer.rewind();
+        byte[] datagram = new byte[receiveBuffer.remaining()];
+        receiveBuffer.get(datagram);
+        early.datagrams.add(datagram);
+    }
+
+    private void replayEarly(ServerSession session) throws IOException {
+        // segments that came ahead of the handshake
+        // are taken if the client started early in
+        // the format agreed, and dropped otherwise
+        if(session.getUdpAddress() == null)
+            return;
+        EarlyDatagrams early = earlyDatagrams.remove(session.getUdpAddress());
+        if(early == null || !session.getNegotiatedOptions().has(HandshakeOptions.EARLY))
+            return;
+        for(byte[] datagram : early.datagrams) {
+            receiveBuffer.clear();
+            receiveBuffer.put(datagram);
+            receiveBuffer.flip();
+            receiveSegment(session.getUdpAddress(), false);
+            if(session.getState() != ServerSession.TRANSFER)
+                return;
+        }
+    }
+
+    private void sendAck(ServerSession session, SocketAddress to, int seqNo) throws IOException {
+        ackBuffer.clear();
+        if(session.getNegotiatedOptions().has(HandshakeOptions.SACK)) {
+            session.buildAck(sack);
+            ackBuffer.limit(sack.getBytes(ackBytes));
+        } else {
+            // plain ack, the sequence number alone
+            Segment.putHeader(ackBuffer, seqNo);
+            ackBuffer.flip();
+        }
+        if(session.getNegotiatedOptions().has(HandshakeOptions.SESSION)) {
+            // the session id goes after the ack, in
+            // the byte order of the header
+            ackBuffer.position(ackBuffer.limit());
+            ackBuffer.limit(ackBuffer.capacity());
+            Segment.putHeader(ackBuffer, session.getSessionId());
+            ackBuffer.flip();
+        }
+        UDPChannel.send(ackBuffer, to);
+    }
+
+    private void sendProbeEcho(SocketAddress to, int length) throws IOException {
+        ackBuffer.clear();
+        ackBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        MtuProbe.putEcho(ackBuffer, length);
+        ackBuffer.order(ByteOrder.BIG_ENDIAN);
+        ackBuffer.flip();
+        UDPChannel.send(ackBuffer, to);
+    }
+
+    private void checkTimers(long now) throws IOException {
+        // plain handshakes that waited long enough
+        // for extensions, old copies signed, whose
+        // control connection is read again, datagrams
+        // held for a handshake that never came,
+        // delayed sack acks, and resume checkpoints
+        for(int i = handshaking.size() - 1; i >= 0; i--) {
+            ServerSession session = handshaking.get(i);
+            SelectionKey key = session.getControl().keyFor(selector);
+            try {
+                if(session.signing()) {
+                    if(key.isValid())
+                        key.interestOps(SelectionKey.OP_READ);
+                    startTransfer(key, session);
+                } else if(session.handshakeTimedOut(now)) {
+                    startTransfer(key, session);
+                }
+            } catch (IOException e) {
+                System.out.println("[Server] " + e.getMessage());
+                endSession(session);
+            }
+        }
+        Iterator<EarlyDatagrams> early = earlyDatagrams.values().iterator();
+        while(early.hasNext()) {
+            if(now - early.next().time > EARLY_TIMEOUT * 1000000)
+                early.remove();
+        }
+        for(ServerSession session : sessions.values()) {
+            if(session.ackDue(now))
+                sendAck(session, session.getUdpAddress(), 0);
+            session.checkpoint(now);
+        }
+        for(ServerSession session : sessionsById.values()) {
+            if(session.ackDue(now))
+                sendAck(session, session.getUdpAddress(), 0);
+            session.checkpoint(now);
+        }
+    }
+
+
+    /**
+     * A simple test driver
+     *
+     */
+    public static void main(String[] args) {
+        int window = 10; //segments
+        float loss = 0;
+        int server_port = 0;
+
+        // check for command line arguments
+        if (args.length == 2 || args.length == 3) {
+            server_port = Integer.parseInt(args[0]);
+            window = Integer.parseInt(args[1]);
+            if (args.length == 3)
+                loss = Float.parseFloat(args[2]);
+        }
+        else {
+            System.out.println("[Server] wrong number of arguments, try again.");
+            System.out.println("[Server] usage: java FastServer serverport windowsize [loss]");
+            System.exit(0);
+        }
+
+        FastServer server = new FastServer(server_port, window, loss);
+        try {
+            server.open();
+        } catch (IOException e) {
+            System.out.println("[Server] Socket initialization error: " + e.getMessage());
+            System.exit(1);
+        }
+
+        System.out.printf("[Server] Ready to receive client connection requests on port %d\n", server_port);
+        server.run();
+        server.close();
+    }
+
+}
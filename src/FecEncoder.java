@@ -0,0 +1,187 @@
+/* Class: FecEncoder
+ *
+ * This class builds the XOR parity
+ * segments of forward error correction
+ * (HandshakeOptions.FEC)
+ * After every block of new data segments
+ * the client sends one parity datagram:
+ *
+ *   int    PARITY
+ *   int    CRC32C, only if checksums are negotiated
+ *   int    first sequence number of the block
+ *   int    number of segments in the block
+ *   int    XOR of the payload lengths
+ *   XOR of the payloads, as long as the longest
+ *
+ * all in the byte order of the Segment
+ * header, with SESSION_PARITY and the session
+ * id in place of PARITY when sessions are
+ * negotiated, and the server rebuilds any
+ * one segment of the block that is lost
+ * Parity is not acknowledged or resent
+ *
+ * The block size starts at the one set
+ * and adapts to the losses the parity
+ * fails to recover: each timeout halves
+ * it, down to MIN_BLOCK, and each block
+ * sent without one grows it by a segment
+ * back up to the size set
+ */
+
+import java.nio.*;
+import java.util.*;
+import java.util.zip.*;
+
+public class FecEncoder
+{
+    public final static int PARITY = -2; // header of parity segments
+    public final static int SESSION_PARITY = -3; // followed by a session id
+    public final static int HEADER_SIZE = 16; // bytes
+    public final static int MAX_PAYLOAD_SIZE = Segment.MAX_UDP_SEGMENT_SIZE - HEADER_SIZE - Segment.CHECKSUM_SIZE; // bytes
+    public final static int MIN_BLOCK = 2; // segments
+
+    private int maxBlock;
+    private int block;
+    private volatile int timeouts;
+    private int timeoutsSeen;
+    private long parityCount;
+
+    // the block being built
+    private byte[] parity;
+    private int first;
+    private int count;
+    private int length;
+    private int xorLength;
+    private ByteBuffer datagram;
+    private int sessionId = -1;
+
+    public FecEncoder(int blockSize, int payloadSize)
+    {
+        if(blockSize < 1)
+            throw new IllegalArgumentException("Block size must be positive");
+        if(payloadSize <= 0 || payloadSize > MAX_PAYLOAD_SIZE)
+            throw new IllegalArgumentException("Invalid payload size for parity: " + payloadSize);
+
+        maxBlock = blockSize;
+        block = blockSize;
+        parity = new byte[payloadSize];
+        datagram = ByteBuffer.allocate(HEADER_SIZE + Segment.SESSION_ID_SIZE + Segment.CHECKSUM_SIZE + payloadSize);
+        datagram.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public void setSessionId(int id)
+    {
+        // marks parity with the session id, as
+        // data segments are, -1 for none
+        sessionId = id;
+    }
+
+    public static int blockSize(double ratio)
+    {
+        // data segments per parity segment for a
+        // redundancy ratio, e.g. 0.1 for one in ten
+        if(ratio <= 0 || ratio > 1)
+            throw new IllegalArgumentException("Redundancy ratio must be in (0, 1]");
+        return Math.max(1, (int) Math.round(1 / ratio));
+    }
+
+    public int getBlockSize()
+    {
+        return block;
+    }
+
+    public double getRatio()
+    {
+        // current redundancy, parity segments
+        // per data segment
+        return 1.0 / block;
+    }
+
+    public long getParityCount()
+    {
+        // parity segments built so far
+        return parityCount;
+    }
+
+    public void onTimeout()
+    {
+        // called from the timer thread, a loss
+        // the parity did not cover
+        timeouts++;
+    }
+
+    public void add(int seqNo, byte[] payload)
+    {
+        add(seqNo, payload, payload.length);
+    }
+
+    public void add(int seqNo, byte[] payload, int payloadLength)
+    {
+        // adds a new data segment to the block,
+        // segments have to be added in order
+        // the payload is the start of the array
+        if(count == 0)
+            first = seqNo;
+        for(int i = 0; i < payloadLength; i++)
+            parity[i] ^= payload[i];
+        length = Math.max(length, payloadLength);
+        xorLength ^= payloadLength;
+        count++;
+    }
+
+    public boolean isBlockComplete()
+    {
+        return count >= block;
+    }
+
+    public boolean isEmpty()
+    {
+        return count == 0;
+    }
+
+    public ByteBuffer finishBlock(CRC32C crc)
+    {
+        // returns the parity datagram of the
+        // block, valid until the next call, and
+        // starts a new block
+        // with a crc the datagram is checksummed
+        // like a data segment, after the header
+        datagram.clear();
+        if(sessionId >= 0) {
+            datagram.putInt(SESSION_PARITY);
+            datagram.putInt(sessionId);
+        } else {
+            datagram.putInt(PARITY);
+        }
+        int checksumAt = datagram.position();
+        if(crc != null)
+            datagram.putInt(0);
+        int body = datagram.position();
+        datagram.putInt(first);
+        datagram.putInt(count);
+        datagram.putInt(xorLength);
+        datagram.put(parity, 0, length);
+        datagram.flip();
+        if(crc != null) {
+            datagram.position(body);
+            datagram.putInt(checksumAt, Segment.checksum(crc, PARITY, datagram));
+            datagram.position(0);
+        }
+        parityCount++;
+
+        Arrays.fill(parity, 0, length, (byte) 0);
+        count = 0;
+        length = 0;
+        xorLength = 0;
+
+        // adapt the block size for the next one
+        int seen = timeouts;
+        if(seen != timeoutsSeen)
+            block = Math.max(Math.min(MIN_BLOCK, maxBlock), block / 2);
+        else if(block < maxBlock)
+            block++;
+        timeoutsSeen = seen;
+
+        return datagram;
+    }
+}
@@ -0,0 +1,217 @@
+/* Class: FileSegmentSource
+ *
+ * This class serves the contents of a
+ * file as a sequence of segment payloads
+ * Regular files are memory mapped one
+ * region at a time, so the file is never
+ * loaded onto the heap and files larger
+ * than 2 GB are supported
+ * Files that cannot be mapped (pipes,
+ * devices) are read through a bounded
+ * read-ahead buffer instead
+ * A source can also serve a byte range
+ * of a regular file, for striped sends,
+ * or skip the segments a resumed transfer
+ * does not need to send
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+public class FileSegmentSource implements SegmentSource
+{
+    // size of each mapped region of the file
+    public final static int MAP_REGION_SIZE = 64 * 1024 * 1024; // bytes
+    // segments buffered when the file cannot be mapped
+    public final static int READ_AHEAD_SEGMENTS = 64;
+
+    private FileInputStream fileStream;
+    private FileChannel channel;
+    private int segmentSize;
+    private long position;
+    private long end;
+
+    // mapped mode
+    private boolean mapped;
+    private long fileSize;
+    private long regionSize;
+    private long regionStart;
+    private MappedByteBuffer region;
+    private ResumeRanges skip;
+
+    // read-ahead mode
+    private ByteBuffer readAhead;
+    private boolean endOfStream;
+
+    public FileSegmentSource(File file, int segmentSize) throws IOException
+    {
+        this(file, segmentSize, 0, Long.MAX_VALUE);
+    }
+
+    public FileSegmentSource(File file, int segmentSize, long start, long length) throws IOException
+    {
+        // serves at most length bytes from start
+        // on, which only a mapped file can skip to
+        if(segmentSize <= 0)
+            throw new IllegalArgumentException("Segment size must be positive");
+        if(start < 0 || length < 0)
+            throw new IllegalArgumentException("Negative file range");
+
+        this.segmentSize = segmentSize;
+        fileStream = new FileInputStream(file);
+        channel = fileStream.getChannel();
+
+        // regions are a whole number of segments
+        // so a payload never spans two mappings
+        regionSize = (MAP_REGION_SIZE / segmentSize) * (long) segmentSize;
+        if(regionSize == 0)
+            regionSize = segmentSize;
+
+        // try the first mapping, and fall back to
+        // streaming if the file does not support it
+        try {
+            fileSize = channel.size();
+            mapped = file.isFile();
+            position = Math.min(start, fileSize);
+            end = fileSize - position > length ? position + length : fileSize;
+            if(mapped && end > position)
+                mapRegion(position);
+        } catch (IOException | UnsupportedOperationException e) {
+            mapped = false;
+        }
+
+        if(!mapped) {
+            if(start != 0 || length != Long.MAX_VALUE) {
+                close();
+                throw new IOException("File ranges need a regular file");
+            }
+            position = 0;
+            fileSize = -1;
+            readAhead = ByteBuffer.allocateDirect(segmentSize * READ_AHEAD_SEGMENTS);
+            readAhead.flip();
+        }
+    }
+
+    public boolean isMapped()
+    {
+        return mapped;
+    }
+
+    public long size()
+    {
+        // returns -1 when the size is not known
+        // in advance (unmapped files)
+        return fileSize;
+    }
+
+    public long position()
+    {
+        return position;
+    }
+
+    public void setSkip(ResumeRanges ranges) throws IOException
+    {
+        // leaves out the segments in the ranges,
+        // counted from the start of the file
+        if(!mapped && ranges != null)
+            throw new IOException("Skipping segments needs a regular file");
+        skip = ranges;
+    }
+
+    public boolean hasNext() throws IOException
+    {
+        if(mapped) {
+            if(skip != null)
+                skipSegments();
+            return position < end;
+        }
+
+        fill();
+        return readAhead.hasRemaining();
+    }
+
+    public byte[] next() throws IOException
+    {
+        // returns the payload of the next segment
+        // copied in bulk from the file
+        byte[] payload = new byte[nextLength()];
+        next(payload);
+        return payload;
+    }
+
+    public int next(byte[] buffer) throws IOException
+    {
+        // the same, copied into the given buffer
+        // so a sender can reuse it
+        int len = nextLength();
+        if(mapped)
+            region.get(buffer, 0, len);
+        else
+            readAhead.get(buffer, 0, len);
+        position += len;
+        return len;
+    }
+
+    public void close() throws IOException
+    {
+        region = null;
+        channel.close();
+        fileStream.close();
+    }
+
+    private int nextLength() throws IOException
+    {
+        // length of the next payload, with the
+        // region holding it mapped
+        if(!hasNext())
+            throw new EOFException("No more segments");
+
+        if(mapped) {
+            if(position >= regionStart + region.capacity())
+                mapRegion(position);
+            return (int) Math.min(segmentSize, end - position);
+        }
+        return Math.min(segmentSize, readAhead.remaining());
+    }
+
+    private void mapRegion(long start) throws IOException
+    {
+        // maps the region starting at the given offset
+        // the previous region is released for the
+        // garbage collector to unmap
+        long len = Math.min(regionSize, end - start);
+        region = channel.map(FileChannel.MapMode.READ_ONLY, start, len);
+        regionStart = start;
+    }
+
+    private void skipSegments()
+    {
+        // moves past a range to skip, the region
+        // is remapped by next() once left
+        long segment = position / segmentSize;
+        long next = skip.skip(segment);
+        if(next == segment)
+            return;
+        position = Math.min(end, next * segmentSize);
+        if(region != null && position < regionStart + region.capacity())
+            region.position((int) (position - regionStart));
+    }
+
+    private void fill() throws IOException
+    {
+        // tops up the read-ahead buffer once less
+        // than a full segment is left in it
+        if(endOfStream || readAhead.remaining() >= segmentSize)
+            return;
+
+        readAhead.compact();
+        while(readAhead.hasRemaining()) {
+            if(channel.read(readAhead) < 0) {
+                endOfStream = true;
+                break;
+            }
+        }
+        readAhead.flip();
+    }
+}
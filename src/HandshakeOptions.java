@@ -0,0 +1,166 @@
+/* Class: HandshakeOptions
+ *
+ * This class holds the protocol extensions
+ * negotiated over the TCP handshake
+ * A client that wants extensions sends,
+ * right after the file name:
+ *
+ *   int    MAGIC
+ *   int    requested flags
+ *   short  number of parameters
+ *   (short key, int value) for each parameter
+ *
+ * and a server that understands them answers,
+ * right after its status byte, with the flags
+ * and parameters it accepted in the same
+ * layout without the magic
+ * With RESUME accepted the reply goes on
+ * with the ranges already received, see
+ * ResumeRanges.write(), and with DELTA
+ * accepted with the DeltaSignatures of
+ * the server's copy
+ * With KEEPALIVE accepted the connection
+ * stays open after the end of transmission,
+ * for the handshake of the next file
+ * With EARLY the client sends its first
+ * window right after the request, in the
+ * format it asked for, and the server takes
+ * those segments only if it agreed to that
+ * format, see sameFormat()
+ * Clients that request nothing send the plain
+ * handshake, so the original server still works
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class HandshakeOptions
+{
+    public final static int MAGIC = 0x53525831; // "SRX1"
+
+    // extension flags
+    public final static int SACK = 1;
+    public final static int STRIPE = 2; // one byte range of the file
+    public final static int FEC = 4; // xor parity segments
+    public final static int COMPRESS = 8; // deflated payloads
+    public final static int CHECKSUM = 16; // crc32c per segment and file
+    public final static int RESUME = 32; // only segments the server lacks
+    public final static int DELTA = 64; // only blocks the server lacks
+    public final static int SESSION = 128; // session id in every datagram
+    public final static int KEEPALIVE = 256; // another file on the same connection
+    public final static int EARLY = 512; // data sent before the reply
+
+    // extensions that change the datagrams or acks
+    public final static int FORMAT = SACK | FEC | COMPRESS | CHECKSUM | SESSION;
+
+    // parameter keys
+    public final static int PARAM_UDP_PORT = 1;
+    public final static int PARAM_STRIPE_START = 2; // in segments
+    public final static int PARAM_PAYLOAD_SIZE = 3; // bytes per segment
+    public final static int PARAM_SESSION_ID = 4; // assigned by the server
+
+    private int flags;
+    private TreeMap<Integer, Integer> params;
+
+    public HandshakeOptions()
+    {
+        params = new TreeMap<Integer, Integer>();
+    }
+
+    public boolean has(int flag)
+    {
+        return (flags & flag) != 0;
+    }
+
+    public void set(int flag, boolean enabled)
+    {
+        if(enabled)
+            flags = flags | flag;
+        else
+            flags = flags & ~flag;
+    }
+
+    public int getFlags()
+    {
+        return flags;
+    }
+
+    public boolean sameFormat(HandshakeOptions other)
+    {
+        // true if segments and acks look the
+        // same under both
+        return (flags & FORMAT) == (other.flags & FORMAT)
+            && getParam(PARAM_PAYLOAD_SIZE, Segment.MAX_PAYLOAD_SIZE)
+                == other.getParam(PARAM_PAYLOAD_SIZE, Segment.MAX_PAYLOAD_SIZE);
+    }
+
+    public int getParam(int key, int defaultValue)
+    {
+        Integer value = params.get(key);
+        if(value == null)
+            return defaultValue;
+        return value;
+    }
+
+    public void setParam(int key, int value)
+    {
+        params.put(key, value);
+    }
+
+    public boolean isEmpty()
+    {
+        // nothing to negotiate, the plain
+        // handshake is used
+        return flags == 0 && params.isEmpty();
+    }
+
+    public void writeRequest(DataOutputStream out) throws IOException
+    {
+        out.writeInt(MAGIC);
+        writeBody(out);
+    }
+
+    public static HandshakeOptions readRequest(DataInputStream in) throws IOException
+    {
+        // the magic has to be read, and checked,
+        // by the caller
+        return readBody(in);
+    }
+
+    public void writeReply(DataOutputStream out) throws IOException
+    {
+        writeBody(out);
+    }
+
+    public static HandshakeOptions readReply(DataInputStream in) throws IOException
+    {
+        return readBody(in);
+    }
+
+    public String toString()
+    {
+        return "flags=" + flags + " params=" + params;
+    }
+
+    private void writeBody(DataOutputStream out) throws IOException
+    {
+        out.writeInt(flags);
+        out.writeShort(params.size());
+        for(Map.Entry<Integer, Integer> param : params.entrySet()) {
+            out.writeShort(param.getKey());
+            out.writeInt(param.getValue());
+        }
+    }
+
+    private static HandshakeOptions readBody(DataInputStream in) throws IOException
+    {
+        HandshakeOptions options = new HandshakeOptions();
+        options.flags = in.readInt();
+        int count = in.readUnsignedShort();
+        for(int i = 0; i < count; i++) {
+            int key = in.readUnsignedShort();
+            options.params.put(key, in.readInt());
+        }
+        return options;
+    }
+}
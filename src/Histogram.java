@@ -0,0 +1,116 @@
+/* Class: Histogram
+ *
+ * This class counts values into log-linear
+ * buckets, as HdrHistogram does: each power
+ * of two is split into SUB_BUCKETS linear
+ * buckets, so any value is kept to within
+ * 1 / SUB_BUCKETS of itself, in a fixed
+ * array whatever the range
+ * Recording is one atomic increment, safe
+ * from any thread, and reading is not
+ * synchronized with it, so a snapshot may
+ * miss values recorded while it is taken
+ */
+
+import java.util.concurrent.atomic.*;
+
+public class Histogram
+{
+    public final static int SUB_BUCKET_BITS = 5;
+    public final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // buckets per power of two
+
+    private AtomicLongArray counts;
+    private AtomicLong total;
+    private AtomicLong sum;
+    private AtomicLong max;
+
+    public Histogram()
+    {
+        // the first SUB_BUCKETS values have a bucket
+        // each, then SUB_BUCKETS per power of two up
+        // to Long.MAX_VALUE
+        counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+        total = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    public void record(long value)
+    {
+        // negative values count as 0
+        value = Math.max(0, value);
+        counts.incrementAndGet(bucket(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long seen;
+        while(value > (seen = max.get()) && !max.compareAndSet(seen, value))
+            ;
+    }
+
+    public long getCount()
+    {
+        return total.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public double getMean()
+    {
+        long n = total.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    public long getPercentile(double percentile)
+    {
+        // the highest value of the bucket holding
+        // the percentile, 0 when empty
+        long n = total.get();
+        if(n == 0)
+            return 0;
+        long rank = (long) Math.ceil(percentile / 100 * n);
+        rank = Math.max(1, Math.min(n, rank));
+
+        long seen = 0;
+        for(int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if(seen >= rank)
+                return Math.min(highest(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset()
+    {
+        for(int i = 0; i < counts.length(); i++)
+            counts.set(i, 0);
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    private static int bucket(long value)
+    {
+        if(value < SUB_BUCKETS)
+            return (int) value;
+        // the power of two, and the top bits
+        // below its leading one
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long highest(int bucket)
+    {
+        // the largest value counted in a bucket
+        if(bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS + sub) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
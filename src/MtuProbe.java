@@ -0,0 +1,202 @@
+/* Class: MtuProbe
+ *
+ * This class finds the largest datagram
+ * that reaches the server, so the client
+ * can ask for a segment size to match
+ * A probe is a datagram of a candidate
+ * size whose header holds PROBE instead
+ * of a sequence number, and the server
+ * echoes back the length it received
+ * Each round sends PROBES sizes spread
+ * between the largest size echoed so far
+ * and the smallest one that was not, and
+ * the search ends once they are within
+ * RESOLUTION bytes, in a few round trips
+ *
+ * Sizes never go above the mtu of the
+ * local interface towards the server
+ * Where the JDK supports it (JDK 19 on)
+ * the probes are sent with the don't
+ * fragment bit, otherwise a probe that
+ * was fragmented past the first hop
+ * still counts as delivered
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+public class MtuProbe
+{
+    public final static int PROBE = -1; // header of probes and echoes
+    public final static int ECHO_SIZE = 8; // bytes
+    public final static int ATTEMPTS = 2; // rounds with no echo
+    public final static int PROBES = 8; // sizes per round
+    public final static int RESOLUTION = 16; // bytes
+    // udp payload of the smallest datagram
+    // every ipv4 path carries (576 bytes)
+    public final static int MIN_SIZE = 576 - 28; // bytes
+
+    // ip and udp headers, less than the
+    // interface mtu a udp payload can take
+    private final static int IPV4_OVERHEAD = 28; // bytes
+    private final static int IPV6_OVERHEAD = 48; // bytes
+
+    private DatagramChannel channel;
+    private SocketAddress server;
+    private long timeout; // milli-seconds
+
+    public MtuProbe(DatagramChannel channel, SocketAddress server, long timeout)
+    {
+        this.channel = channel;
+        this.server = server;
+        this.timeout = timeout;
+    }
+
+    public int probe(int limit) throws IOException
+    {
+        // returns the largest payload size, at
+        // most limit, of a segment that got through
+        // or the default payload size if none did
+        // the channel has to be in blocking mode,
+        // with nothing else receiving on it
+        setDontFragment();
+
+        // largest size echoed, and smallest size
+        // that was sent but not echoed
+        int lower = 0;
+        int upper = Math.min(interfaceLimit(), limit + Segment.HEADER_SIZE) + 1;
+        int misses = 0;
+        ByteBuffer probe = ByteBuffer.allocate(Segment.MAX_UDP_SEGMENT_SIZE);
+        probe.order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer echo = ByteBuffer.allocate(ECHO_SIZE);
+        echo.order(ByteOrder.LITTLE_ENDIAN);
+        int[] sizes = new int[PROBES];
+
+        Selector selector = Selector.open();
+        channel.configureBlocking(false);
+        try {
+            channel.register(selector, SelectionKey.OP_READ);
+            while(upper - lower > RESOLUTION && misses < ATTEMPTS) {
+                // the largest size left to try, and
+                // the rest evenly below it
+                int count = 0;
+                for(int i = PROBES; i > 0; i--) {
+                    int size = lower + (int) ((long) (upper - 1 - lower) * i / PROBES);
+                    if(size > lower && size >= Segment.HEADER_SIZE && (count == 0 || size < sizes[count - 1]))
+                        sizes[count++] = size;
+                }
+                // smallest first, so a full receive
+                // buffer drops the large ones
+                for(int i = count - 1; i >= 0; i--) {
+                    probe.clear();
+                    probe.putInt(PROBE);
+                    probe.limit(sizes[i]);
+                    probe.position(0);
+                    try {
+                        channel.send(probe, server);
+                    } catch (IOException e) {
+                        // too large for the local interface
+                    }
+                }
+
+                // collect echoes until the timeout, or
+                // until the largest size is echoed
+                int echoed = lower;
+                long deadline = System.currentTimeMillis() + timeout;
+                long wait;
+                while(echoed < sizes[0] && (wait = deadline - System.currentTimeMillis()) > 0) {
+                    selector.select(wait);
+                    selector.selectedKeys().clear();
+                    while(true) {
+                        echo.clear();
+                        if(channel.receive(echo) == null)
+                            break;
+                        echo.flip();
+                        if(echo.remaining() != ECHO_SIZE || echo.getInt() != PROBE)
+                            continue;
+                        // late echoes of earlier rounds are
+                        // left out, only sizes sent now count
+                        int length = echo.getInt();
+                        for(int i = 0; i < count; i++) {
+                            if(sizes[i] == length)
+                                echoed = Math.max(echoed, length);
+                        }
+                    }
+                }
+
+                if(echoed == lower) {
+                    // no echo at all: every size was too
+                    // large, unless even one every path
+                    // carries was sent, then the server
+                    // may not answer probes or they were
+                    // lost, and the round is repeated
+                    if(sizes[count - 1] <= MIN_SIZE)
+                        misses++;
+                    else
+                        upper = sizes[count - 1];
+                    continue;
+                }
+                lower = echoed;
+                for(int i = count - 1; i >= 0; i--) {
+                    if(sizes[i] > lower) {
+                        upper = Math.min(upper, sizes[i]);
+                        break;
+                    }
+                }
+                if(upper <= lower)
+                    upper = lower + 1;
+            }
+        } finally {
+            selector.close();
+            channel.configureBlocking(true);
+        }
+
+        if(lower < Segment.HEADER_SIZE + 1)
+            return Math.min(limit, Segment.MAX_PAYLOAD_SIZE);
+        return Math.min(limit, lower - Segment.HEADER_SIZE);
+    }
+
+    public static void putEcho(ByteBuffer buffer, int length)
+    {
+        // the server's answer to a probe of
+        // the given length
+        buffer.putInt(PROBE);
+        buffer.putInt(length);
+    }
+
+    private int interfaceLimit()
+    {
+        // largest udp payload the local interface
+        // the server is reached through carries,
+        // found from the address a socket
+        // connected to the server is bound to
+        try(DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(server);
+            InetAddress local = socket.getLocalAddress();
+            NetworkInterface nif = NetworkInterface.getByInetAddress(local);
+            if(nif != null && nif.getMTU() > 0) {
+                int overhead = local instanceof Inet6Address ? IPV6_OVERHEAD : IPV4_OVERHEAD;
+                return Math.min(Segment.MAX_UDP_SEGMENT_SIZE, nif.getMTU() - overhead);
+            }
+        } catch (IOException e) {
+            // no route, the probes will tell
+        }
+        return Segment.MAX_UDP_SEGMENT_SIZE;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void setDontFragment()
+    {
+        // jdk.net.ExtendedSocketOptions.IP_DONTFRAGMENT
+        // is only there from JDK 19 on
+        try {
+            Class<?> options = Class.forName("jdk.net.ExtendedSocketOptions");
+            SocketOption<Boolean> option = (SocketOption<Boolean>) options.getField("IP_DONTFRAGMENT").get(null);
+            channel.setOption(option, true);
+        } catch (Exception e) {
+            // not supported, probes may be fragmented
+        }
+    }
+}
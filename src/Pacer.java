@@ -0,0 +1,146 @@
+/* Class: Pacer
+ *
+ * This class spaces the client's new
+ * segments out over the round trip,
+ * instead of sending every free window
+ * slot back to back
+ * The rate is the window over the
+ * smoothed rtt, times PACING_GAIN so the
+ * window can still grow, or a fixed rate
+ * when one is set
+ * Waits park the thread until shortly
+ * before the send time and spin the
+ * rest, as parking alone oversleeps by
+ * tens of micro-seconds
+ *
+ * The error of each paced send is how
+ * late it went out compared to its
+ * target time
+ */
+
+import java.util.concurrent.locks.*;
+
+public class Pacer
+{
+    public final static double PACING_GAIN = 1.25;
+    public final static long SPIN_NANOS = 100000; // nano-seconds spun before a send
+
+    private RttEstimator rtt;
+    private TxQueue window;
+    private volatile long rate; // bytes per second, 0 derives it
+
+    private long nextSend;
+
+    // pacing metrics, written by the
+    // sending thread only
+    private volatile long paced;
+    private volatile long waited;
+    private volatile long errorTotal;
+    private volatile long errorMax;
+
+    public Pacer(RttEstimator rtt, TxQueue window)
+    {
+        this.rtt = rtt;
+        this.window = window;
+    }
+
+    public void setRate(long bytesPerSecond)
+    {
+        // fixed rate, 0 goes back to the rate
+        // derived from the window and rtt
+        rate = Math.max(0, bytesPerSecond);
+    }
+
+    public long getRate()
+    {
+        return rate;
+    }
+
+    public long interval(int bytes)
+    {
+        // time a segment of the given size takes
+        // at the current rate, 0 when there is
+        // nothing to pace by yet
+        if(rate > 0)
+            return bytes * 1000000000L / rate;
+
+        double srtt = rtt.getSrtt();
+        if(srtt <= 0)
+            return 0;
+        return (long) (srtt * 1000000 / window.getLimit() / PACING_GAIN);
+    }
+
+    public void pace(int bytes)
+    {
+        // waits for the send time of the next
+        // segment, of the given size
+        long now = System.nanoTime();
+        long interval = interval(bytes);
+        if(interval == 0) {
+            nextSend = now;
+            return;
+        }
+
+        // no credit is kept for time spent idle,
+        // that would allow a burst again
+        if(nextSend < now - interval)
+            nextSend = now - interval;
+
+        long target = nextSend;
+        if(target > now) {
+            long remaining = target - now;
+            if(remaining > SPIN_NANOS)
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            while((now = System.nanoTime()) < target)
+                Thread.onSpinWait();
+
+            waited += remaining;
+            long error = now - target;
+            errorTotal += error;
+            if(error > errorMax)
+                errorMax = error;
+            paced++;
+        }
+        nextSend = target + interval;
+    }
+
+    public long getPacedCount()
+    {
+        // sends that had to wait
+        return paced;
+    }
+
+    public long getWaitedNanos()
+    {
+        return waited;
+    }
+
+    public double getMeanError()
+    {
+        // micro-seconds late, on average,
+        // over the sends that waited
+        if(paced == 0)
+            return 0;
+        return errorTotal / 1000.0 / paced;
+    }
+
+    public double getMaxError()
+    {
+        // micro-seconds late, at most
+        return errorMax / 1000.0;
+    }
+
+    public void resetMetrics()
+    {
+        paced = 0;
+        waited = 0;
+        errorTotal = 0;
+        errorMax = 0;
+    }
+
+    public String toString()
+    {
+        return String.format("paced=%d waited=%.1fms error mean=%.1fus max=%.1fus",
+            paced, waited / 1e6, getMeanError(), getMaxError());
+    }
+}
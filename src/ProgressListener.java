@@ -0,0 +1,16 @@
+/* Interface: ProgressListener
+ *
+ * Told how far a file sent with
+ * FastClient.sendAsync() has got, every
+ * FastClient.PROGRESS_INTERVAL and once
+ * more when it is complete, on the
+ * client's sender thread
+ */
+
+public interface ProgressListener
+{
+    // payload bytes acked so far, as sent, and
+    // the total to send, -1 when that is only
+    // known as it is sent (compressed or delta)
+    public void onProgress(String fileName, long ackedBytes, long totalBytes);
+}
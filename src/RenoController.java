@@ -0,0 +1,64 @@
+/* Class: RenoController
+ *
+ * This class implements AIMD congestion
+ * control in the style of NewReno
+ * The window grows by one segment per
+ * ack in slow start, and by one segment
+ * per window in congestion avoidance
+ * A timeout halves the window once per
+ * loss event: further timeouts of
+ * segments sent before the first loss
+ * was detected belong to the same event
+ * and are ignored
+ */
+
+public class RenoController implements CongestionController
+{
+    public final static int INITIAL_WINDOW = 10; // segments
+    public final static int MIN_WINDOW = 2; // segments
+
+    private int maxWindow;
+    private double cwnd;
+    private double ssthresh;
+    private int highestSent = -1;
+    private int recover = -1;
+
+    public RenoController(int maxWindow)
+    {
+        this.maxWindow = maxWindow;
+        this.cwnd = Math.min(INITIAL_WINDOW, maxWindow);
+        this.ssthresh = maxWindow;
+    }
+
+    public synchronized void onSend(int seqNo)
+    {
+        if(seqNo > highestSent)
+            highestSent = seqNo;
+    }
+
+    public synchronized void onAck(int seqNo, double srtt)
+    {
+        if(cwnd < ssthresh)
+            cwnd = cwnd + 1;
+        else
+            cwnd = cwnd + 1 / cwnd;
+        cwnd = Math.min(cwnd, maxWindow);
+    }
+
+    public synchronized void onTimeout(int seqNo)
+    {
+        // segments up to recover were in flight when
+        // the current loss event began
+        if(seqNo <= recover)
+            return;
+
+        recover = highestSent;
+        ssthresh = Math.max(cwnd / 2, MIN_WINDOW);
+        cwnd = ssthresh;
+    }
+
+    public synchronized int getWindow()
+    {
+        return (int) cwnd;
+    }
+}
@@ -0,0 +1,158 @@
+/* Class: ResumeRanges
+ *
+ * This class holds the segment ranges of
+ * a file the server already has, for
+ * resumed transfers (HandshakeOptions.RESUME)
+ * Ranges are in segments from the start of
+ * the file, start inclusive and end
+ * exclusive, and are merged as they are
+ * added
+ *
+ * A resumed transfer numbers only the
+ * missing segments: sequence number i is
+ * the i-th segment not in any range, so
+ * both ends map it to the same place in
+ * the file
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class ResumeRanges
+{
+    private TreeMap<Long, Long> ranges;
+
+    // gaps between the ranges, for mapping,
+    // rebuilt after ranges are added
+    private long[] gapStarts;
+    private long[] gapFirstSeq;
+
+    public ResumeRanges()
+    {
+        ranges = new TreeMap<Long, Long>();
+    }
+
+    public void add(long start, long end)
+    {
+        if(start < 0 || end <= start)
+            return;
+
+        // merge with any range it touches
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if(before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> after;
+        while((after = ranges.ceilingEntry(start)) != null && after.getKey() <= end) {
+            end = Math.max(end, after.getValue());
+            ranges.remove(after.getKey());
+        }
+        ranges.put(start, end);
+        gapStarts = null;
+    }
+
+    public boolean isEmpty()
+    {
+        return ranges.isEmpty();
+    }
+
+    public int size()
+    {
+        return ranges.size();
+    }
+
+    public long count(long limit)
+    {
+        // number of segments in the ranges,
+        // below limit
+        long total = 0;
+        for(Map.Entry<Long, Long> range : ranges.entrySet()) {
+            if(range.getKey() >= limit)
+                break;
+            total += Math.min(range.getValue(), limit) - range.getKey();
+        }
+        return total;
+    }
+
+    public long skip(long segment)
+    {
+        // the first segment from the given one
+        // on that is not in a range
+        Map.Entry<Long, Long> range = ranges.floorEntry(segment);
+        if(range != null && range.getValue() > segment)
+            return range.getValue();
+        return segment;
+    }
+
+    public long segment(long seqNo)
+    {
+        // the segment of the file sent with the
+        // given sequence number
+        if(gapStarts == null)
+            buildGaps();
+
+        // last gap whose first sequence number
+        // is at or below seqNo
+        int low = 0;
+        int high = gapStarts.length - 1;
+        while(low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if(gapFirstSeq[mid] <= seqNo)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return gapStarts[low] + (seqNo - gapFirstSeq[low]);
+    }
+
+    public void write(DataOutputStream out) throws IOException
+    {
+        out.writeInt(ranges.size());
+        for(Map.Entry<Long, Long> range : ranges.entrySet()) {
+            out.writeLong(range.getKey());
+            out.writeLong(range.getValue());
+        }
+    }
+
+    public static ResumeRanges read(DataInputStream in) throws IOException
+    {
+        ResumeRanges resume = new ResumeRanges();
+        int count = in.readInt();
+        for(int i = 0; i < count; i++) {
+            long start = in.readLong();
+            resume.add(start, in.readLong());
+        }
+        return resume;
+    }
+
+    public String toString()
+    {
+        return ranges.toString();
+    }
+
+    private void buildGaps()
+    {
+        // a gap before every range, and the
+        // open ended one after the last
+        int n = ranges.size() + 1;
+        gapStarts = new long[n];
+        gapFirstSeq = new long[n];
+        long position = 0;
+        long seq = 0;
+        int i = 0;
+        for(Map.Entry<Long, Long> range : ranges.entrySet()) {
+            gapStarts[i] = position;
+            gapFirstSeq[i] = seq;
+            seq += range.getKey() - position;
+            position = range.getValue();
+            i++;
+        }
+        gapStarts[i] = position;
+        gapFirstSeq[i] = seq;
+
+        // empty gaps, a range at 0, would share
+        // the first sequence number of the next
+        // one, the search takes the last of them
+    }
+}
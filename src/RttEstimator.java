@@ -0,0 +1,96 @@
+/* Class: RttEstimator
+ *
+ * This class keeps the smoothed round
+ * trip time (SRTT), its variation
+ * (RTTVAR) and the retransmission
+ * timeout (RTO) of the client, as in
+ * RFC 6298
+ * Samples are taken by AckReceive from
+ * packets that were sent only once
+ * (Karn's rule), and a segment that
+ * times out again is resent with its
+ * own timeout doubled, leaving the
+ * timeout of the other segments alone
+ */
+
+public class RttEstimator
+{
+    // floor of the timeout: one tick of the
+    // timer wheel, plus the longest a server
+    // holds an ack, its DELAYED_ACK and up to
+    // one more wake up of its event loop
+    public final static long MIN_RTO = TimerWheel.DEFAULT_TICK + 2 * FastServer.DELAYED_ACK; // milli-seconds
+    public final static long MAX_RTO = 60000; // milli-seconds
+
+    // smoothing gains from RFC 6298
+    private final static double ALPHA = 1.0 / 8;
+    private final static double BETA = 1.0 / 4;
+
+    private double srtt;
+    private double rttvar;
+    private long rto;
+    private double granularity;
+    private boolean hasSample;
+
+    public RttEstimator(long initialRto, long granularity)
+    {
+        // initial timeout is used until
+        // the first sample is taken
+        this.rto = clamp(initialRto);
+        this.granularity = granularity;
+    }
+
+    public synchronized void sample(double rttMillis)
+    {
+        // updates the estimates with a new
+        // measurement
+        if(rttMillis < 0)
+            return;
+
+        if(!hasSample) {
+            srtt = rttMillis;
+            rttvar = rttMillis / 2;
+            hasSample = true;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rttMillis);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rttMillis;
+        }
+
+        rto = clamp((long) Math.ceil(srtt + Math.max(granularity, 4 * rttvar)));
+    }
+
+    public synchronized long backoff(long usedRto)
+    {
+        // returns the timeout to resend a segment
+        // with, that timed out with usedRto, never
+        // below the current timeout
+        return clamp(Math.max(usedRto * 2, rto));
+    }
+
+    public synchronized long getRto()
+    {
+        return rto;
+    }
+
+    public synchronized double getSrtt()
+    {
+        // returns 0 until the first sample
+        return srtt;
+    }
+
+    public synchronized double getRttVar()
+    {
+        // returns 0 until the first sample
+        return rttvar;
+    }
+
+    public synchronized boolean hasSample()
+    {
+        return hasSample;
+    }
+
+    private long clamp(long value)
+    {
+        return Math.max(MIN_RTO, Math.min(MAX_RTO, value));
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * SackAck Class
+ *
+ * SackAck defines the extended ACK segment used when selective
+ * acknowledgement (HandshakeOptions.SACK) is negotiated.
+ *
+ * The header is the same 4 byte field as a Segment, but carries the
+ * cumulative ACK: every segment with a lower sequence number has been
+ * received. The payload lists up to MAX_BLOCKS ranges received beyond it:
+ *
+ *   1 byte          number of blocks
+ *   4 + 4 bytes     start (inclusive) and end (exclusive) of each block
+ *
+ * All integers use the same byte order as the Segment header.
+ * A SackAck can be reused for any number of ACKs, decoding does not allocate.
+ *
+ */
+public class SackAck {
+
+    public final static int MAX_BLOCKS = 64;
+    public final static int MAX_SIZE = Segment.HEADER_SIZE + 1 + 8 * MAX_BLOCKS; // bytes
+
+    private int cumAck;
+    private int count;
+    private final int[] starts = new int[MAX_BLOCKS];
+    private final int[] ends = new int[MAX_BLOCKS];
+
+
+    /**
+     * Sets the cumulative ACK and removes every block
+     *
+     * @param cumAck    Sequence number of the first segment not yet received
+     */
+    public void reset(int cumAck) {
+        if (cumAck < 0)
+            throw new IllegalArgumentException("Negative sequence number");
+
+        this.cumAck = cumAck;
+        count = 0;
+    }
+
+
+    /**
+     * Adds a block of received segments
+     *
+     * @return false if the ACK already holds MAX_BLOCKS blocks
+     */
+    public boolean addBlock(int start, int end) {
+        if (start < 0 || end <= start)
+            throw new IllegalArgumentException("Invalid block");
+        if (count == MAX_BLOCKS)
+            return false;
+
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+        return true;
+    }
+
+
+    public int getCumAck() {
+        return cumAck;
+    }
+
+
+    public int getBlockCount() {
+        return count;
+    }
+
+
+    public int getBlockStart(int i) {
+        return starts[i];
+    }
+
+
+    public int getBlockEnd(int i) {
+        return ends[i];
+    }
+
+
+    /**
+     * Returns the length of the encoded ACK in bytes
+     */
+    public int getLength() {
+        return Segment.HEADER_SIZE + 1 + 8 * count;
+    }
+
+
+    /**
+     * Encodes the ACK into the given array
+     *
+     * @return The number of bytes written
+     */
+    public int getBytes(byte[] bytes) {
+        int pos = putInt(bytes, 0, cumAck);
+        bytes[pos++] = (byte) count;
+        for (int i = 0; i < count; i++) {
+            pos = putInt(bytes, pos, starts[i]);
+            pos = putInt(bytes, pos, ends[i]);
+        }
+        return pos;
+    }
+
+
+    /**
+     * Decodes an ACK from the first length bytes of the given array
+     *
+     * @throws IllegalArgumentException If the bytes do not hold a valid ACK
+     */
+    public void setBytes(byte[] bytes, int length) {
+        if (length < Segment.HEADER_SIZE + 1)
+            throw new IllegalArgumentException("SACK header missing");
+
+        int n = bytes[Segment.HEADER_SIZE] & 0xFF;
+        if (n > MAX_BLOCKS || length < Segment.HEADER_SIZE + 1 + 8 * n)
+            throw new IllegalArgumentException("SACK blocks truncated");
+
+        cumAck = getInt(bytes, 0);
+        int pos = Segment.HEADER_SIZE + 1;
+        for (int i = 0; i < n; i++) {
+            starts[i] = getInt(bytes, pos);
+            ends[i] = getInt(bytes, pos + 4);
+            pos += 8;
+        }
+        count = n;
+    }
+
+
+    public String toString() {
+        StringBuilder str = new StringBuilder("Ack#" + cumAck);
+        for (int i = 0; i < count; i++)
+            str.append(" [" + starts[i] + "," + ends[i] + ")");
+        return str.toString();
+    }
+
+
+    private static int putInt(byte[] bytes, int pos, int value) {
+        bytes[pos] = (byte) (value);
+        bytes[pos + 1] = (byte) (value >>> 8);
+        bytes[pos + 2] = (byte) (value >>> 16);
+        bytes[pos + 3] = (byte) (value >>> 24);
+        return pos + 4;
+    }
+
+
+    private static int getInt(byte[] bytes, int pos) {
+        int b0 = bytes[pos] & 0xFF;
+        int b1 = bytes[pos + 1] & 0xFF;
+        int b2 = bytes[pos + 2] & 0xFF;
+        int b3 = bytes[pos + 3] & 0xFF;
+        return (b3 << 24) + (b2 << 16) + (b1 << 8) + (b0);
+    }
+}
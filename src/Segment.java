@@ -1,7 +1,9 @@
 
 
 import java.util.*;
+import java.util.zip.*;
 import java.net.*;
+import java.nio.*;
 
 /**
  * Segment Class
@@ -13,12 +15,19 @@ import java.net.*;
  * If the segment carries data then the payload contains application data.
  * If the segment is an ACK segment from the server, then payload is empty.
  *
- * The max size of the payload is given by MAX_PAYLOAD_SIZE
- * The max segment size is given by MAX_SEGMENT_SIZE 
+ * The default size of the payload is given by MAX_PAYLOAD_SIZE, and
+ * the default segment size by MAX_SEGMENT_SIZE. Larger payloads, up to
+ * what fits in a UDP datagram, are used when a segment size is
+ * negotiated in the handshake, and checked against it by the endpoints.
+ *
+ * A segment can also be a view of part of a byte array, set with wrap() or
+ * setBytes(byte[], int), which copies nothing, so one segment and its buffer
+ * can be reused for segment after segment. The payload of a view is read with
+ * getPayloadArray(), getPayloadOffset() and getPayloadLength().
  * 
  * @author  Majid Ghaderi
    @author  Cyrac James
- * @version 2.2, Jan 01, 2017
+ * @version 2.3, Jan 01, 2017
  *
  */
 public class Segment {
@@ -28,11 +37,37 @@ public class Segment {
     public final static int MAX_PAYLOAD_SIZE = 1000; // bytes
     public final static int MAX_SEGMENT_SIZE = HEADER_SIZE + MAX_PAYLOAD_SIZE; // bytes
     
+    // the largest segment a UDP datagram can carry over IPv4
+    public final static int MAX_UDP_SEGMENT_SIZE = 65507; // bytes
+    public final static int MAX_UDP_PAYLOAD_SIZE = MAX_UDP_SEGMENT_SIZE - HEADER_SIZE; // bytes
+    
+    // set in the sequence number field of data segments with a deflated
+    // payload, when compression is negotiated; sequence numbers stay below it
+    public final static int COMPRESSED = 0x40000000;
+    
+    // set in the sequence number field of data segments followed by a session
+    // id, when sessions are negotiated, so many transfers can share a socket;
+    // sequence numbers stay below it too
+    public final static int SESSION = 0x20000000;
+    public final static int SESSION_ID_SIZE = 4; // bytes
+    
+    // the largest sequence number of a data segment, above it the number
+    // runs into the flags, and the server reads it as another segment
+    public final static int MAX_SEQ_NUM = SESSION - 1;
+    
+    // size of the CRC32C that follows the header of data segments, when
+    // checksums are negotiated
+    public final static int CHECKSUM_SIZE = 4; // bytes
+    
     // header fields
     private int seqNum; // segment sequence number  
     // segment payload, it could be of 0 length
     // Ack segments have no payload
     private byte[] payload;
+    // the part of the array holding the payload,
+    // the whole array unless the segment is a view
+    private int payloadOffset;
+    private int payloadLength;
     
     
     /**
@@ -81,7 +116,7 @@ public class Segment {
      * @param seg   The segment to be copied
      */
     public Segment(Segment seg) {
-        this(seg.seqNum, seg.payload);
+        this(seg.seqNum, seg.getPayload());
     }
     
     
@@ -116,29 +151,83 @@ public class Segment {
      * Sets the payload of the segment  
      */
     public void setPayload(byte[] data) {
-        // cannot be larger than the max size
-        if (data.length > MAX_PAYLOAD_SIZE)
+        // cannot be larger than a datagram allows
+        if (data.length > MAX_UDP_PAYLOAD_SIZE)
             throw new IllegalArgumentException("Payload is too large");
         
         // copy payload
         payload = Arrays.copyOf(data, data.length);
+        payloadOffset = 0;
+        payloadLength = data.length;
+    }
+    
+    
+    /**
+     * Makes the segment a view of part of a byte array, without copying it.
+     * The array is shared, later changes to it show in the segment.
+     * 
+     * @param seqNum    Sequence number for this segment
+     * @param buffer    The array holding the payload
+     * @param offset    Index of the first byte of the payload
+     * @param length    Length of the payload
+     * 
+     * @throws IllegalArgumentException If the seqNum is negative, or the payload is too large
+     * @throws IndexOutOfBoundsException If the payload does not fit the array
+     */
+    public void wrap(int seqNum, byte[] buffer, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, buffer.length);
+        if (length > MAX_UDP_PAYLOAD_SIZE)
+            throw new IllegalArgumentException("Payload is too large");
+        
+        setSeqNum(seqNum);
+        payload = buffer;
+        payloadOffset = offset;
+        payloadLength = length;
     }
     
     
     /**
      * Returns the payload of the segment in a byte array. 
+     * A view copies its payload into a new array.
      */
     public byte[] getPayload() {
+        if (payloadOffset != 0 || payloadLength != payload.length)
+            return Arrays.copyOfRange(payload, payloadOffset, payloadOffset + payloadLength);
+        return payload;
+    }
+    
+    
+    /**
+     * Returns the array holding the payload, without copying it.
+     * The payload starts at getPayloadOffset() and is getPayloadLength() bytes long.
+     */
+    public byte[] getPayloadArray() {
         return payload;
     }
     
     
+    /**
+     * Returns the index of the first payload byte in getPayloadArray().
+     */
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+    
+    
+    /**
+     * Returns the length of the payload.
+     */
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+    
+    
     /**
      * Returns the length of the segment which includes payload and header sizes.
      *  
      */
     public int getLength() {
-        return payload.length + HEADER_SIZE;
+        return payloadLength + HEADER_SIZE;
     }
     
     
@@ -167,7 +256,7 @@ public class Segment {
      * @return The string representation of the segment
      */
     public String toString() {
-        return ("Seq#" + seqNum + "\n" + Arrays.toString(payload)); 
+        return ("Seq#" + seqNum + "\n" + Arrays.toString(getPayload())); 
     }
     
     
@@ -179,7 +268,7 @@ public class Segment {
      * @return A byte array containing the entire segment
      */
     public byte[] getBytes() {
-        byte[] bytes = new byte[HEADER_SIZE + payload.length];
+        byte[] bytes = new byte[HEADER_SIZE + payloadLength];
         
         // store sequence number field 
         bytes[0] = (byte) (seqNum);
@@ -188,12 +277,120 @@ public class Segment {
         bytes[3] = (byte) (seqNum >>> 24);
         
         // store the payload
-        System.arraycopy(payload, 0, bytes, HEADER_SIZE, payload.length);
+        System.arraycopy(payload, payloadOffset, bytes, HEADER_SIZE, payloadLength);
         
         return bytes;
     }
 
     
+    /**
+     * Writes the header of a segment with the given sequence number into a buffer,
+     * in the same byte order as getBytes().
+     * Useful when sending straight from a ByteBuffer without building a segment.
+     * 
+     * @param buffer    The buffer to write the header to, at its current position
+     * @param seqNum    Sequence number for the header
+     * 
+     * @throws IllegalArgumentException If the seqNum is negative
+     */
+    public static void putHeader(ByteBuffer buffer, int seqNum) {
+        if (seqNum < 0)
+            throw new IllegalArgumentException("Negative sequence number");
+        
+        buffer.put((byte) (seqNum));
+        buffer.put((byte) (seqNum >>> 8));
+        buffer.put((byte) (seqNum >>> 16));
+        buffer.put((byte) (seqNum >>> 24));
+    }
+
+
+    /**
+     * Reads a header field, such as a session id, from a byte array,
+     * in the same byte order as putHeader().
+     *
+     * @param bytes     The bytes to read from
+     * @param offset    Index of the first byte of the field
+     * @return The value of the field
+     */
+    public static int getHeader(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+            | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+
+    /**
+     * Writes a checksum into a buffer, in the same byte order as the header.
+     * 
+     * @param buffer    The buffer to write the checksum to, at its current position
+     * @param checksum  The checksum, as returned by checksum()
+     */
+    public static void putChecksum(ByteBuffer buffer, int checksum) {
+        buffer.put((byte) (checksum));
+        buffer.put((byte) (checksum >>> 8));
+        buffer.put((byte) (checksum >>> 16));
+        buffer.put((byte) (checksum >>> 24));
+    }
+
+    
+    /**
+     * Computes the CRC32C of a data segment, over its header field and payload.
+     * 
+     * @param crc       The CRC32C to use, it is reset first
+     * @param seqField  The header field, sequence number and flags
+     * @param payload   The payload as sent
+     * @return The checksum
+     */
+    public static int checksum(CRC32C crc, int seqField, byte[] payload) {
+        return checksum(crc, seqField, payload, 0, payload.length);
+    }
+
+    
+    /**
+     * Computes the CRC32C of a data segment whose payload is part of an array,
+     * as held by a view.
+     * 
+     * @param crc       The CRC32C to use, it is reset first
+     * @param seqField  The header field, sequence number and flags
+     * @param payload   The array holding the payload as sent
+     * @param offset    Index of the first byte of the payload
+     * @param length    Length of the payload
+     * @return The checksum
+     */
+    public static int checksum(CRC32C crc, int seqField, byte[] payload, int offset, int length) {
+        crc.reset();
+        updateHeader(crc, seqField);
+        crc.update(payload, offset, length);
+        return (int) crc.getValue();
+    }
+
+    
+    /**
+     * Computes the CRC32C of a data segment whose payload is between the
+     * position and limit of a buffer, which are left unchanged.
+     * 
+     * @param crc       The CRC32C to use, it is reset first
+     * @param seqField  The header field, sequence number and flags
+     * @param payload   The payload as received
+     * @return The checksum
+     */
+    public static int checksum(CRC32C crc, int seqField, ByteBuffer payload) {
+        crc.reset();
+        updateHeader(crc, seqField);
+        int position = payload.position();
+        crc.update(payload);
+        payload.position(position);
+        return (int) crc.getValue();
+    }
+
+    
+    private static void updateHeader(CRC32C crc, int seqField) {
+        crc.update(seqField);
+        crc.update(seqField >>> 8);
+        crc.update(seqField >>> 16);
+        crc.update(seqField >>> 24);
+    }
+
+    
     /**
      * Sets the content of a segment using the given byte array.
      * It reconstructs both the header and payload of the segment.
@@ -208,8 +405,8 @@ public class Segment {
         if (bytes.length < HEADER_SIZE)
             throw new IllegalArgumentException("Segment header missing");
         
-        // cannot be larger than the max size
-        if (bytes.length > MAX_SEGMENT_SIZE)
+        // cannot be larger than a datagram allows
+        if (bytes.length > MAX_UDP_SEGMENT_SIZE)
             throw new IllegalArgumentException("Payload is too large");
         
         // construct the header fields
@@ -223,6 +420,38 @@ public class Segment {
         // copy payload data
         payload = new byte[bytes.length - HEADER_SIZE];
         System.arraycopy(bytes, HEADER_SIZE, payload, 0, payload.length);
+        payloadOffset = 0;
+        payloadLength = payload.length;
+    }
+    
+    
+    /**
+     * Makes the segment a view of the first bytes of the given array, header
+     * and payload, without copying them.
+     * Useful when reading received DatagramPackets into one reused segment.
+     * 
+     * @param bytes     The byte array holding the header+payload of the segment
+     * @param length    The number of bytes of the segment
+     * 
+     * @throws IllegalArgumentException If the length is too short to even recover the header
+     */
+    public void setBytes(byte[] bytes, int length) {
+        // the header is REQUIRED
+        if (length < HEADER_SIZE)
+            throw new IllegalArgumentException("Segment header missing");
+        
+        // the sequence number is not checked,
+        // as in setBytes(byte[])
+        Objects.checkFromIndexSize(0, length, bytes.length);
+        
+        // cannot be larger than a datagram allows
+        if (length > MAX_UDP_SEGMENT_SIZE)
+            throw new IllegalArgumentException("Payload is too large");
+        
+        seqNum = getHeader(bytes, 0);
+        payload = bytes;
+        payloadOffset = HEADER_SIZE;
+        payloadLength = length - HEADER_SIZE;
     }
     
     
@@ -0,0 +1,30 @@
+/* Interface: SegmentSource
+ *
+ * A source of segment payloads for the
+ * client's send loop, in sequence order
+ * Every payload but the last is a full
+ * segment
+ */
+
+import java.io.*;
+
+public interface SegmentSource extends Closeable
+{
+    // true while there are payloads left, may
+    // block until the next one is ready
+    public boolean hasNext() throws IOException;
+
+    // returns the next payload
+    public byte[] next() throws IOException;
+
+    // copies the next payload into the start of
+    // the buffer, which holds a full segment, and
+    // returns its length; sources that can fill
+    // it without a new array override this
+    default int next(byte[] buffer) throws IOException
+    {
+        byte[] payload = next();
+        System.arraycopy(payload, 0, buffer, 0, payload.length);
+        return payload.length;
+    }
+}
@@ -0,0 +1,1065 @@
+/* Class: ServerSession
+ *
+ * This class holds the state of one
+ * file transfer on the FastServer
+ * It parses the TCP handshake, then
+ * writes each data segment straight
+ * to its offset in the file, and keeps
+ * a TxQueue of the sequence numbers
+ * received out of order, bounded by
+ * the receive window
+ * With FEC negotiated it also keeps the
+ * parity of blocks with more than one
+ * segment missing, and rebuilds a lost
+ * segment from the parity and the rest
+ * of its block, read back from the file
+ * Compressed segments are inflated before
+ * they are written
+ * With checksums negotiated, segments are
+ * checked against their CRC32C, and a
+ * CRC32C of the file is kept as the window
+ * slides and compared with the client's
+ * at the end of the transfer
+ * With resume negotiated, the segments the
+ * window slides over are checkpointed to a
+ * CheckpointJournal every CHECKPOINT_INTERVAL,
+ * and a later transfer of the same file
+ * numbers only the segments not in it
+ * The checkpoints are forced to disk on the
+ * server's journal thread
+ * With delta negotiated, the handshake reply
+ * carries the DeltaSignatures of the old
+ * copy, the segments received are the op
+ * stream of a DeltaSource, kept in a spool
+ * file, and the DeltaPatcher applies them
+ * as the window slides, to a new copy that
+ * replaces the old one once complete
+ * The old copy is signed on the server's
+ * signer thread, and the handshake is
+ * answered once signing() finds it done
+ * With keepalive negotiated, the end of
+ * transmission hands the connection to a
+ * new session for the next file, see
+ * nextSession()
+ * All methods are called from the
+ * server event loop thread
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+public class ServerSession
+{
+    // a parity segment waiting for its block
+    private static class Parity
+    {
+        int first;
+        int count;
+        int xorLength;
+        byte[] data;
+    }
+
+    public final static int HANDSHAKE = 0;
+    public final static int TRANSFER = 1;
+    public final static int CLOSED = 2;
+    public final static int SIGNING = 3; // the old copy, before the reply
+
+    // extensions this server can accept
+    public final static int SUPPORTED = HandshakeOptions.SACK | HandshakeOptions.STRIPE | HandshakeOptions.FEC
+        | HandshakeOptions.COMPRESS | HandshakeOptions.CHECKSUM | HandshakeOptions.RESUME
+        | HandshakeOptions.DELTA | HandshakeOptions.SESSION | HandshakeOptions.KEEPALIVE
+        | HandshakeOptions.EARLY;
+
+    public final static String SPOOL_SUFFIX = ".delta";
+    public final static String PART_SUFFIX = ".part";
+
+    public final static long CHECKPOINT_INTERVAL = 500; // milli-seconds
+
+    // the control buffer starts small and grows
+    // for longer handshakes, up to the longest
+    // name and parameter list a client can write
+    public final static int CONTROL_BUFFER = 1024; // bytes
+    public final static int MAX_HANDSHAKE = 2 + 0xFFFF + 10 + 0xFFFF * 6; // bytes
+
+    private SocketChannel control;
+    private ByteBuffer controlBuffer;
+    private int state;
+    private String fileName;
+    private FileChannel file;
+    private HandshakeOptions negotiated;
+    private InetSocketAddress udpAddress;
+    private int windowSize;
+    private int payloadSize;
+    private int sessionId;
+    private long stripeStart;
+
+    // receive window
+    private TxQueue reorder;
+    private int rcvBase;
+    private int highest = -1;
+    private long bytesWritten;
+
+    // the one segment shorter than the payload
+    // size, at the end of the file
+    private int shortSeq = -1;
+    private int shortLength;
+
+    // parity of blocks still missing more than
+    // one segment, by first sequence number
+    private TreeMap<Integer, Parity> parities;
+    private ByteBuffer recovered;
+    private long recoveredCount;
+
+    // deflated payloads, when compression
+    // is negotiated
+    private Inflater inflater;
+    private byte[] inflated;
+
+    // segment and file checksums, when
+    // negotiated
+    private CRC32C segmentCrc;
+    private CRC32C fileCrc;
+    private ByteBuffer readBack;
+    private long corruptCount;
+
+    // segments already in the file, and the
+    // journal of the ones written since, when
+    // resume is negotiated
+    private ResumeRanges done;
+    private CheckpointJournal journal;
+    private long lastCheckpoint;
+    // forces checkpoints off the event loop,
+    // one at a time
+    private ExecutorService journalWriter;
+    private Future<?> checkpointing;
+    private boolean complete;
+
+    // the old copy and the new one built from
+    // it, when delta is negotiated
+    private Path path;
+    private DeltaSignatures signatures;
+    private DeltaPatcher patcher;
+    private FileChannel oldCopy;
+    private FileChannel newCopy;
+    // signs the old copy off the event loop,
+    // the request is answered once it is done
+    private ExecutorService signer;
+    private Future<DeltaSignatures> signing;
+    private HandshakeOptions signingRequest;
+
+    // control output the socket had no room
+    // for yet
+    private ByteBuffer pendingControl;
+
+    // delayed acks, when sack is negotiated
+    private int unacked;
+    private long ackDeadline;
+
+    // a connection kept alive from an earlier
+    // transfer, which the client may close
+    private boolean keptAlive;
+
+    // waiting for handshake extensions that
+    // may follow the file name
+    private long handshakeDeadline;
+
+    public ServerSession(SocketChannel control, int windowSize)
+    {
+        this.control = control;
+        this.windowSize = windowSize;
+        this.payloadSize = Segment.MAX_PAYLOAD_SIZE;
+        this.controlBuffer = ByteBuffer.allocate(CONTROL_BUFFER);
+        this.reorder = new TxQueue(windowSize);
+        this.negotiated = new HandshakeOptions();
+        this.parities = new TreeMap<Integer, Parity>();
+        this.state = HANDSHAKE;
+    }
+
+    public int getState()
+    {
+        return state;
+    }
+
+    public SocketChannel getControl()
+    {
+        return control;
+    }
+
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    public InetSocketAddress getUdpAddress()
+    {
+        // known from the handshake when the client
+        // sent extensions, otherwise learned from
+        // its first datagram
+        return udpAddress;
+    }
+
+    public void setUdpAddress(InetSocketAddress address)
+    {
+        udpAddress = address;
+    }
+
+    public void setSessionId(int id)
+    {
+        // unique on the server, given to clients
+        // that negotiate sessions
+        sessionId = id;
+    }
+
+    public void setSigner(ExecutorService signer)
+    {
+        // the thread old copies are signed on,
+        // for delta transfers
+        this.signer = signer;
+    }
+
+    public void setJournalWriter(ExecutorService journalWriter)
+    {
+        // the thread checkpoints are forced on,
+        // for resumed transfers
+        this.journalWriter = journalWriter;
+    }
+
+    public int getSessionId()
+    {
+        return sessionId;
+    }
+
+    public HandshakeOptions getNegotiatedOptions()
+    {
+        return negotiated;
+    }
+
+    public int getPayloadSize()
+    {
+        // negotiated in the handshake, or the
+        // default segment payload size
+        return payloadSize;
+    }
+
+    public long getRecoveredCount()
+    {
+        // segments rebuilt from parity
+        return recoveredCount;
+    }
+
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    public boolean readHandshake(long now) throws IOException
+    {
+        // reads whatever the client sent so far and
+        // tries to parse the handshake from it
+        // returns true once the handshake is complete
+        // a full buffer means the handshake is
+        // longer than it holds
+        if(!controlBuffer.hasRemaining()) {
+            if(controlBuffer.capacity() >= MAX_HANDSHAKE)
+                throw new IOException("Handshake too long");
+            growControl(controlBuffer.capacity() * 2);
+        }
+        if(control.read(controlBuffer) < 0) {
+            // a client done with a kept alive
+            // connection just closes it
+            if(keptAlive && controlBuffer.position() == 0) {
+                close();
+                return false;
+            }
+            throw new EOFException("Connection closed during handshake");
+        }
+        return parseBuffered(now);
+    }
+
+    public boolean parseBuffered(long now) throws IOException
+    {
+        // tries to parse the handshake from what
+        // the client sent so far, as readHandshake()
+        controlBuffer.flip();
+        try {
+            return parseHandshake(now);
+        } finally {
+            controlBuffer.compact();
+        }
+    }
+
+    public boolean handshakeTimedOut(long now) throws IOException
+    {
+        // a plain handshake has nothing after the file
+        // name, give up waiting for extensions
+        if(state != HANDSHAKE || handshakeDeadline == 0 || now < handshakeDeadline)
+            return false;
+        return parseBuffered(now);
+    }
+
+    private void growControl(int capacity)
+    {
+        // keeps what was read so far in a larger
+        // buffer
+        ByteBuffer grown = ByteBuffer.allocate(Math.min(capacity, MAX_HANDSHAKE));
+        controlBuffer.flip();
+        grown.put(controlBuffer);
+        controlBuffer = grown;
+    }
+
+    private boolean parseHandshake(long now) throws IOException
+    {
+        ByteBuffer buf = controlBuffer;
+        if(buf.remaining() < 2)
+            return false;
+
+        // file name, as written by writeUTF
+        int nameLength = buf.getShort(buf.position()) & 0xFFFF;
+        if(buf.remaining() < 2 + nameLength)
+            return false;
+
+        int extStart = buf.position() + 2 + nameLength;
+        int extLength = buf.limit() - extStart;
+        HandshakeOptions requested = null;
+
+        if(extLength == 0) {
+            // either a plain handshake, or the
+            // extensions have not arrived yet, as
+            // tcp may split them from the name
+            if(handshakeDeadline == 0)
+                handshakeDeadline = now + FastServer.EXTENSION_GRACE * 1000000L;
+            if(now < handshakeDeadline)
+                return false;
+            requested = new HandshakeOptions();
+        } else if(extLength < 4) {
+            return false;
+        } else if(buf.getInt(extStart) != HandshakeOptions.MAGIC) {
+            requested = new HandshakeOptions();
+        } else {
+            // magic, flags and parameter count
+            if(extLength < 10)
+                return false;
+            int params = buf.getShort(extStart + 8) & 0xFFFF;
+            if(extLength < 10 + params * 6)
+                return false;
+        }
+
+        byte[] raw = new byte[buf.remaining()];
+        buf.get(raw);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+        fileName = in.readUTF();
+        if(requested == null) {
+            in.readInt();
+            requested = HandshakeOptions.readRequest(in);
+        }
+
+        // complete once answered, which waits
+        // while the old copy is signed
+        openFile(requested);
+        return state != SIGNING;
+    }
+
+    private void openFile(HandshakeOptions requested) throws IOException
+    {
+        // accepts the supported extensions, opens the
+        // file and answers the handshake
+        byte response = 0;
+        negotiated = new HandshakeOptions();
+        negotiated.set(requested.getFlags() & SUPPORTED, true);
+
+        // a stripe writes its segments from its
+        // first one on, and only the stripe at the
+        // start of the file truncates it - clients
+        // open that one before the others
+        // a client that probed the path asks for
+        // larger segments, up to what a datagram
+        // can carry
+        // a session id only helps a client that
+        // tells us its udp port, which its
+        // datagrams are checked against, and a
+        // kept alive connection needs one to tell
+        // its transfers' datagrams apart
+        if(requested.getParam(HandshakeOptions.PARAM_UDP_PORT, -1) <= 0)
+            negotiated.set(HandshakeOptions.SESSION, false);
+        if(negotiated.has(HandshakeOptions.SESSION))
+            negotiated.setParam(HandshakeOptions.PARAM_SESSION_ID, sessionId);
+        else
+            negotiated.set(HandshakeOptions.KEEPALIVE, false);
+
+        int requestedSize = requested.getParam(HandshakeOptions.PARAM_PAYLOAD_SIZE, -1);
+        if(requestedSize > 0) {
+            int limit = Segment.MAX_UDP_PAYLOAD_SIZE;
+            if(negotiated.has(HandshakeOptions.CHECKSUM))
+                limit -= Segment.CHECKSUM_SIZE;
+            if(negotiated.has(HandshakeOptions.FEC))
+                limit = Math.min(limit, FecEncoder.MAX_PAYLOAD_SIZE);
+            if(negotiated.has(HandshakeOptions.SESSION))
+                limit -= Segment.SESSION_ID_SIZE;
+            payloadSize = Math.min(requestedSize, limit);
+            negotiated.setParam(HandshakeOptions.PARAM_PAYLOAD_SIZE, payloadSize);
+        }
+
+        // stripes are not resumed, their segments
+        // are numbered from their own start, and
+        // neither they nor resumed transfers are
+        // sent as a delta
+        if(negotiated.has(HandshakeOptions.STRIPE)) {
+            stripeStart = Math.max(0, requested.getParam(HandshakeOptions.PARAM_STRIPE_START, 0));
+            negotiated.set(HandshakeOptions.RESUME, false);
+        }
+        if(negotiated.has(HandshakeOptions.STRIPE) || negotiated.has(HandshakeOptions.RESUME))
+            negotiated.set(HandshakeOptions.DELTA, false);
+
+        // segments sent ahead of the reply are only
+        // taken in the format the client assumed, and
+        // numbered from the start of the file
+        if(negotiated.has(HandshakeOptions.STRIPE) || negotiated.has(HandshakeOptions.RESUME)
+                || negotiated.has(HandshakeOptions.DELTA) || !negotiated.sameFormat(requested))
+            negotiated.set(HandshakeOptions.EARLY, false);
+
+        try {
+            // only the name part is used, files
+            // always land in the server directory
+            path = Paths.get(fileName).getFileName();
+            Path journalPath = CheckpointJournal.pathFor(path);
+            if(negotiated.has(HandshakeOptions.RESUME)) {
+                // a journal kept for other segments
+                // is started over
+                done = CheckpointJournal.load(journalPath, payloadSize);
+                journal = new CheckpointJournal(journalPath, payloadSize, !done.isEmpty());
+            } else if(stripeStart == 0) {
+                // a new copy, the old journal does
+                // not describe it
+                Files.deleteIfExists(journalPath);
+            }
+            // read as well, to rebuild segments from parity
+            if(negotiated.has(HandshakeOptions.DELTA))
+                openDelta();
+            else if(stripeStart == 0 && (done == null || done.isEmpty()))
+                file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            else
+                file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        } catch (Exception e) {
+            System.out.println("[Server] Cannot open " + fileName + ": " + e.getMessage());
+            response = 1;
+        }
+
+        // the reply carries the signatures of the
+        // old copy, so it waits for them
+        if(response == 0 && signing != null) {
+            signingRequest = requested;
+            state = SIGNING;
+            return;
+        }
+        answerHandshake(response, requested);
+    }
+
+    public boolean signing() throws IOException
+    {
+        // answers the handshake once the old copy
+        // is signed, returns true if it was
+        if(state != SIGNING || !signing.isDone())
+            return false;
+
+        byte response = 0;
+        try {
+            signatures = signing.get();
+            patcher = new DeltaPatcher(oldCopy, newCopy, signatures.getBlockSize());
+        } catch (Exception e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            System.out.println("[Server] Cannot sign " + fileName + ": " + cause.getMessage());
+            response = 1;
+        }
+        signing = null;
+        state = HANDSHAKE;
+        answerHandshake(response, signingRequest);
+        signingRequest = null;
+        return true;
+    }
+
+    private void answerHandshake(byte response, HandshakeOptions requested) throws IOException
+    {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        DataOutputStream replyData = new DataOutputStream(reply);
+        replyData.writeByte(response);
+        if(!requested.isEmpty())
+            negotiated.writeReply(replyData);
+        if(response == 0 && done != null)
+            done.write(replyData);
+        if(response == 0 && signatures != null)
+            signatures.write(replyData);
+        writeControl(ByteBuffer.wrap(reply.toByteArray()));
+
+        if(response != 0) {
+            close();
+            return;
+        }
+
+        // clients sending extensions tell us
+        // their udp port up front, which stays
+        // the same on a kept alive connection
+        int port = requested.getParam(HandshakeOptions.PARAM_UDP_PORT, -1);
+        if(port > 0 && udpAddress == null) {
+            InetAddress address = ((InetSocketAddress) control.getRemoteAddress()).getAddress();
+            udpAddress = new InetSocketAddress(address, port);
+        }
+
+        if(negotiated.has(HandshakeOptions.CHECKSUM)) {
+            segmentCrc = new CRC32C();
+            fileCrc = new CRC32C();
+        }
+
+        state = TRANSFER;
+        lastCheckpoint = System.nanoTime();
+        System.out.println("[Server] Receiving " + fileName + " (" + negotiated + ")");
+        if(done != null && !done.isEmpty())
+            System.out.println("[Server] Resuming " + fileName + ", already have " + done);
+    }
+
+    private void openDelta() throws IOException
+    {
+        // starts signing the old copy, if there is
+        // one, and opens the spool and the new copy
+        // signing reads the whole old copy in one
+        // sequential pass, on the signer thread so
+        // other sessions are not held up
+        if(Files.exists(path)) {
+            final FileChannel old = FileChannel.open(path, StandardOpenOption.READ);
+            oldCopy = old;
+            signing = signer.submit(new Callable<DeltaSignatures>() {
+                public DeltaSignatures call() throws IOException {
+                    return DeltaSignatures.compute(old);
+                }
+            });
+        } else {
+            signatures = new DeltaSignatures(DeltaSignatures.MIN_BLOCK, 0);
+        }
+        file = FileChannel.open(path.resolveSibling(path.getFileName() + SPOOL_SUFFIX),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.DELETE_ON_CLOSE);
+        newCopy = FileChannel.open(path.resolveSibling(path.getFileName() + PART_SUFFIX),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        if(signing == null)
+            patcher = new DeltaPatcher(oldCopy, newCopy, signatures.getBlockSize());
+    }
+
+    private void finishDelta() throws IOException
+    {
+        // the new copy takes the old one's place
+        if(!patcher.isComplete())
+            throw new IOException("Delta of " + fileName + " ends inside an op");
+        newCopy.close();
+        if(oldCopy != null)
+            oldCopy.close();
+        Files.move(path.resolveSibling(path.getFileName() + PART_SUFFIX), path,
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public DeltaPatcher getPatcher()
+    {
+        // bytes copied from the old copy, null
+        // unless delta is negotiated
+        return patcher;
+    }
+
+    public boolean readTermination() throws IOException
+    {
+        // reads the end of transmission byte, and
+        // the client's file checksum after it when
+        // negotiated, which is answered with 0 if
+        // it matches ours
+        // returns true once the transfer is over
+        int n = control.read(controlBuffer);
+        if(n < 0)
+            throw new EOFException("TCP connection prematurely closed by client");
+        int expected = fileCrc != null ? 1 + Segment.CHECKSUM_SIZE : 1;
+        if(controlBuffer.position() < expected)
+            return false;
+        if(controlBuffer.get(0) != 0)
+            throw new IOException("Invalid termination message from client");
+        if(fileCrc == null) {
+            if(patcher != null)
+                finishDelta();
+            complete = true;
+            return true;
+        }
+
+        // the new copy only replaces the old one
+        // once the delta is known to be intact
+        boolean matches = controlBuffer.getInt(1) == (int) fileCrc.getValue();
+        if(matches && patcher != null)
+            finishDelta();
+        writeControl(ByteBuffer.wrap(new byte[] { (byte) (matches ? 0 : 1) }));
+        if(!matches)
+            throw new IOException("File checksum mismatch on " + fileName);
+        complete = true;
+        return true;
+    }
+
+    public boolean verify(int seqField, int checksum, ByteBuffer payload)
+    {
+        // checks a data segment against the
+        // checksum sent with it
+        if(Segment.checksum(segmentCrc, seqField, payload) == checksum)
+            return true;
+        corruptCount++;
+        return false;
+    }
+
+    public long getCorruptCount()
+    {
+        // segments dropped on a bad checksum
+        return corruptCount;
+    }
+
+    public int receive(int seqNo, ByteBuffer payload) throws IOException
+    {
+        // handles a data segment, whose payload is
+        // between position and limit of the buffer
+        // returns the number of acks the server should
+        // send now: 0 (delayed or ignored) or 1
+        if(payload.remaining() > payloadSize)
+            return 0;
+
+        if(seqNo >= rcvBase && seqNo < rcvBase + windowSize) {
+            boolean inOrder = seqNo == rcvBase && highest < rcvBase;
+            if(seqNo == rcvBase || reorder.getNode(seqNo) == null) {
+                // positional write, segments never wait
+                // in memory for the gap before them
+                long offset = offsetOf(seqNo);
+                if(payload.remaining() < payloadSize) {
+                    shortSeq = seqNo;
+                    shortLength = payload.remaining();
+                }
+                bytesWritten += payload.remaining();
+                if(fileCrc != null && seqNo == rcvBase)
+                    fileCrc.update(payload.duplicate());
+                while(payload.hasRemaining())
+                    offset += file.write(payload, offset);
+
+                if(seqNo == rcvBase) {
+                    slide();
+                } else {
+                    try {
+                        reorder.add(new Segment(seqNo));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if(seqNo > highest)
+                        highest = seqNo;
+                }
+
+                // slide the window over segments
+                // received earlier out of order
+                while(!reorder.isEmpty() && reorder.getHeadSegment().getSeqNum() == rcvBase) {
+                    try {
+                        reorder.remove();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    // the file checksum reads it back, most
+                    // likely from the page cache
+                    if(fileCrc != null)
+                        fileCrc.update(readSegment(rcvBase));
+                    slide();
+                }
+            } else {
+                inOrder = false;
+            }
+            return ackPolicy(inOrder);
+        } else if(seqNo >= rcvBase - windowSize && seqNo < rcvBase) {
+            // previous window, the ack was lost
+            return ackPolicy(false);
+        }
+
+        // not within current or previous window
+        return 0;
+    }
+
+    public int receiveParity(ByteBuffer buf) throws IOException
+    {
+        // handles a parity segment, from after its
+        // header on, and keeps it if its block is
+        // missing more than one segment
+        // returns the sequence number of a segment
+        // it rebuilt, see getRecovered(), or -1
+        if(buf.remaining() < FecEncoder.HEADER_SIZE - Segment.HEADER_SIZE)
+            return -1;
+        Parity parity = new Parity();
+        parity.first = buf.getInt();
+        parity.count = buf.getInt();
+        parity.xorLength = buf.getInt();
+        if(parity.first < 0 || parity.count <= 0 || parity.count > windowSize
+                || buf.remaining() > payloadSize)
+            return -1;
+        if(parity.first + parity.count <= rcvBase)
+            return -1;
+
+        parity.data = new byte[buf.remaining()];
+        buf.get(parity.data);
+        parities.put(parity.first, parity);
+        return recover(parity);
+    }
+
+    public int checkParity(int seqNo) throws IOException
+    {
+        // called after a data segment is received,
+        // which may leave its block one short
+        // returns as receiveParity()
+        if(parities.isEmpty())
+            return -1;
+
+        // parity of blocks the window has passed
+        // is of no use
+        while(!parities.isEmpty()) {
+            Parity oldest = parities.firstEntry().getValue();
+            if(oldest.first + oldest.count > rcvBase)
+                break;
+            parities.pollFirstEntry();
+        }
+
+        Map.Entry<Integer, Parity> entry = parities.floorEntry(seqNo);
+        if(entry == null || seqNo >= entry.getKey() + entry.getValue().count)
+            return -1;
+        return recover(entry.getValue());
+    }
+
+    public ByteBuffer inflate(ByteBuffer payload)
+    {
+        // inflates a compressed payload into a
+        // buffer reused for every segment
+        // returns null if it is not valid, or
+        // larger than a segment
+        if(inflater == null) {
+            inflater = new Inflater(true);
+            inflated = new byte[payloadSize];
+        }
+        try {
+            inflater.reset();
+            inflater.setInput(payload);
+            int n = inflater.inflate(inflated);
+            if(!inflater.finished())
+                return null;
+            return ByteBuffer.wrap(inflated, 0, n);
+        } catch (DataFormatException e) {
+            return null;
+        }
+    }
+
+    public ByteBuffer getRecovered()
+    {
+        // payload of the last segment rebuilt
+        return recovered;
+    }
+
+    private boolean isReceived(int seqNo)
+    {
+        return seqNo < rcvBase || reorder.getNode(seqNo) != null;
+    }
+
+    private int recover(Parity parity) throws IOException
+    {
+        // rebuilds the one missing segment of the
+        // block, if there is exactly one, from the
+        // parity and the other segments
+        int missing = -1;
+        for(int seq = parity.first; seq < parity.first + parity.count; seq++) {
+            if(isReceived(seq))
+                continue;
+            if(missing >= 0)
+                return -1;
+            missing = seq;
+        }
+        parities.remove(parity.first);
+        if(missing < 0)
+            return -1;
+
+        // xor the received segments back out, read
+        // from where they were written
+        byte[] data = parity.data;
+        int length = parity.xorLength;
+        for(int seq = parity.first; seq < parity.first + parity.count; seq++) {
+            if(seq == missing)
+                continue;
+            ByteBuffer segment = readSegment(seq);
+            int segmentLength = segment.remaining();
+            length ^= segmentLength;
+
+            byte[] bytes = segment.array();
+            for(int i = 0; i < Math.min(segmentLength, data.length); i++)
+                data[i] ^= bytes[i];
+        }
+        if(length < 0 || length > data.length)
+            return -1;
+
+        recovered = ByteBuffer.wrap(data, 0, length);
+        recoveredCount++;
+        return missing;
+    }
+
+    private ByteBuffer readSegment(int seqNo) throws IOException
+    {
+        // reads a received segment back from the
+        // file, into a buffer reused for each read
+        if(readBack == null)
+            readBack = ByteBuffer.allocate(payloadSize);
+        readBack.clear();
+        readBack.limit(seqNo == shortSeq ? shortLength : payloadSize);
+        long offset = offsetOf(seqNo);
+        while(readBack.hasRemaining()) {
+            if(file.read(readBack, offset + readBack.position()) < 0)
+                throw new EOFException("Segment " + seqNo + " not in file");
+        }
+        readBack.flip();
+        return readBack;
+    }
+
+    private long offsetOf(int seqNo)
+    {
+        // where a segment goes in the file, a
+        // resumed transfer only numbers the
+        // segments not received before
+        long segment = done != null ? done.segment(seqNo) : seqNo;
+        return (stripeStart + segment) * payloadSize;
+    }
+
+    private void slide() throws IOException
+    {
+        // the window moves past rcvBase, which is
+        // written, and only waits for a checkpoint,
+        // or is the next part of the delta
+        if(patcher != null)
+            patcher.apply(readSegment(rcvBase));
+        if(journal != null)
+            journal.record(done.segment(rcvBase), 1);
+        rcvBase++;
+    }
+
+    public void checkpoint(long now)
+    {
+        // writes the journal out, once per
+        // CHECKPOINT_INTERVAL while segments
+        // arrive
+        // the ranges slid over so far are taken
+        // here and forced on the journal thread,
+        // while the previous checkpoint is still
+        // being forced the ranges wait for the next
+        if(journal == null || now - lastCheckpoint < CHECKPOINT_INTERVAL * 1000000L)
+            return;
+        if(checkpointing != null && !checkpointing.isDone())
+            return;
+        lastCheckpoint = now;
+        try {
+            awaitCheckpoint();
+            final ByteBuffer ranges = journal.takePending();
+            if(ranges == null)
+                return;
+            final CheckpointJournal written = journal;
+            final FileChannel forced = file;
+            checkpointing = journalWriter.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    written.write(forced, ranges);
+                    return null;
+                }
+            });
+        } catch (IOException e) {
+            // the transfer goes on, it just
+            // cannot be resumed
+            System.out.println("[Server] Journal error on " + fileName + ": " + e.getMessage());
+            closeJournal(false);
+        }
+    }
+
+    private void closeJournal(boolean checkpoint)
+    {
+        // a completed transfer has nothing left
+        // to resume, otherwise what was written
+        // is checkpointed a last time, after the
+        // checkpoint in flight
+        try {
+            awaitCheckpoint();
+            if(complete) {
+                journal.delete();
+            } else {
+                if(checkpoint)
+                    journal.checkpoint(file);
+                journal.close();
+            }
+        } catch (IOException e) {
+            System.out.println("[Server] Journal error on " + fileName + ": " + e.getMessage());
+        }
+        journal = null;
+    }
+
+    private void awaitCheckpoint() throws IOException
+    {
+        // waits for the checkpoint on the journal
+        // thread, if any, and passes on its error
+        Future<?> inFlight = checkpointing;
+        checkpointing = null;
+        if(inFlight == null)
+            return;
+        try {
+            inFlight.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Checkpoint interrupted");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private int ackPolicy(boolean inOrder)
+    {
+        // plain acks go out for every segment, sack
+        // acks for every ACK_EVERY in order segments
+        // or straight away when anything is missing
+        if(!negotiated.has(HandshakeOptions.SACK))
+            return 1;
+
+        unacked++;
+        if(!inOrder || unacked >= FastServer.ACK_EVERY) {
+            unacked = 0;
+            ackDeadline = 0;
+            return 1;
+        }
+        if(ackDeadline == 0)
+            ackDeadline = System.nanoTime() + FastServer.DELAYED_ACK * 1000000L;
+        return 0;
+    }
+
+    public boolean ackDue(long now)
+    {
+        // a delayed sack ack whose time is up
+        if(ackDeadline == 0 || now < ackDeadline)
+            return false;
+        unacked = 0;
+        ackDeadline = 0;
+        return true;
+    }
+
+    public void buildAck(SackAck ack)
+    {
+        // cumulative ack plus blocks received
+        // beyond it, scanning up to the highest
+        // sequence number received
+        ack.reset(rcvBase);
+        int start = -1;
+        for(int seq = rcvBase + 1; seq <= highest; seq++) {
+            boolean received = reorder.getNode(seq) != null;
+            if(received && start < 0) {
+                start = seq;
+            } else if(!received && start >= 0) {
+                if(!ack.addBlock(start, seq))
+                    return;
+                start = -1;
+            }
+        }
+        if(start >= 0)
+            ack.addBlock(start, highest + 1);
+    }
+
+    public ServerSession nextSession()
+    {
+        // ends this transfer, once its termination
+        // is read, and returns the session for the
+        // next one on the same connection, with any
+        // of its handshake the client already sent
+        ServerSession next = new ServerSession(control, windowSize);
+        next.keptAlive = true;
+        next.udpAddress = udpAddress;
+        next.pendingControl = pendingControl;
+        next.signer = signer;
+        next.journalWriter = journalWriter;
+        controlBuffer.flip();
+        controlBuffer.position(fileCrc != null ? 1 + Segment.CHECKSUM_SIZE : 1);
+        if(controlBuffer.remaining() > next.controlBuffer.capacity())
+            next.growControl(controlBuffer.remaining());
+        next.controlBuffer.put(controlBuffer);
+        closeTransfer();
+        return next;
+    }
+
+    public void close()
+    {
+        closeTransfer();
+        try {
+            control.close();
+        } catch (IOException e) {
+            System.out.println("[Server] Close error: " + e.getMessage());
+        }
+    }
+
+    private void closeTransfer()
+    {
+        state = CLOSED;
+        // closing the old copy ends any signing
+        if(signing != null)
+            signing.cancel(true);
+        if(inflater != null)
+            inflater.end();
+        if(journal != null)
+            closeJournal(true);
+        try {
+            if(newCopy != null && !complete) {
+                // an unfinished delta leaves the
+                // old copy as it was
+                newCopy.close();
+                Files.deleteIfExists(path.resolveSibling(path.getFileName() + PART_SUFFIX));
+            }
+            if(oldCopy != null)
+                oldCopy.close();
+            if(file != null)
+                file.close();
+        } catch (IOException e) {
+            System.out.println("[Server] Close error: " + e.getMessage());
+        }
+    }
+
+    public boolean hasPendingControl()
+    {
+        return pendingControl != null;
+    }
+
+    public boolean flushControl() throws IOException
+    {
+        // writes what the socket has room for of
+        // the pending output, returns true once
+        // all of it is written
+        if(pendingControl != null) {
+            control.write(pendingControl);
+            if(pendingControl.hasRemaining())
+                return false;
+            pendingControl = null;
+        }
+        return true;
+    }
+
+    private void writeControl(ByteBuffer buf) throws IOException
+    {
+        // control messages are mostly a few bytes,
+        // delta signatures may not fit the socket
+        // buffer, what is left is written by
+        // flushControl() as the socket drains
+        if(pendingControl == null)
+            control.write(buf);
+        if(!buf.hasRemaining())
+            return;
+        if(pendingControl == null) {
+            pendingControl = buf;
+        } else {
+            ByteBuffer joined = ByteBuffer.allocate(pendingControl.remaining() + buf.remaining());
+            joined.put(pendingControl).put(buf).flip();
+            pendingControl = joined;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/* Class: StripedClient
+ *
+ * This class sends a single file as a
+ * number of stripes, runs of whole
+ * segments each sent by its own
+ * FastClient, so each stripe has its own
+ * UDP socket, window, ack thread and
+ * sender thread
+ * The server writes every stripe at its
+ * offset in the file, so large transfers
+ * are no longer bound by one sender loop
+ *
+ * The stripe at the start of the file is
+ * connected first, as the server truncates
+ * the file when it opens that one, and
+ * its negotiated segment size is used to
+ * split the file for the other stripes
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class StripedClient
+{
+    private String serverName;
+    private int serverPort;
+    private int windowSize;
+    private int responseTimeout;
+    private int stripes;
+    private boolean selectiveAck;
+    private boolean zeroCopy;
+    private int segmentSize;
+    private boolean probeMtu;
+    private boolean compress;
+    private boolean checksums;
+    private FastClient[] clients;
+
+    public StripedClient(String server_name, int server_port, int window, int timeout, int stripes)
+    {
+        if(stripes <= 0)
+            throw new IllegalArgumentException("Stripe count must be positive");
+
+        serverName = server_name;
+        serverPort = server_port;
+        windowSize = window;
+        responseTimeout = timeout;
+        this.stripes = stripes;
+        clients = new FastClient[0];
+    }
+
+    public void setSelectiveAck(boolean enabled)
+    {
+        selectiveAck = enabled;
+    }
+
+    public void setZeroCopy(boolean zeroCopy)
+    {
+        this.zeroCopy = zeroCopy;
+    }
+
+    public void setSegmentSize(int payload)
+    {
+        segmentSize = payload;
+    }
+
+    public void setPathMtuProbe(boolean enabled)
+    {
+        // only the first stripe probes, the
+        // others ask for the size it agreed
+        probeMtu = enabled;
+    }
+
+    public void setCompression(boolean enabled)
+    {
+        compress = enabled;
+    }
+
+    public void setChecksums(boolean enabled)
+    {
+        // each stripe is checked on its own
+        checksums = enabled;
+    }
+
+    public FastClient[] getClients()
+    {
+        // the clients of the last send, one
+        // per stripe
+        return clients;
+    }
+
+    public boolean send(String file_name)
+    {
+        // splits the file into stripes of whole
+        // segments, as even as possible, and sends
+        // them in parallel
+        // returns false if any handshake failed,
+        // or any stripe failed or failed its
+        // checksum
+        File file = new File(System.getProperty("user.dir") + "/" + file_name);
+        if(!file.isFile()) {
+            System.out.println("Striped transfers need a regular file: " + file_name);
+            return false;
+        }
+
+        FastClient first = newClient();
+        first.setStripe(0, 0);
+        first.setPathMtuProbe(probeMtu);
+        if(segmentSize > 0)
+            first.setSegmentSize(segmentSize);
+        if(!first.connect(file_name)) {
+            System.out.println("Handshake failure on stripe 0");
+            return abandon(new FastClient[] { first });
+        }
+
+        int payload = first.getPayloadSize();
+        long segments = (file.length() + payload - 1) / payload;
+        if(segments > Integer.MAX_VALUE) {
+            System.out.println("File too large for striped transfer: " + file_name);
+            return abandon(new FastClient[] { first });
+        }
+        int n = (int) Math.max(1, Math.min(stripes, segments));
+
+        // the other stripes are connected in order
+        // after it, asking for the same segments
+        clients = new FastClient[n];
+        clients[0] = first;
+        for(int i = 0; i < n; i++) {
+            int start = (int) (segments * i / n);
+            int next = (int) (segments * (i + 1) / n);
+            if(i > 0) {
+                clients[i] = newClient();
+                clients[i].setSegmentSize(payload);
+            }
+            clients[i].setStripe(start, next - start);
+            if(i > 0 && !clients[i].connect(file_name)) {
+                System.out.println("Handshake failure on stripe " + i);
+                return abandon(clients);
+            }
+            if(clients[i].getPayloadSize() != payload) {
+                System.out.println("Segment size mismatch on stripe " + i);
+                return abandon(clients);
+            }
+        }
+
+        // each sender records whether its stripe
+        // got through, read once it is joined
+        Thread[] senders = new Thread[n];
+        final boolean[] sent = new boolean[n];
+        for(int i = 0; i < n; i++) {
+            final FastClient client = clients[i];
+            final int stripe = i;
+            senders[i] = new Thread() {
+                public void run() {
+                    sent[stripe] = client.transfer();
+                }
+            };
+            senders[i].start();
+        }
+
+        boolean interrupted = false;
+        for(int i = 0; i < n; i++) {
+            try {
+                senders[i].join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                i--;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+
+        // every stripe has to get through, and
+        // match its checksum
+        boolean success = true;
+        for(int i = 0; i < n; i++) {
+            if(!sent[i] || (checksums && !clients[i].isVerified())) {
+                System.out.println("Transfer failure on stripe " + i);
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    private boolean abandon(FastClient[] created)
+    {
+        // closes the sockets and threads of every
+        // client created so far, when the transfer
+        // does not go ahead
+        for(FastClient client : created) {
+            if(client != null)
+                client.close();
+        }
+        return false;
+    }
+
+    private FastClient newClient()
+    {
+        FastClient client = new FastClient(serverName, serverPort, windowSize, responseTimeout);
+        client.setSelectiveAck(selectiveAck);
+        client.setZeroCopy(zeroCopy);
+        client.setCompression(compress);
+        client.setChecksums(checksums);
+        return client;
+    }
+
+
+    /**
+     * A simple test driver
+     *
+     */
+    public static void main(String[] args) {
+        int timeout = 100; // milli-seconds, initial value
+
+        if (args.length < 5) {
+            System.out.println("wrong number of arguments, try again.");
+            System.out.println("usage: java StripedClient server port file windowsize stripes [options]");
+            System.out.println("options: -zerocopy -sack -segment bytes -probe -compress -checksum");
+            System.exit(0);
+        }
+
+        String server = args[0];
+        int server_port = Integer.parseInt(args[1]);
+        String file_name = args[2];
+        int window = Integer.parseInt(args[3]);
+        int stripes = Integer.parseInt(args[4]);
+
+        StripedClient client = new StripedClient(server, server_port, window, timeout, stripes);
+        for (int i = 5; i < args.length; i++) {
+            if (args[i].equals("-zerocopy")) {
+                client.setZeroCopy(true);
+            }
+            else if (args[i].equals("-sack")) {
+                client.setSelectiveAck(true);
+            }
+            else if (args[i].equals("-segment") && i + 1 < args.length) {
+                client.setSegmentSize(Integer.parseInt(args[++i]));
+            }
+            else if (args[i].equals("-probe")) {
+                client.setPathMtuProbe(true);
+            }
+            else if (args[i].equals("-compress")) {
+                client.setCompression(true);
+            }
+            else if (args[i].equals("-checksum")) {
+                client.setChecksums(true);
+            }
+            else {
+                System.out.println("unknown option: " + args[i]);
+                System.exit(0);
+            }
+        }
+
+        System.out.printf("sending file \'%s\' to server in %d stripes...\n", file_name, stripes);
+        if (!client.send(file_name))
+            System.exit(1);
+        System.out.println("file transfer completed.");
+    }
+}
@@ -1,40 +1,76 @@
 /* Class: TimeoutHandler
  *
- * This class creates a timer thread
- * that when executed, checks to see
- * if the associated packet has timed
- * out
+ * This class handles the expiry of a
+ * packet timer in the TimerWheel
  * If the packet has timed out, it is
- * resent - if not, then thread ends
- * silently
+ * resent - if it has been acknowledged
+ * in the meantime, the expiry is
+ * ignored silently
+ * The check and resend hold the client's
+ * send lock, which the sender refills a
+ * reused node under, so a node acked and
+ * reused for a later segment since it
+ * expired is never resent half filled,
+ * and is left to its new timer
  */
 
-import java.util.*;
-
-public class TimeoutHandler extends TimerTask
+public class TimeoutHandler
 {
     private FastClient client;
-    private int seqNo;
-    private byte[] payload;
+    private RttEstimator rtt;
+    private CongestionController congestion;
+    private FecEncoder fec;
+    private TransferMetrics metrics;
 
-    public TimeoutHandler(FastClient client, int seqNo, byte[] payload)
+    public TimeoutHandler(FastClient client, RttEstimator rtt)
     {
         this.client = client;
-        this.seqNo = seqNo;
-        this.payload = payload;
+        this.rtt = rtt;
+    }
+
+    public void setCongestionController(CongestionController congestion)
+    {
+        // optional, the window limit is left
+        // alone when no controller is set
+        this.congestion = congestion;
+    }
+
+    public void setFecEncoder(FecEncoder fec)
+    {
+        // optional, told about losses the
+        // parity did not recover
+        this.fec = fec;
+    }
+
+    public void setMetrics(TransferMetrics metrics)
+    {
+        // optional, counts the timeouts
+        this.metrics = metrics;
     }
 
-    public void run()
+    public void timeout(TxQueueNode node)
     {
-        // get the node in window corresponding to this
-        // timer packet
-        TxQueueNode node = client.getWindow().getNode(seqNo);
+        // the wheel hands over the window node
+        // itself, so no window lookup is needed
         // if the packet is not acknowledged then a timeout
-        // has occurred
-        if(node != null && node.getStatus() != TxQueueNode.ACKNOWLEDGED) {
-            // resend packet
-            System.out.println("Timeout: Resending packet...");
-            client.sendPacketData(payload, seqNo);
+        // has occurred, unless the node was reused
+        // and sent again, which rescheduled it
+        synchronized(client) {
+            if(node.getStatus() != TxQueueNode.SENT || client.isTimerPending(node))
+                return;
+            // back off the timeout of this segment
+            // only, then resend it with the new one
+            node.timeout = rtt.backoff(node.timeout);
+            if(fec != null)
+                fec.onTimeout();
+            // let the controller shrink the window
+            if(congestion != null) {
+                congestion.onTimeout(node.seg.getSeqNum());
+                client.getWindow().setLimit(congestion.getWindow());
+            }
+            if(metrics != null)
+                metrics.onTimeout();
+            client.sendPacketData(node);
         }
     }
 }
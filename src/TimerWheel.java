@@ -0,0 +1,236 @@
+/* Class: TimerWheel
+ *
+ * This class creates a thread that
+ * runs a hashed timing wheel of packet
+ * retransmission timers
+ * Each window node is linked into the
+ * wheel bucket of its deadline, so
+ * scheduling and cancelling are constant
+ * time and no task object is created per
+ * packet
+ * Acknowledged packets are unlinked when
+ * the ack arrives, so they cost nothing
+ * when their bucket comes up
+ * Expired nodes are passed to the
+ * TimeoutHandler, or, when the wheel is
+ * driven by an event loop instead of its
+ * own thread, collected by expire()
+ */
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+public class TimerWheel extends Thread
+{
+    public final static int DEFAULT_TICK = 5; // milli-seconds
+    public final static int DEFAULT_WHEEL_SIZE = 256; // buckets
+
+    private TimeoutHandler handler;
+    private long tickNanos;
+    private int mask;
+    private TxQueueNode[] buckets;
+    private long startTime;
+    private long nextTick;
+    private ArrayList<TxQueueNode> expired;
+    private final Object lock = new Object();
+    private volatile boolean runThread;
+
+    public TimerWheel(TimeoutHandler handler)
+    {
+        this(handler, DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+
+    public TimerWheel(TimeoutHandler handler, int tickMillis, int wheelSize)
+    {
+        if(tickMillis <= 0 || wheelSize <= 0)
+            throw new IllegalArgumentException("Tick and wheel size must be positive");
+
+        // round wheel size up to a power of two
+        // so the bucket is found with a mask
+        int size = Integer.highestOneBit(wheelSize);
+        if(size < wheelSize)
+            size = size << 1;
+
+        this.handler = handler;
+        this.tickNanos = tickMillis * 1000000L;
+        this.mask = size - 1;
+        this.buckets = new TxQueueNode[size];
+        this.expired = new ArrayList<TxQueueNode>();
+        this.startTime = System.nanoTime();
+        this.nextTick = 1;
+
+        setDaemon(true);
+    }
+
+    public void schedule(TxQueueNode node, long delayMillis)
+    {
+        // places the node in the bucket of its
+        // deadline, rescheduling it if it is
+        // already pending
+        long elapsed = System.nanoTime() - startTime + delayMillis * 1000000L;
+        long tick = (elapsed + tickNanos - 1) / tickNanos;
+
+        synchronized(lock) {
+            unlink(node);
+            link(node, tick);
+        }
+    }
+
+    public void cap(long delayMillis, Object owner)
+    {
+        // brings the timers of segments sent once
+        // forward to at most the given delay from
+        // now, after the timeout they were armed
+        // with has dropped, resends keep their
+        // backoff; with an owner only its nodes
+        // are capped
+        long elapsed = System.nanoTime() - startTime + delayMillis * 1000000L;
+        long tick = (elapsed + tickNanos - 1) / tickNanos;
+
+        synchronized(lock) {
+            for(int b = 0; b < buckets.length; b++) {
+                TxQueueNode node = buckets[b];
+                while(node != null) {
+                    // a node moved to a later bucket is
+                    // seen again, but is then due in time
+                    TxQueueNode next = node.timerNext;
+                    if(node.timerTick > tick && node.transmissions <= 1
+                            && (owner == null || node.owner == owner)) {
+                        unlink(node);
+                        link(node, tick);
+                        node.timeout = delayMillis;
+                    }
+                    node = next;
+                }
+            }
+        }
+    }
+
+    public void cancel(TxQueueNode node)
+    {
+        // removes a pending timer, if any
+        synchronized(lock) {
+            unlink(node);
+        }
+    }
+
+    public boolean isPending(TxQueueNode node)
+    {
+        // true while the node has a timer
+        synchronized(lock) {
+            return node.timerBucket >= 0;
+        }
+    }
+
+    public void stopThread()
+    {
+        // allows for external halting
+        // of thread
+        runThread = false;
+        interrupt();
+    }
+
+    public void run()
+    {
+        runThread = true;
+
+        while(runThread) {
+            // wait until the next tick is due
+            long wait = startTime + nextTick * tickNanos - System.nanoTime();
+            if(wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+
+            // collect expired nodes under the lock,
+            // then handle them outside it so resends
+            // can reschedule freely
+            advance();
+            for(int i = 0; i < expired.size(); i++) {
+                try {
+                    handler.timeout(expired.get(i));
+                } catch (Exception e) {
+                    System.out.println("Timer Error: " + e.getMessage());
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    public void expire(long now, List<TxQueueNode> out)
+    {
+        // runs every tick due by now, for a wheel
+        // that is not started, and adds the nodes
+        // that expired to out
+        while(startTime + nextTick * tickNanos <= now) {
+            advance();
+            // copied one by one, addAll() would
+            // allocate an array every tick
+            for(int i = 0; i < expired.size(); i++)
+                out.add(expired.get(i));
+            expired.clear();
+        }
+    }
+
+    public long nextDeadline()
+    {
+        // time of the next tick, in System.nanoTime()
+        return startTime + nextTick * tickNanos;
+    }
+
+    private void advance()
+    {
+        // walks the bucket of the current tick,
+        // expiring nodes on their last round
+        synchronized(lock) {
+            int bucket = (int) (nextTick & mask);
+            TxQueueNode node = buckets[bucket];
+            while(node != null) {
+                TxQueueNode next = node.timerNext;
+                if(node.timerRounds > 0) {
+                    node.timerRounds--;
+                } else {
+                    unlink(node);
+                    expired.add(node);
+                }
+                node = next;
+            }
+            nextTick++;
+        }
+    }
+
+    private void link(TxQueueNode node, long tick)
+    {
+        // must be called holding the wheel lock
+        if(tick < nextTick)
+            tick = nextTick;
+
+        int bucket = (int) (tick & mask);
+        node.timerRounds = (tick - nextTick) / buckets.length;
+        node.timerTick = tick;
+        node.timerBucket = bucket;
+        node.timerPrev = null;
+        node.timerNext = buckets[bucket];
+        if(buckets[bucket] != null)
+            buckets[bucket].timerPrev = node;
+        buckets[bucket] = node;
+    }
+
+    private void unlink(TxQueueNode node)
+    {
+        // must be called holding the wheel lock
+        if(node.timerBucket < 0)
+            return;
+
+        if(node.timerPrev != null)
+            node.timerPrev.timerNext = node.timerNext;
+        else
+            buckets[node.timerBucket] = node.timerNext;
+        if(node.timerNext != null)
+            node.timerNext.timerPrev = node.timerPrev;
+
+        node.timerPrev = null;
+        node.timerNext = null;
+        node.timerBucket = -1;
+    }
+}
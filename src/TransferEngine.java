@@ -0,0 +1,395 @@
+/* Class: TransferEngine
+ *
+ * This class runs many file transfers at
+ * once on a fixed number of threads: one
+ * event loop thread drives a Selector
+ * over every control connection and a
+ * few UDP channels shared by all the
+ * transfers, told apart on the server by
+ * the session id that follows the header
+ * of each segment (HandshakeOptions.SESSION)
+ * Retransmission timers of every session
+ * share one TimerWheel, stepped by the
+ * event loop rather than its own thread
+ *
+ * At most maxActive transfers run at a
+ * time, the rest wait in order, so tens
+ * of thousands of files can be queued
+ * without as many sockets
+ *
+ * usage: java TransferEngine server port window sockets file...
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class TransferEngine extends Thread
+{
+    public final static int DEFAULT_MAX_ACTIVE = 256; // transfers
+    public final static int SOCKET_BUFFER = 4 * 1024 * 1024; // bytes, capped by the OS
+
+    private int windowSize;
+    private int timeout;
+    private int maxActive;
+    private int segmentSize;
+    private Selector selector;
+    private DatagramChannel[] channels;
+    private int nextChannel;
+    private TimerWheel timers;
+    private volatile boolean runThread;
+
+    // transfers waiting to start, added by any
+    // thread, and those running, by server
+    // and session id once the handshake is done
+    private ConcurrentLinkedQueue<EngineSession> queued;
+    private int active;
+    private HashMap<SocketAddress, HashMap<Integer, EngineSession>> sessions;
+    private ArrayDeque<EngineSession> sendable;
+
+    // reused on the event loop
+    private ByteBuffer sendBuffer;
+    private ByteBuffer ackBuffer;
+    private SackAck sack;
+    private ArrayList<TxQueueNode> expired;
+
+    private volatile long completed;
+    private volatile long failed;
+
+    public TransferEngine(int sockets, int window, int timeout) throws IOException
+    {
+        if(sockets <= 0 || window <= 0)
+            throw new IllegalArgumentException("Sockets and window must be positive");
+
+        this.windowSize = window;
+        this.timeout = timeout;
+        this.maxActive = DEFAULT_MAX_ACTIVE;
+        queued = new ConcurrentLinkedQueue<EngineSession>();
+        sessions = new HashMap<SocketAddress, HashMap<Integer, EngineSession>>();
+        sendable = new ArrayDeque<EngineSession>();
+        timers = new TimerWheel(null);
+        expired = new ArrayList<TxQueueNode>();
+        sack = new SackAck();
+        sendBuffer = ByteBuffer.allocateDirect(Segment.MAX_UDP_SEGMENT_SIZE);
+        ackBuffer = ByteBuffer.allocate(SackAck.MAX_SIZE + Segment.SESSION_ID_SIZE);
+
+        selector = Selector.open();
+        channels = new DatagramChannel[sockets];
+        for(int i = 0; i < sockets; i++) {
+            channels[i] = DatagramChannel.open();
+            channels[i].setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+            channels[i].setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+            channels[i].bind(null);
+            channels[i].configureBlocking(false);
+            channels[i].register(selector, SelectionKey.OP_READ);
+        }
+        setDaemon(true);
+    }
+
+    public void setMaxActive(int transfers)
+    {
+        // transfers running at once, each holds
+        // a control connection
+        maxActive = Math.max(1, transfers);
+    }
+
+    public void setSegmentSize(int payload)
+    {
+        // payload bytes asked for in each handshake,
+        // 0 keeps Segment.MAX_PAYLOAD_SIZE
+        segmentSize = Math.max(0, payload);
+    }
+
+    public CompletableFuture<Void> send(String serverName, int serverPort, File file)
+    {
+        // queues a transfer of the file, which the
+        // server stores under its name, completed
+        // once every segment is acked
+        EngineSession session = new EngineSession(this, file,
+            new InetSocketAddress(serverName, serverPort), windowSize, timeout);
+        queued.add(session);
+        selector.wakeup();
+        return session.getResult();
+    }
+
+    public int getActiveCount()
+    {
+        return active;
+    }
+
+    public long getCompletedCount()
+    {
+        return completed;
+    }
+
+    public long getFailedCount()
+    {
+        return failed;
+    }
+
+    public void stopThread()
+    {
+        runThread = false;
+        selector.wakeup();
+    }
+
+    public void run()
+    {
+        runThread = true;
+        while(runThread) {
+            try {
+                // sleep until the next timer tick, unless
+                // sessions have segments to send, or
+                // until woken when there is nothing to do
+                if(active == 0 && queued.isEmpty()) {
+                    selector.select();
+                } else if(sendable.isEmpty()) {
+                    long wait = (timers.nextDeadline() - System.nanoTime()) / 1000000;
+                    selector.select(Math.max(1, wait));
+                } else {
+                    selector.selectNow();
+                }
+
+                startQueued();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid())
+                        continue;
+                    if(key.channel() instanceof DatagramChannel)
+                        receiveAcks((DatagramChannel) key.channel());
+                    else
+                        handleControl(key);
+                }
+
+                expireTimers(System.nanoTime());
+                sendSegments();
+            } catch (IOException e) {
+                System.out.println("Engine error: " + e.getMessage());
+            }
+        }
+        close();
+    }
+
+    private void startQueued()
+    {
+        EngineSession session;
+        while(active < maxActive && (session = queued.poll()) != null) {
+            DatagramChannel udp = channels[nextChannel];
+            nextChannel = (nextChannel + 1) % channels.length;
+            active++;
+            try {
+                session.connect(selector, udp, segmentSize);
+            } catch (IOException e) {
+                fail(session, e);
+            }
+        }
+    }
+
+    private void handleControl(SelectionKey key)
+    {
+        EngineSession session = (EngineSession) key.attachment();
+        try {
+            if(key.isConnectable())
+                session.onConnectable(key);
+            else if(key.isWritable())
+                session.onWritable(key);
+            else if(key.isReadable())
+                session.onReadable(key);
+        } catch (IOException e) {
+            fail(session, e);
+        }
+    }
+
+    void onStarted(EngineSession session)
+    {
+        // the handshake is done, acks can be
+        // matched to the session
+        HashMap<Integer, EngineSession> byId = sessions.get(session.getServer());
+        if(byId == null) {
+            byId = new HashMap<Integer, EngineSession>();
+            sessions.put(session.getServer(), byId);
+        }
+        byId.put(session.getSessionId(), session);
+        queueToSend(session);
+    }
+
+    private void receiveAcks(DatagramChannel channel) throws IOException
+    {
+        // the session id follows each ack
+        byte[] bytes = ackBuffer.array();
+        while(true) {
+            ackBuffer.clear();
+            SocketAddress from = channel.receive(ackBuffer);
+            if(from == null)
+                return;
+
+            int length = ackBuffer.position() - Segment.SESSION_ID_SIZE;
+            if(length < Segment.HEADER_SIZE + 1)
+                continue;
+            int id = (bytes[length] & 0xFF) | (bytes[length + 1] & 0xFF) << 8
+                | (bytes[length + 2] & 0xFF) << 16 | (bytes[length + 3] & 0xFF) << 24;
+            HashMap<Integer, EngineSession> byId = sessions.get(from);
+            EngineSession session = byId != null ? byId.get(id) : null;
+            if(session == null)
+                continue;
+
+            try {
+                sack.setBytes(bytes, length);
+                session.onAck(sack, timers);
+                if(session.isComplete())
+                    finish(session);
+                else if(session.hasNext())
+                    queueToSend(session);
+            } catch (IllegalArgumentException e) {
+                // not a valid ack
+            } catch (IOException e) {
+                fail(session, e);
+            }
+        }
+    }
+
+    private void expireTimers(long now)
+    {
+        timers.expire(now, expired);
+        for(int i = 0; i < expired.size(); i++) {
+            TxQueueNode node = expired.get(i);
+            EngineSession session = (EngineSession) node.owner;
+            try {
+                session.onTimeout(node, timers, sendBuffer);
+            } catch (IOException e) {
+                fail(session, e);
+            }
+        }
+        expired.clear();
+    }
+
+    private void sendSegments()
+    {
+        // a window's worth from each session in
+        // turn, those still open go round again
+        int n = sendable.size();
+        for(int i = 0; i < n; i++) {
+            EngineSession session = sendable.poll();
+            session.sendQueued = false;
+            try {
+                while(session.hasNext())
+                    session.sendNext(timers, sendBuffer);
+                if(session.isComplete())
+                    finish(session);
+            } catch (IOException e) {
+                fail(session, e);
+            }
+        }
+    }
+
+    private void queueToSend(EngineSession session)
+    {
+        if(session.sendQueued)
+            return;
+        session.sendQueued = true;
+        sendable.add(session);
+    }
+
+    private void finish(EngineSession session)
+    {
+        try {
+            session.finish();
+            completed++;
+        } catch (IOException e) {
+            session.fail(e);
+            failed++;
+        }
+        remove(session);
+    }
+
+    private void fail(EngineSession session, Throwable cause)
+    {
+        if(session.getState() == EngineSession.DONE)
+            return;
+        session.fail(cause);
+        failed++;
+        remove(session);
+    }
+
+    private void remove(EngineSession session)
+    {
+        active--;
+        if(session.sendQueued) {
+            sendable.remove(session);
+            session.sendQueued = false;
+        }
+        HashMap<Integer, EngineSession> byId = sessions.get(session.getServer());
+        if(byId != null && byId.get(session.getSessionId()) == session) {
+            byId.remove(session.getSessionId());
+            if(byId.isEmpty())
+                sessions.remove(session.getServer());
+        }
+    }
+
+    private void close()
+    {
+        // transfers still running or queued fail
+        IOException closed = new IOException("Engine stopped");
+        for(HashMap<Integer, EngineSession> byId : new ArrayList<HashMap<Integer, EngineSession>>(sessions.values())) {
+            for(EngineSession session : new ArrayList<EngineSession>(byId.values()))
+                fail(session, closed);
+        }
+        for(SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+            if(key.attachment() instanceof EngineSession)
+                fail((EngineSession) key.attachment(), closed);
+        }
+        EngineSession session;
+        while((session = queued.poll()) != null)
+            session.fail(closed);
+
+        try {
+            for(DatagramChannel channel : channels)
+                channel.close();
+            selector.close();
+        } catch (IOException e) {
+            System.out.println("Engine close error");
+        }
+    }
+
+
+    /**
+     * A simple test driver
+     *
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) {
+            System.out.println("usage: java TransferEngine server port window sockets file...");
+            System.exit(0);
+        }
+        String server = args[0];
+        int port = Integer.parseInt(args[1]);
+        int window = Integer.parseInt(args[2]);
+        int sockets = Integer.parseInt(args[3]);
+
+        TransferEngine engine = new TransferEngine(sockets, window, 100);
+        engine.start();
+
+        long start = System.nanoTime();
+        ArrayList<CompletableFuture<Void>> results = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 4; i < args.length; i++)
+            results.add(engine.send(server, port, new File(args[i])));
+        int failed = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                results.get(i).get();
+            } catch (ExecutionException e) {
+                System.out.println(args[i + 4] + ": " + e.getCause().getMessage());
+                failed++;
+            }
+        }
+        System.out.printf("%d transfers completed, %d failed, in %.1f ms\n",
+            results.size() - failed, failed, (System.nanoTime() - start) / 1e6);
+        engine.stopThread();
+    }
+}
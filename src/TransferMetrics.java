@@ -0,0 +1,321 @@
+/* Class: TransferMetrics
+ *
+ * This class keeps the counters and
+ * histograms of a client's transfers:
+ * segments sent, resent and acked, the
+ * rtt of each sample taken, how full the
+ * window is at each new send, the time
+ * the sender stalls on a full window,
+ * and the goodput, payload bytes acked
+ * per second
+ * Counters are LongAdders and histograms
+ * take an atomic increment, so the send,
+ * ack and timer threads record without
+ * locks
+ * snapshot() copies them out, and the
+ * same values are served over JMX once
+ * registered
+ *
+ * A long-lived client keeps one set for
+ * all its files: counters add up since
+ * it was created or reset(), and the
+ * elapsed time and goodput count the
+ * time spent in transfers, leaving out
+ * the idle time between files
+ */
+
+import java.lang.management.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+public class TransferMetrics implements TransferMetricsMBean
+{
+    public final static String DOMAIN = "FastClient";
+
+    // the values at one point in time
+    public static class Snapshot
+    {
+        public final long sent;
+        public final long retransmitted;
+        public final long acked;
+        public final long timeouts;
+        public final double rttMean; // milli-seconds
+        public final double rttP50; // milli-seconds
+        public final double rttP99; // milli-seconds
+        public final double rttMax; // milli-seconds
+        public final int occupancy; // segments
+        public final double occupancyMean; // segments
+        public final long occupancyP99; // segments
+        public final long stallTime; // milli-seconds
+        public final long elapsedTime; // milli-seconds
+        public final long ackedBytes;
+        public final double goodput; // bytes per second
+
+        private Snapshot(TransferMetrics m)
+        {
+            sent = m.getSegmentsSent();
+            retransmitted = m.getSegmentsRetransmitted();
+            acked = m.getSegmentsAcked();
+            timeouts = m.getTimeouts();
+            rttMean = m.getRttMean();
+            rttP50 = m.getRttP50();
+            rttP99 = m.getRttP99();
+            rttMax = m.getRttMax();
+            occupancy = m.getWindowOccupancy();
+            occupancyMean = m.getWindowOccupancyMean();
+            occupancyP99 = m.getWindowOccupancyP99();
+            stallTime = m.getStallTime();
+            elapsedTime = m.getElapsedTime();
+            ackedBytes = m.ackedBytes.sum();
+            goodput = m.getGoodput();
+        }
+
+        public String toString()
+        {
+            return String.format("sent=%d resent=%d acked=%d timeouts=%d"
+                + " rtt mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms"
+                + " window mean=%.1f p99=%d stalled=%dms goodput=%.2fMB/s",
+                sent, retransmitted, acked, timeouts, rttMean, rttP50, rttP99, rttMax,
+                occupancyMean, occupancyP99, stallTime, goodput / 1048576);
+        }
+    }
+
+    private TxQueue window;
+
+    private LongAdder sent;
+    private LongAdder retransmitted;
+    private LongAdder acked;
+    private LongAdder ackedBytes;
+    private LongAdder timeouts;
+    private LongAdder stallNanos;
+    private Histogram rtt; // micro-seconds
+    private Histogram occupancy; // segments
+
+    // start of the running transfer, 0 when
+    // none is, and the time of those finished
+    private long startTime;
+    private long finishedNanos;
+
+    private ObjectName registered;
+
+    public TransferMetrics(TxQueue window)
+    {
+        this.window = window;
+        sent = new LongAdder();
+        retransmitted = new LongAdder();
+        acked = new LongAdder();
+        ackedBytes = new LongAdder();
+        timeouts = new LongAdder();
+        stallNanos = new LongAdder();
+        rtt = new Histogram();
+        occupancy = new Histogram();
+    }
+
+    /* recording, from the client's threads */
+
+    public synchronized void start()
+    {
+        // once per file, the counters carry on
+        startTime = System.nanoTime();
+    }
+
+    public synchronized void finish()
+    {
+        if(startTime == 0)
+            return;
+        finishedNanos += System.nanoTime() - startTime;
+        startTime = 0;
+    }
+
+    public void onSend(int transmissions)
+    {
+        // a segment going out, for the given time
+        if(transmissions > 1) {
+            retransmitted.increment();
+        } else {
+            sent.increment();
+            occupancy.record(window.size());
+        }
+    }
+
+    public void onAck(int payloadBytes)
+    {
+        acked.increment();
+        ackedBytes.add(payloadBytes);
+    }
+
+    public void onRttSample(double rttMillis)
+    {
+        rtt.record((long) (rttMillis * 1000));
+    }
+
+    public void onTimeout()
+    {
+        timeouts.increment();
+    }
+
+    public void onStall(long nanos)
+    {
+        stallNanos.add(nanos);
+    }
+
+    /* reading */
+
+    public Snapshot snapshot()
+    {
+        return new Snapshot(this);
+    }
+
+    public long getSegmentsSent()
+    {
+        // new segments, not counting resends
+        return sent.sum();
+    }
+
+    public long getSegmentsRetransmitted()
+    {
+        return retransmitted.sum();
+    }
+
+    public long getSegmentsAcked()
+    {
+        return acked.sum();
+    }
+
+    public long getAckedBytes()
+    {
+        // payload bytes, as sent
+        return ackedBytes.sum();
+    }
+
+    public long getTimeouts()
+    {
+        return timeouts.sum();
+    }
+
+    public double getRetransmitRatio()
+    {
+        // resends per new segment
+        long n = sent.sum();
+        return n == 0 ? 0 : (double) retransmitted.sum() / n;
+    }
+
+    public double getRttMean()
+    {
+        return rtt.getMean() / 1000;
+    }
+
+    public double getRttP50()
+    {
+        return rtt.getPercentile(50) / 1000.0;
+    }
+
+    public double getRttP99()
+    {
+        return rtt.getPercentile(99) / 1000.0;
+    }
+
+    public double getRttMax()
+    {
+        return rtt.getMax() / 1000.0;
+    }
+
+    public Histogram getRttHistogram()
+    {
+        // in micro-seconds
+        return rtt;
+    }
+
+    public int getWindowOccupancy()
+    {
+        // segments in the window now
+        return window.size();
+    }
+
+    public double getWindowOccupancyMean()
+    {
+        return occupancy.getMean();
+    }
+
+    public long getWindowOccupancyP99()
+    {
+        return occupancy.getPercentile(99);
+    }
+
+    public Histogram getOccupancyHistogram()
+    {
+        return occupancy;
+    }
+
+    public long getStallTime()
+    {
+        return stallNanos.sum() / 1000000;
+    }
+
+    public long getElapsedTime()
+    {
+        // time spent in transfers, the running
+        // one included
+        return activeNanos() / 1000000;
+    }
+
+    public double getGoodput()
+    {
+        // payload bytes acked per second of
+        // time spent in transfers
+        long active = activeNanos();
+        if(active == 0)
+            return 0;
+        return ackedBytes.sum() * 1e9 / active;
+    }
+
+    private synchronized long activeNanos()
+    {
+        if(startTime == 0)
+            return finishedNanos;
+        return finishedNanos + System.nanoTime() - startTime;
+    }
+
+    public void reset()
+    {
+        sent.reset();
+        retransmitted.reset();
+        acked.reset();
+        ackedBytes.reset();
+        timeouts.reset();
+        stallNanos.reset();
+        rtt.reset();
+        occupancy.reset();
+        synchronized(this) {
+            // a running transfer counts from now
+            finishedNanos = 0;
+            if(startTime != 0)
+                startTime = System.nanoTime();
+        }
+    }
+
+    /* jmx */
+
+    public synchronized void register(String name) throws JMException
+    {
+        // registers as DOMAIN:type=TransferMetrics,name=<name>
+        // with the platform mbean server, replacing
+        // a registration of this object
+        unregister();
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=TransferMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        registered = objectName;
+    }
+
+    public synchronized void unregister()
+    {
+        if(registered == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+        } catch (JMException e) {
+            // already gone
+        }
+        registered = null;
+    }
+}
@@ -0,0 +1,46 @@
+/* Interface: TransferMetricsMBean
+ *
+ * The JMX view of a client's
+ * TransferMetrics, registered under
+ * TransferMetrics.DOMAIN
+ * Times are in milli-seconds, rates in
+ * bytes per second
+ * Values cover every file the client
+ * sent, elapsed time and goodput only
+ * the time spent in transfers
+ */
+
+public interface TransferMetricsMBean
+{
+    public long getSegmentsSent();
+
+    public long getSegmentsRetransmitted();
+
+    public long getSegmentsAcked();
+
+    public long getTimeouts();
+
+    public double getRetransmitRatio();
+
+    public double getRttMean();
+
+    public double getRttP50();
+
+    public double getRttP99();
+
+    public double getRttMax();
+
+    public int getWindowOccupancy();
+
+    public double getWindowOccupancyMean();
+
+    public long getWindowOccupancyP99();
+
+    public long getStallTime();
+
+    public long getElapsedTime();
+
+    public double getGoodput();
+
+    public void reset();
+}
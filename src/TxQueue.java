@@ -1,343 +1,634 @@
 
+import java.lang.invoke.*;
+import java.util.*;
 import java.util.concurrent.locks.*;
 
 /**
  * TxQueue Class
- * 
- * TxQueue implements a queue of nodes (contaning segment) using a link list. The nodes are stored in increasing order of segment sequence number
+ *
+ * TxQueue implements a queue of nodes (contaning segment) using a fixed capacity ring buffer.
+ * Each segment occupies the slot given by its sequence number modulo the queue capacity, so
+ * looking up, inserting and removing a node are all constant time operations, independent of
+ * the window size.
  * A node item is inserted into the queue based on segment sequence number, while items are ALWAYS removed from the 'head' of the queue. Neverteless, for the sender, a new node is always added at the end. The implementation is generic to incorporate receiver side queue.
- * The next segment to be removed is at the 'head'.
- * 
+ * The next segment to be removed is at the 'head', which is the lowest sequence number in the queue.
+ *
+ * The queue is lock-free for a sender adding nodes on one thread while another
+ * acknowledges them: the tail is only written by the adding thread, the head is only
+ * moved by the removing or acknowledging thread, except when the queue is empty, and each
+ * node's status is changed atomically, so lookups, adds and acks never wait on each other.
+ * The head is moved with a compare-and-set, so a second thread may drop nodes, e.g. a
+ * sender abandoning its window, without corrupting it; uncontended that costs no more than
+ * a volatile write. Adding a node before the head, as a receiver may, moves the head back,
+ * and is only safe when a single thread uses the queue.
+ *
+ * A node leaving the queue is kept as the spare of its slot, and addNode() reuses it, with
+ * its segment and payload buffer, for the next segment in that slot, so once the window has
+ * filled a sender allocates no more nodes. Reuse is only safe once no other thread holds
+ * on to a removed node, so a thread that acknowledges nodes and then works on them marks
+ * them with mark() and removes them with removeAcknowledged() when done.
+ *
  * This is a blocking implementation:
- * The queue has a capacity. A call to add() when the queue is full
+ * The queue has a capacity, and an effective limit at or below it that can be changed at
+ * runtime, e.g. by a congestion controller. A call to add() when the queue is full, or when the slot
+ * for the given sequence number is still held by an earlier segment,
  * blocks the calling process until space becomes available by calling remove().
  * A call to remove() when the queue is empty will block the calling process until
- * a segment is added to the queue using add(). 
- * 
+ * a segment is added to the queue using add().
+ * Only a thread that has to wait takes the mutex, and the others only signal
+ * through it while some thread is waiting. A sender waiting for space with
+ * awaitNotFull() parks instead, and is unparked directly.
+ *
  * @author      Majid Ghaderi
  * @author      Cyriac James
- * @version     3.1, Jan 01, 2017
+ * @version     5.1, Jan 01, 2017
  *
  */
 public class TxQueue {
-    
-    // used for mutual exclusion, can be unlocked only by the locking process
+
+    private static final VarHandle BASE;
+    private static final VarHandle REMOVED;
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(TxQueueNode[].class);
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            BASE = lookup.findVarHandle(TxQueue.class, "base", int.class);
+            REMOVED = lookup.findVarHandle(TxQueue.class, "removed", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // used for waiting only, can be unlocked only by the locking process
     private final ReentrantLock mutex;
 
     // conditions used for capacity management
     private final Condition notFull;
     private final Condition notEmpty;
-    
-    // queue ADT variables to implement a segment node List
-    private TxQueueNode head = null;
-    private TxQueueNode tail = null;
-    private int count = 0;
+    private final Condition drained;
+    // threads waiting on a condition, only
+    // changed holding the mutex
+    private volatile int waiters = 0;
+    // the adding thread, while parked in awaitNotFull()
+    private volatile Thread spaceWaiter = null;
+
+    // ring buffer of segment nodes, indexed by seqNum % length
+    private final TxQueueNode[] slots;
+    // the node last removed from each slot, for reuse
+    private final TxQueueNode[] spares;
+    private volatile int base = 0;   // sequence number of the head slot
+    private volatile int last = -1;  // highest sequence number in the queue
+    // nodes ever added, only written by the adding thread, and
+    // ever removed, so the queue holds added - removed nodes
+    private volatile int added = 0;
+    private volatile int removed = 0;
     private int length = 0;
-    
-        /**
-        * Constructor 
-        * 
-        * Creates a queue of given capacity
-        * 
-        * @param capacity   The capacity of the queue
-        */
+    private volatile int limit = 0;  // effective capacity, at most length
+
+    /**
+     * Constructor
+     *
+     * Creates a queue of given capacity
+     *
+     * @param capacity   The capacity of the queue
+     *
+     * @throws IllegalArgumentException If the capacity is not positive
+     */
     public TxQueue(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Queue capacity must be positive");
+
         mutex = new ReentrantLock();
-        
+
         notFull = mutex.newCondition();
         notEmpty = mutex.newCondition();
-        
+        drained = mutex.newCondition();
+
         length = capacity;
+        limit = capacity;
+        slots = new TxQueueNode[capacity];
+        spares = new TxQueueNode[capacity];
     }
-    
-    
-        /**
-    * Returns queue node which contains segment of given sequence number
-        *  
-        * 
-        * @return The TxQueueNode
-    *   If no match is found, returns returns null
-        */
+
+
+    /**
+     * Returns queue node which contains segment of given sequence number
+     *
+     *
+     * @return The TxQueueNode
+     *      If no match is found, returns returns null
+     */
     public TxQueueNode getNode(int seq) {
-        // prevents others from accessing queue
-        mutex.lock();
-        
-        try {
-            TxQueueNode temp = null;
-            TxQueueNode current = head;
-            for (int i = 0; i < count; i++) {
-                if(current.seg.getSeqNum() == seq)
-                {
-                    temp = current;
-                    break;
-                }
-                else
-                {
-                    current = current.next;
-                    continue;
-                }
+        return slotFor(seq);
+    }
+
+
+    /**
+     * Returns segment of given sequence number from the queue
+     *
+     *
+     * @return The segment
+     *      If no match is found, returns returns null
+     */
+    public Segment getSegment(int seq) {
+        TxQueueNode node = slotFor(seq);
+        if (node != null)
+            return node.seg;
+        else
+            return null;
+    }
+
+
+    /**
+     * Returns the node at the head of the queue, but does not remove it.
+     *
+     * @return  The TxQueueNode
+     *      If queue is empty, returns null
+     */
+    public TxQueueNode getHeadNode() {
+        if (size() == 0)
+            return null;
+
+        // null if removed meanwhile
+        int head = base;
+        TxQueueNode node = slot(head);
+        if (node != null && node.seg.getSeqNum() == head)
+            return node;
+        else
+            return null;
+    }
+
+
+    /**
+     * Returns the segment at the 'head' of the queue, but does not remove it.
+     *
+     * @return   The Segment
+     *      If queue is empty, returns null
+     */
+    public Segment getHeadSegment() {
+        TxQueueNode node = getHeadNode();
+        if (node != null)
+            return node.seg;
+        else
+            return null;
+    }
+
+
+    /**
+     * Adds a segment to the queue based on the sequence number if there is any space available,
+     * otherwise, the calling process is blokced until space becomes available.
+     * A sequence number can only be placed once the head of the queue is within
+     * capacity of it, so the queue never holds two segments mapping to the same slot.
+     * Only one thread may add segments.
+     *
+     * @param seg    The segment to be added to the queue
+     * @throws InterruptedException in case the thread excecution is interrupted
+     * @throws IllegalArgumentException If a segment with the same sequence number is
+     *      already queued, or the sequence number lies before the head of the queue
+     *      by more than the capacity allows
+     */
+    public void add(Segment seg) throws InterruptedException {
+        int seq = seg.getSeqNum();
+
+        // wait for space to become available in queue, and for
+        // the slot of this sequence number to be released
+        if (!canAdd(seq)) {
+            mutex.lock();
+            waiters++;
+            try {
+                while (!canAdd(seq))
+                    notFull.await();
+            }
+            finally {
+                waiters--;
+                // release the lock
+                mutex.unlock();
             }
-            return temp;
         }
-        finally {
-            // release the lock
-            mutex.unlock();
+
+        insert(seq, new TxQueueNode(seg));
+    }
+
+
+    /**
+     * Adds a segment with the given sequence number at the end of the queue, without
+     * blocking, and returns its node for the caller to fill in. The node, its segment and
+     * the segment's payload array are the ones last removed from the same slot, when there
+     * are any, so the segment keeps its old payload until the caller wraps a new one in
+     * it, and the node's status stays unset until the caller marks it sent.
+     * The limit is not checked, the caller waits for space first, e.g. with awaitNotFull(),
+     * but the slot has to be free. Only one thread may add segments.
+     *
+     * @param seq    The sequence number of the segment, after any in the queue
+     * @return   The node now holding the sequence number
+     * @throws IllegalArgumentException If the sequence number is not after the last one queued
+     * @throws IllegalStateException If the slot of the sequence number is still held
+     */
+    public TxQueueNode addNode(int seq) {
+        if (size() != 0) {
+            if (seq <= last)
+                throw new IllegalArgumentException("Sequence number not after the last one: " + seq);
+            if (seq - base >= length)
+                throw new IllegalStateException("Queue slot still held: " + seq);
         }
+
+        TxQueueNode node = (TxQueueNode) SLOTS.getAcquire(spares, index(seq));
+        if (node == null)
+            node = new TxQueueNode(new Segment(seq));
+        else
+            node.reuse(seq);
+        insert(seq, node);
+        return node;
     }
 
 
+    /*
+     * Places a node in the slot of its sequence number,
+     * on the adding thread.
+     */
+    private void insert(int seq, TxQueueNode node) {
+        // the head only moves while there are nodes,
+        // so an empty queue stays empty until we add
+        if (size() == 0) {
+            // queue is empty, segment becomes the head
+            base = seq;
+            SLOTS.setRelease(slots, index(seq), node);
+            last = seq;
+        } else {
+            if (slotFor(seq) != null)
+                throw new IllegalArgumentException("Duplicate sequence number: " + seq);
 
-    /**
-        * Returns segment of given sequence number from the queue
-        *  
-        * 
-        * @return The segment
-        *       If no match is found, returns returns null
-        */
-    public Segment getSegment(int seq) {
-                // prevents others from accessing queue
-                mutex.lock();
+            // a segment before the current head moves the head back,
+            // as long as the whole queue still fits in the buffer
+            if (seq < base) {
+                if (last - seq >= length)
+                    throw new IllegalArgumentException("Sequence number outside queue: " + seq);
+                base = seq;
+            }
 
-                try {
-                        TxQueueNode tmp = null;
-                        TxQueueNode current = head;
-                        for (int i = 0; i < count; i++) {
-                                if(current.seg.getSeqNum() == seq)
-                                {
-                                        tmp = current;
-                                        break;
-                                }
-                                else
-                                {
-                                        current = current.next;
-                                        continue;
-                                }
-                        }
-                        if(tmp != null)
-                return tmp.seg;
-            else
-                return null;
-                }
-                finally {
-                        // release the lock
-                        mutex.unlock();
-                }
+            // the slot is written before the tail moves, so
+            // the head never skips a slot about to be filled
+            SLOTS.setRelease(slots, index(seq), node);
+            if (seq > last)
+                last = seq;
         }
+        added = added + 1;
+
+        // queue is not empty anymore
+        if (waiters != 0)
+            signal(notEmpty);
+    }
+
 
     /**
-        * Returns the node at the head of the queue, but does not remove it.  
-        * 
-        * @return  The TxQueueNode
-        *                  If queue is empty, returns null
-        */
-        public TxQueueNode getHeadNode() {
-                // prevents others from accessing queue
+     * Removes and returns the segment at the 'head' of the queue if the queue is not empty,
+     * otheriwse, will block the calling process until a segment becomes available.
+     *
+     * @return   The segment at the head of the queue
+     * @throws InterruptedException in case the thread excecution is interrupted
+     */
+    public Segment remove() throws InterruptedException {
+        while (true) {
+            // wait for items to be added to queue
+            if (size() == 0) {
                 mutex.lock();
-
+                waiters++;
                 try {
-                        TxQueueNode node = null;
-                        if (count != 0)
-                                node = head;
-
-                        return node;
+                    while (size() == 0)
+                        notEmpty.await();
                 }
                 finally {
-                        // release the lock
-                        mutex.unlock();
+                    waiters--;
+                    // release the lock
+                    mutex.unlock();
                 }
-        }
+            }
 
-        /**
-        * Returns the segment at the 'head' of the queue, but does not remove it.  
-        * 
-        * @return   The     Segment
-        *           If queue is empty, returns null
-        */
-    public Segment getHeadSegment() {
-        // prevents others from accessing queue
-        mutex.lock();
-        
-        try {
-            Segment seg = null;
-            if (count != 0)
-                seg = head.seg;
-            
-            return seg;
-        }
-        finally {
-            // release the lock
-            mutex.unlock();
+            // remove the head of the queue and return it,
+            // unless another thread did first
+            int head = base;
+            TxQueueNode node = slot(head);
+            if (node != null && node.seg.getSeqNum() == head && advance(head, node)) {
+                signalSpace();
+                return node.seg;
+            }
         }
     }
 
-    
-        /**
-        * Adds a segment to the queue based on the sequence number if there is any space available,
-        * otherwise, the calling process is blokced until space becomes available.
-        * The segments are arranged in the TxQueue in increasing order of sequence numbers
-        * 
-        * @param seg    The segment to be added to the queue
-        * @throws InterruptedException in case the thread excecution is interrupted
-        */
-    public void add(Segment seg) throws InterruptedException {
-        // prevents others from accessing queue
-        mutex.lock();
-        
-        try {
-            // wait for space to become available in queue
-            if (count == length)
-                notFull.await();
-            
-            // add the segment at the tail of the queue
-            if(count == 0) // queue is empty
-            {
-                TxQueueNode node = new TxQueueNode(seg);
-                head = node;
-                tail = node;
-                head.next = null;
-                tail.next = null;
-            }
-            else // queue is non-empty
-            {
-                                TxQueueNode node = new TxQueueNode(seg);
-                TxQueueNode tmp = head;
-                            TxQueueNode prev = tmp;
-                boolean added = false;
-                            while(tmp != null) // traverse through the queue
-                            {
-                                    if(tmp.seg.getSeqNum() > node.seg.getSeqNum())
-                                    {
-                                            if(head == tmp) 
-                                                    head = node;
-                                            else
-                                                    prev.next = node;
-                                            node.next = tmp;
-                        added = true;
-                                            break;
-                                    }
-                                    else
-                                    {
-                                            prev = tmp;
-                                            tmp = tmp.next;
-                                    }
-                }
-                            if(!added)
-                {
-                    prev.next = node;
-                    node.next = null;
-                    tail = node;
+    /**
+     * Marks every queued segment within the given sequence number ranges as
+     * acknowledged, then removes the acknowledged nodes at the 'head' of the queue,
+     * without taking a lock. Ranges are clipped to the segments in the queue, so
+     * the cumulative part of an ACK can be given as a range starting at 0.
+     * A node acknowledged by two threads at once is reported to one of them.
+     *
+     * @param starts   The first sequence number of each range
+     * @param ends     The sequence number after the last one of each range
+     * @param n        The number of ranges
+     * @param acked    Receives every node newly marked acknowledged, may be null
+     * @return   The number of nodes removed from the head of the queue
+     */
+    public int acknowledge(int[] starts, int[] ends, int n, List<TxQueueNode> acked) {
+        mark(starts, ends, n, acked);
+        return removeAcknowledged();
+    }
+
+
+    /**
+     * Marks every queued segment within the given sequence number ranges as
+     * acknowledged, like acknowledge(), but leaves them in the queue, so they are
+     * not reused until removeAcknowledged() is called.
+     *
+     * @param starts   The first sequence number of each range
+     * @param ends     The sequence number after the last one of each range
+     * @param n        The number of ranges
+     * @param acked    Receives every node newly marked acknowledged, may be null
+     * @return   The number of nodes newly marked
+     */
+    public int mark(int[] starts, int[] ends, int n, List<TxQueueNode> acked) {
+        if (size() == 0)
+            return 0;
+
+        // mark the segments in each range
+        int count = 0;
+        int head = base;
+        int tail = last;
+        for (int r = 0; r < n; r++) {
+            int from = Math.max(starts[r], head);
+            int to = Math.min(ends[r], tail + 1);
+            for (int seq = from; seq < to; seq++) {
+                TxQueueNode node = slot(seq);
+                if (node != null && node.seg.getSeqNum() == seq && node.acknowledge()) {
+                    count++;
+                    if (acked != null)
+                        acked.add(node);
                 }
             }
-                
-            count++;
-            
-            // queue is not empty anymore
-            notEmpty.signal();
         }
-        finally {
-            // release the lock
-            mutex.unlock();
+        return count;
+    }
+
+
+    /**
+     * Removes the acknowledged nodes at the 'head' of the queue, without taking a lock.
+     *
+     * @return   The number of nodes removed from the head of the queue
+     */
+    public int removeAcknowledged() {
+        // advance the head past acknowledged nodes
+        int count = 0;
+        while (size() != 0) {
+            int head = base;
+            TxQueueNode node = slot(head);
+            if (node == null || node.seg.getSeqNum() != head
+                    || node.getStatus() != TxQueueNode.ACKNOWLEDGED)
+                break;
+            if (advance(head, node))
+                count++;
         }
+
+        if (count != 0)
+            signalSpace();
+        return count;
     }
 
-    
-        /**
-        * Removes and returns the segment at the 'head' of the queue if the queue is not empty,
-        * otheriwse, will block the calling process until a segment becomes available. 
-        * 
-        * @return   The segment at the head of the queue
-        * @throws InterruptedException in case the thread excecution is interrupted
-        */
-    public Segment remove() throws InterruptedException {
-        // prevents others from accessing queue
-        mutex.lock();
+    /**
+     * Returns the number of nodes (or segments) in the queue.
+     *
+     * @return   The number of nodes (or segments) in the queue
+     */
+    public int size() {
+        // removed first, nodes are never removed
+        // before they are added
+        int r = removed;
+        return added - r;
+    }
+
+
+    /**
+     * Checks if the queue is empty.
+     *
+     * @return   true if the queue is empty, false otherwise
+     */
+    public boolean isEmpty() {
+        return (size() == 0);
+    }
+
+
+    /**
+     * Checks if the queue is full.
+     *
+     * @return   true if the queue is full, false otherwise
+     */
+    public boolean isFull() {
+        return (size() >= limit);
+    }
 
-        
+
+    /**
+     * Blocks the calling process until the queue is below its limit, or the
+     * timeout expires. Senders use it to wait for window space without
+     * holding a segment ready to add. Only the adding thread may call it: it
+     * parks without the mutex, as waiting on a condition allocates every time,
+     * and a sender that waits on every segment would allocate on every segment.
+     *
+     * @param timeout   The maximum time to wait, in nanoseconds
+     * @return   true if there is space in the queue, false if the timeout expired
+     * @throws InterruptedException in case the thread excecution is interrupted
+     */
+    public boolean awaitNotFull(long timeout) throws InterruptedException {
+        if (!isFull())
+            return true;
+
+        // published before the queue is checked again, so
+        // either this thread sees the space, or the thread
+        // making it sees this one and unparks it
+        spaceWaiter = Thread.currentThread();
         try {
-            // wait for items to be added to queue
-            if (count == 0)
-                notEmpty.await();
-            
-            // remove the head of the queue and return it
-            TxQueueNode node = head;
-            if(head == tail)
-            {
-                head = null;
-                tail = null;
-            }
-            else
-            {
-                head = head.next;
+            long start = System.nanoTime();
+            long left = timeout;
+            while (isFull()) {
+                if (left <= 0)
+                    return false;
+                LockSupport.parkNanos(this, left);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                left = timeout - (System.nanoTime() - start);
             }
-            count--;
-            
-            // queue is not full anymore
-            notFull.signal();
-            
-            return node.seg;
+            return true;
         }
         finally {
-            // release the lock
-            mutex.unlock();
+            spaceWaiter = null;
         }
     }
 
-        /**
-        * Returns the number of nodes (or segments) in the queue.
-        * 
-        * @return   The number of nodes (or segments) in the queue
-        */
-    public int size() {
-        // prevents others from accessing queue
+
+    /**
+     * Blocks the calling process until every node has been removed from the
+     * queue, or the timeout expires.
+     *
+     * @param timeout   The maximum time to wait, in nanoseconds
+     * @return   true if the queue is empty, false if the timeout expired
+     * @throws InterruptedException in case the thread excecution is interrupted
+     */
+    public boolean awaitEmpty(long timeout) throws InterruptedException {
+        if (isEmpty())
+            return true;
+
         mutex.lock();
-        
+        waiters++;
         try {
-            // size = capacity - occupied
-            return count;
+            while (!isEmpty()) {
+                if (timeout <= 0)
+                    return false;
+                timeout = drained.awaitNanos(timeout);
+            }
+            return true;
         }
         finally {
+            waiters--;
             // release the lock
             mutex.unlock();
         }
     }
 
-    
-        /**
-         * Checks if the queue is empty.
-        * 
-        * @return   true if the queue is empty, false otherwise
-        */
-    public boolean isEmpty() {
-        // prevents others from accessing queue
+
+    /**
+     * Returns the capacity of the queue.
+     *
+     * @return   The maximum number of nodes (or segments) the queue can hold
+     */
+    public int capacity() {
+        return length;
+    }
+
+
+    /**
+     * Sets the effective capacity of the queue, without reallocating it.
+     * Adding blocks while the queue holds this many nodes or more; lowering
+     * the limit below the current size does not drop any node.
+     *
+     * @param limit   The new limit, clamped to between 1 and the capacity
+     */
+    public void setLimit(int limit) {
+        this.limit = Math.max(1, Math.min(length, limit));
+
+        // a raised limit may free up space
+        unparkSpaceWaiter();
+        if (waiters != 0)
+            signal(notFull);
+    }
+
+
+    /**
+     * Returns the effective capacity of the queue.
+     *
+     * @return   The current limit set by setLimit(), or the capacity
+     */
+    public int getLimit() {
+        // a single volatile read
+        return limit;
+    }
+
+
+    /*
+     * True if a segment with the given sequence number fits,
+     * below the limit and within capacity of the head.
+     */
+    private boolean canAdd(int seq) {
+        int count = size();
+        return count < limit && (count == 0 || seq - base < length);
+    }
+
+
+    /*
+     * Moves the head from the node at the given sequence number to
+     * the next occupied slot, or past the last one, and clears the
+     * slot unless the adding thread has already reused it. The node
+     * becomes the spare of the slot once the head has moved past it.
+     * Returns false if another thread moved the head first.
+     */
+    private boolean advance(int head, TxQueueNode node) {
+        // on the sender side this is always the
+        // adjacent slot
+        int next = head + 1;
+        int tail = last;
+        while (next <= tail && slot(next) == null)
+            next++;
+
+        if (!BASE.compareAndSet(this, head, next))
+            return false;
+        SLOTS.compareAndSet(slots, index(head), node, null);
+        SLOTS.setRelease(spares, index(head), node);
+        REMOVED.getAndAdd(this, 1);
+        return true;
+    }
+
+
+    /*
+     * Wakes threads waiting for space, or for the queue to drain.
+     * A waiter is counted before it checks the queue, so either it
+     * sees the change, or the change sees the waiter.
+     */
+    private void signalSpace() {
+        unparkSpaceWaiter();
+        if (waiters == 0)
+            return;
         mutex.lock();
-        
         try {
-            return (count == 0);
+            notFull.signalAll();
+            drained.signalAll();
         }
         finally {
-            // release the lock
             mutex.unlock();
         }
     }
 
-    
-        /**
-        * Checks if the queue is full.
-        * 
-        * @return   true if the queue is full, false otherwise
-        */
-    public boolean isFull() {
-        // prevents others from accessing queue
+
+    private void unparkSpaceWaiter() {
+        Thread waiter = spaceWaiter;
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+    }
+
+
+    private void signal(Condition condition) {
         mutex.lock();
-        
         try {
-            return (count == length);
+            condition.signalAll();
         }
         finally {
-            // release the lock
             mutex.unlock();
         }
     }
-}
 
 
+    /*
+     * Maps a sequence number to its slot in the ring buffer.
+     */
+    private int index(int seq) {
+        return seq % length;
+    }
+
+
+    private TxQueueNode slot(int seq) {
+        return (TxQueueNode) SLOTS.getAcquire(slots, index(seq));
+    }
+
+
+    /*
+     * Returns the node holding the given sequence number, or null
+     * if the slot is empty or holds a different segment.
+     */
+    private TxQueueNode slotFor(int seq) {
+        if (seq < 0 || size() == 0)
+            return null;
+
+        TxQueueNode node = slot(seq);
+        if (node != null && node.seg.getSeqNum() == seq)
+            return node;
+        else
+            return null;
+    }
+}
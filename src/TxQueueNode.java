@@ -1,20 +1,61 @@
 
+import java.lang.invoke.*;
 import java.net.*;
 /**
  * TxQueueNode Class
  * 
  * TxQueueNode implements each node in the TxQueue
+ * Each node occupies one slot of the TxQueue ring buffer
+ * Its status is read and written by the send, ack and timer threads
+ * without a lock, and changed to acknowledged atomically, once
+ * A node, its segment and payload buffer are reused for a later
+ * segment once they leave the queue, see TxQueue.addNode()
  * 
  * @author      Cyriac James
- * @version     3.1, Jan 01, 2017
+ * @version     3.3, Jan 01, 2017
  *
  */
 public class TxQueueNode {
 
-    private int segmentStatus = -1; // Status of segment stored in the node; 0 - Sent by client , 1 - Acknowledged by server
+    private static final VarHandle STATUS;
+
+    static {
+        try {
+            STATUS = MethodHandles.lookup().findVarHandle(TxQueueNode.class, "segmentStatus", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile int segmentStatus = -1; // Status of segment stored in the node; 0 - Sent by client , 1 - Acknowledged by server
 
         public Segment seg = null;
-    public TxQueueNode next = null;
+
+    // retransmission timer links, owned by TimerWheel
+    // and only accessed holding its lock
+    TxQueueNode timerNext = null;
+    TxQueueNode timerPrev = null;
+    int timerBucket = -1;
+    long timerRounds = 0;
+    long timerTick = 0;
+
+    // transmission bookkeeping, used for rtt
+    // samples and timeout backoff
+    long sentTime = 0;
+    long timeout = 0;
+    int transmissions = 0;
+
+    // flag bits sent in the header along with
+    // the sequence number, e.g. Segment.COMPRESSED
+    int headerFlags = 0;
+    // crc32c sent after the header, when
+    // checksums are negotiated
+    int checksum = 0;
+    // session the node belongs to, when a
+    // TransferEngine shares one timer wheel
+    // between its sessions
+    Object owner = null;
+
     public final static int SENT = 0; 
         public final static int ACKNOWLEDGED = 1; 
 
@@ -28,6 +69,25 @@ public class TxQueueNode {
         this.seg = seg;
     }
     
+    /**
+        * Readies the node for another segment, keeping its segment and
+        * payload buffer, but no state of the one before
+        * The node must be off the timer wheel
+        * @param seq              Sequence number of the next segment
+        */
+
+    void reuse(int seq)
+    {
+        segmentStatus = -1;
+        seg.setSeqNum(seq);
+        sentTime = 0;
+        timeout = 0;
+        transmissions = 0;
+        headerFlags = 0;
+        checksum = 0;
+        owner = null;
+    }
+
     /**
         * Set the status of the node
         * @param status         Segment status
@@ -48,4 +108,20 @@ public class TxQueueNode {
                 return segmentStatus;
         }
 
+    /**
+        * Marks the node acknowledged, unless it already is
+        * @return true for the one caller that marked it
+        */
+
+    public boolean acknowledge()
+    {
+        int status;
+        do {
+            status = segmentStatus;
+            if(status == ACKNOWLEDGED)
+                return false;
+        } while(!STATUS.compareAndSet(this, status, ACKNOWLEDGED));
+        return true;
+    }
+
 }